@@ -0,0 +1,69 @@
+package com.bq.corbel.lib.ws.api.error;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import com.bq.corbel.lib.ws.model.Error;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Error response whose JSON body is serialized once, for the errors returned to most of the requests rejected, such as those with
+ * invalid credentials. Every {@link #build()} returns a new {@link Response}, since the response filters modify its headers, but all of
+ * them share the same body, which is written as is. The exceptions thrown with {@link #exception()} do not fill in their stack trace.
+ *
+ */
+public class PrebuiltErrorResponse {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+	public static final PrebuiltErrorResponse UNAUTHORIZED = new PrebuiltErrorResponse(new Error("unauthorized",
+			ErrorMessage.UNAUTHORIZE.getMessage()), Status.UNAUTHORIZED);
+	public static final PrebuiltErrorResponse FORBIDDEN = new PrebuiltErrorResponse(new Error("forbidden",
+			ErrorMessage.FORBIDDEN.getMessage()), Status.FORBIDDEN);
+
+	private final Error error;
+	private final int status;
+	private final byte[] body;
+
+	public PrebuiltErrorResponse(Error error, Status status) {
+		this.error = error;
+		this.status = status.getStatusCode();
+		try {
+			this.body = OBJECT_MAPPER.writeValueAsBytes(error);
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("Error " + error.getError() + " can not be serialized", e);
+		}
+	}
+
+	public Error getError() {
+		return error;
+	}
+
+	public Response build() {
+		return Response.status(status).entity(body).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	public WebApplicationException exception() {
+		return new StacklessWebApplicationException(build());
+	}
+
+	private static class StacklessWebApplicationException extends WebApplicationException {
+
+		private static final long serialVersionUID = 1L;
+
+		StacklessWebApplicationException(Response response) {
+			super(response);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			// thrown for expected rejections, where the stack trace would cost more than the rejection itself
+			return this;
+		}
+	}
+
+}
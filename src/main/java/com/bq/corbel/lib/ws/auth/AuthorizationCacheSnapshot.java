@@ -0,0 +1,231 @@
+package com.bq.corbel.lib.ws.auth;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Keeps in a local file the keys of the authorization rules cached in memory that do not contain a token, such as the keys of the
+ * public scopes of every domain, so a restarted instance reads all of them from Redis in a few pipelined batches before it serves
+ * requests instead of one by one as the first requests miss them. The file is written periodically and when the snapshot is closed,
+ * replacing the previous one atomically, and is readable only by its owner.
+ * <p>
+ * The keys of the rules of an access token embed the token itself, so only the keys matching the given pattern are kept, which must not
+ * match those keys. The rules themselves are never kept, so a restarted instance can not trust rules changed while it was down.
+ * <p>
+ * {@link #load()} maps the file, discards it if it is corrupted or older than the maximum age, and reads again in batches the time to
+ * expire of the keys and the current rules of those that still exist, which are cached by the repository and compiled by the
+ * {@link AccessRuleCompiler}. If the repository fails the warm start is abandoned and the caches are filled as requests arrive.
+ *
+ */
+public class AuthorizationCacheSnapshot implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AuthorizationCacheSnapshot.class);
+    private static final int MAGIC = 0xA17C5AF0;
+    private static final int VERSION = 4;
+    private static final long KEY_NOT_FOUND = -2;
+
+    private final Path file;
+    private final AuthorizationRulesRepository repository;
+    private final AccessRuleCompiler accessRuleCompiler;
+    private final Pattern keptKeys;
+    private final int maximumRules;
+    private final int batchSize;
+    private final long maximumAgeMillis;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("authorization-snapshot-%d").build());
+
+    /**
+     * @param repository caching repository whose cached keys are kept
+     * @param keptKeys pattern of the keys that can be kept, which must not match any key containing a token
+     * @param maximumRules maximum number of cached keys examined
+     * @param batchSize number of keys read at once when loading
+     * @param maximumAgeMillis maximum age of a snapshot to be loaded
+     */
+    public AuthorizationCacheSnapshot(Path file, AuthorizationRulesRepository repository, AccessRuleCompiler accessRuleCompiler,
+            Pattern keptKeys, int maximumRules, int batchSize, long maximumAgeMillis) {
+        this.file = file;
+        this.repository = repository;
+        this.accessRuleCompiler = accessRuleCompiler;
+        this.keptKeys = keptKeys;
+        this.maximumRules = maximumRules;
+        this.batchSize = batchSize;
+        this.maximumAgeMillis = maximumAgeMillis;
+    }
+
+    /**
+     * Restores the snapshot, if any. It should be called before the instance starts serving requests, and never fails.
+     */
+    public void load() {
+        long start = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!read(buffer, keys)) {
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            LOG.info("No authorization cache snapshot in {}", file);
+            return;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Discarding unreadable authorization cache snapshot {}: {}", file, e.getMessage());
+            return;
+        }
+        int restored = 0;
+        try {
+            for (List<String> batch : Iterables.partition(keys, batchSize)) {
+                List<String> existing = new ArrayList<>(batch.size());
+                repository.getTimeToExpireAll(batch).forEach((key, timeToExpire) -> {
+                    // keys without expiration return -1
+                    if (timeToExpire != null && timeToExpire != KEY_NOT_FOUND && timeToExpire != 0) {
+                        existing.add(key);
+                    }
+                });
+                if (!existing.isEmpty()) {
+                    for (Set<JsonObject> rules : repository.getAll(existing).values()) {
+                        if (rules != null && !rules.isEmpty()) {
+                            accessRuleCompiler.intern(rules);
+                            restored++;
+                        }
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Abandoning the warm start from authorization cache snapshot {} after restoring {} keys: {}", file, restored,
+                    e.getMessage());
+            return;
+        }
+        LOG.info("Restored {} of {} keys from {} in {} ms", restored, keys.size(), file, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Writes a snapshot every interval, besides the one written when closed.
+     */
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(this::write, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void write() {
+        List<String> keys = repository.getCachedRules(maximumRules).keySet().stream().filter(key -> keptKeys.matcher(key).matches())
+                .collect(Collectors.toList());
+        Path temporary = null;
+        try {
+            temporary = createTemporaryFile();
+            try (OutputStream fileOutput = Files.newOutputStream(temporary)) {
+                CRC32 crc = new CRC32();
+                DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOutput), crc));
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(System.currentTimeMillis());
+                output.writeInt(keys.size());
+                for (String key : keys) {
+                    writeBytes(output, key.getBytes(StandardCharsets.UTF_8));
+                }
+                output.flush();
+                // the checksum itself is not part of the checksum
+                new DataOutputStream(fileOutput).writeLong(crc.getValue());
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Written {} keys to {}", keys.size(), file);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Error writing authorization cache snapshot {}: {}", file, e.getMessage());
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        write();
+    }
+
+    private boolean read(ByteBuffer buffer, List<String> keys) {
+        if (buffer.limit() < Long.BYTES) {
+            LOG.warn("Discarding truncated authorization cache snapshot {}", file);
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer content = buffer.duplicate();
+        content.limit(buffer.limit() - Long.BYTES);
+        crc.update(content);
+        if (buffer.getLong(buffer.limit() - Long.BYTES) != crc.getValue() || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            LOG.warn("Discarding corrupted authorization cache snapshot {}", file);
+            return false;
+        }
+        long age = System.currentTimeMillis() - buffer.getLong();
+        if (age > maximumAgeMillis) {
+            LOG.info("Discarding authorization cache snapshot {} written {} ms ago", file, age);
+            return false;
+        }
+        try {
+            for (int i = buffer.getInt(); i > 0; i--) {
+                keys.add(new String(readBytes(buffer), StandardCharsets.UTF_8));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            LOG.warn("Discarding malformed authorization cache snapshot {}", file);
+            return false;
+        }
+        return true;
+    }
+
+    private Path createTemporaryFile() throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        String prefix = file.getFileName().toString();
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return Files.createTempFile(directory, prefix, ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        return Files.createTempFile(directory, prefix, ".tmp");
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
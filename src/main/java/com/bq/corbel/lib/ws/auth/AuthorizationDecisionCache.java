@@ -0,0 +1,151 @@
+package com.bq.corbel.lib.ws.auth;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Bounded cache of the decisions taken by {@link AuthorizationRequestFilter}, keyed by token, audience, method, path and Accept header.
+ * A cached decision lets the filter skip the token verification, the retrieval of the authorization rules from Redis and the rule
+ * evaluation. Every decision expires at most when the authorization rules of the token expire, as read together with the rules by
+ * {@link AuthorizationInfo#getRulesExpireAt()}, when the token itself expires or after the configured maximum time to live, whichever
+ * comes first, so revoked or changed scopes are seen after at most that time. Decisions of one use tokens are never cached, and the
+ * filter does not cache the decisions that depend on the public rules of the domain, which change independently of the token.
+ *
+ */
+public class AuthorizationDecisionCache {
+
+    private final String audience;
+    private final long maxTimeToLiveMillis;
+    private final Cache<DecisionKey, Decision> decisions;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    public AuthorizationDecisionCache(String audience, long maximumSize, long maxTimeToLiveMillis, MetricRegistry metricRegistry) {
+        this.audience = audience;
+        this.maxTimeToLiveMillis = maxTimeToLiveMillis;
+        this.hits = metricRegistry.meter(MetricRegistry.name(AuthorizationDecisionCache.class, "hits"));
+        this.misses = metricRegistry.meter(MetricRegistry.name(AuthorizationDecisionCache.class, "misses"));
+        this.evictions = metricRegistry.meter(MetricRegistry.name(AuthorizationDecisionCache.class, "evictions"));
+        this.decisions = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(maxTimeToLiveMillis, TimeUnit.MILLISECONDS)
+                .removalListener(this::onRemoval).build();
+    }
+
+    /**
+     * @return the cached decision for the request, or null if there is none
+     */
+    public Decision get(String token, String method, String path, List<MediaType> acceptableMediaTypes) {
+        DecisionKey key = new DecisionKey(token, audience, method, path, acceptableMediaTypes);
+        Decision decision = decisions.getIfPresent(key);
+        if (decision != null && decision.expiresAt <= System.currentTimeMillis()) {
+            decisions.invalidate(key);
+            evictions.mark();
+            decision = null;
+        }
+        if (decision != null) {
+            hits.mark();
+        } else {
+            misses.mark();
+        }
+        return decision;
+    }
+
+    public void put(AuthorizationInfo info, String method, String path, List<MediaType> acceptableMediaTypes, boolean allowed) {
+        if (info.getTokenReader().getInfo().isOneUseToken()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = Math.min(Math.min(now + maxTimeToLiveMillis, info.getTokenReader().getExpireTime()), info.getRulesExpireAt());
+        if (expiresAt > now) {
+            decisions.put(new DecisionKey(info.getToken(), audience, method, path, acceptableMediaTypes), new Decision(info, allowed,
+                    expiresAt));
+        }
+    }
+
+    public void invalidateAll() {
+        decisions.invalidateAll();
+    }
+
+    private void onRemoval(RemovalNotification<DecisionKey, Decision> notification) {
+        if (notification.wasEvicted()) {
+            evictions.mark();
+        }
+    }
+
+    public static class Decision {
+        private final AuthorizationInfo authorizationInfo;
+        private final boolean allowed;
+        private final long expiresAt;
+
+        private Decision(AuthorizationInfo authorizationInfo, boolean allowed, long expiresAt) {
+            this.authorizationInfo = authorizationInfo;
+            this.allowed = allowed;
+            this.expiresAt = expiresAt;
+        }
+
+        public AuthorizationInfo getAuthorizationInfo() {
+            return authorizationInfo;
+        }
+
+        public boolean isAllowed() {
+            return allowed;
+        }
+    }
+
+    private static final class DecisionKey {
+        private final String token;
+        private final String audience;
+        private final String method;
+        private final String path;
+        private final String accept;
+        private final int hash;
+
+        private DecisionKey(String token, String audience, String method, String path, List<MediaType> acceptableMediaTypes) {
+            this.token = token;
+            this.audience = audience;
+            this.method = method;
+            this.path = path;
+            this.accept = normalize(acceptableMediaTypes);
+            this.hash = Objects.hash(token, audience, method, path, accept);
+        }
+
+        private static String normalize(List<MediaType> acceptableMediaTypes) {
+            if (acceptableMediaTypes == null || acceptableMediaTypes.isEmpty()) {
+                return "";
+            }
+            // only type and subtype take part in the authorization, parameters such as quality or charset are ignored
+            StringBuilder accept = new StringBuilder();
+            for (MediaType mediaType : acceptableMediaTypes) {
+                accept.append(mediaType.getType().toLowerCase()).append('/').append(mediaType.getSubtype().toLowerCase()).append(',');
+            }
+            return accept.toString();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof DecisionKey)) {
+                return false;
+            }
+            DecisionKey other = (DecisionKey) obj;
+            return hash == other.hash && token.equals(other.token) && Objects.equals(audience, other.audience)
+                    && method.equals(other.method) && path.equals(other.path) && accept.equals(other.accept);
+        }
+    }
+}
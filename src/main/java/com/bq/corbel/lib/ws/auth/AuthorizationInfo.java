@@ -1,9 +1,11 @@
 package com.bq.corbel.lib.ws.auth;
 
 import com.bq.corbel.lib.token.reader.TokenReader;
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
+import com.bq.corbel.lib.ws.auth.rules.AccessRules;
+import com.bq.corbel.lib.ws.auth.rules.RuleSet;
 import com.google.gson.JsonObject;
 
-import java.util.Collections;
 import java.util.Set;
 
 /**
@@ -13,20 +15,48 @@ import java.util.Set;
 public class AuthorizationInfo {
 
 	private final TokenReader tokenReader;
-	private final Set<JsonObject> accessRules;
+	private final RuleSet accessRules;
+	private final long rulesExpireAt;
 
 	public AuthorizationInfo(TokenReader tokenReader, Set<JsonObject> accessRules) {
+		this(tokenReader, accessRules, AccessRuleCompiler.getInstance());
+	}
+
+	public AuthorizationInfo(TokenReader tokenReader, Set<JsonObject> accessRules, AccessRuleCompiler accessRuleCompiler) {
+		this(tokenReader, accessRules, accessRuleCompiler, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param rulesExpireAt time in millis when the rules expire in the repository, {@link Long#MAX_VALUE} if it is unknown
+	 */
+	public AuthorizationInfo(TokenReader tokenReader, Set<JsonObject> accessRules, AccessRuleCompiler accessRuleCompiler,
+			long rulesExpireAt) {
 		super();
 		this.tokenReader = tokenReader;
-		this.accessRules = accessRules;
+		this.accessRules = accessRuleCompiler.intern(accessRules);
+		this.rulesExpireAt = rulesExpireAt;
 	}
 
 	public TokenReader getTokenReader() {
 		return tokenReader;
 	}
 
+	/**
+	 * @return immutable rules, shared with the other instances with the same rules
+	 */
 	public Set<JsonObject> getAccessRules() {
-		return Collections.unmodifiableSet(accessRules);
+		return accessRules.getRules();
+	}
+
+	public AccessRules getCompiledAccessRules() {
+		return accessRules.getCompiledRules();
+	}
+
+	/**
+	 * @return time in millis when the rules expire in the repository, as read with them, {@link Long#MAX_VALUE} if it is unknown
+	 */
+	public long getRulesExpireAt() {
+		return rulesExpireAt;
 	}
 
 	public String getUserId() {
@@ -1,16 +1,21 @@
 package com.bq.corbel.lib.ws.auth;
 
-import static java.util.stream.StreamSupport.stream;
-import com.bq.corbel.lib.ws.api.error.ErrorResponseFactory;
-import io.dropwizard.auth.AuthFactory;
+import com.bq.corbel.lib.ws.api.error.PrebuiltErrorResponse;
+import com.bq.corbel.lib.token.reader.TokenReader;
+import com.bq.corbel.lib.ws.auth.rules.AccessRules;
+import com.bq.corbel.lib.ws.model.Error;
+import io.dropwizard.auth.AuthenticationException;
+import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.oauth.OAuthFactory;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
-import java.util.*;
-import java.util.regex.Pattern;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.annotation.Priority;
 import javax.servlet.AsyncContext;
@@ -21,33 +26,30 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
-import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpUpgradeHandler;
 import javax.servlet.http.Part;
 import javax.ws.rs.HttpMethod;
+import javax.ws.rs.InternalServerErrorException;
 import javax.ws.rs.Priorities;
-import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
 import javax.ws.rs.core.Context;
-import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 
 import org.eclipse.jetty.http.HttpHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Sets;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-
 /**
- * This class is a bit of a hack to Dropwizard(Jersey 2.17). It uses the {@link io.dropwizard.auth.oauth.OAuthFactory} class to obtain an
- * instance of {@link AuthorizationInfo}. The filter is configured to only verify the set of request whose path matches the specified
+ * This class is a bit of a hack to Dropwizard(Jersey 2.17). It uses the {@link Authenticator} of the
+ * {@link io.dropwizard.auth.oauth.OAuthFactory} to obtain an instance of {@link AuthorizationInfo} from the bearer token of the
+ * Authorization header or, failing that, from the token cookie, as the OAuth providers do when authentication is not required but
+ * without going through them. The filter is configured to only verify the set of request whose path matches the specified
  * pattern. It validates only access rules of type <b>http_access</b>. If request cannot proceed, it returns a HTTP error 401 without any
  * error information.
  *
@@ -59,27 +61,39 @@ import com.google.gson.JsonObject;
     private static final Logger LOG = LoggerFactory.getLogger(AuthorizationRequestFilter.class);
 
     public static final String AUTHORIZATION_INFO_PROPERTIES_KEY = "AuthorizationInfo";
+    // TokenReader of the bearer token verified by a previous filter of the same request
+    public static final String VERIFIED_TOKEN_PROPERTIES_KEY = "VerifiedToken";
 
-    private static final String VERSION_REGEX = "v[0-9]+\\.[0-9]+/";
-    private static final String EMPTY_STRING = "";
+    private static final String BEARER_PREFIX = "Bearer";
+    private static final String TOKEN_COOKIE = "token";
+    private static final PrebuiltErrorResponse INVALID_TOKEN = new PrebuiltErrorResponse(new Error("invalid_token",
+            "The authorization token is invalid"), Response.Status.UNAUTHORIZED);
+    private static final PrebuiltErrorResponse UNAUTHORIZED_TOKEN = new PrebuiltErrorResponse(new Error("unauthorized_token",
+            "The authorization token can not perform the request"), Response.Status.UNAUTHORIZED);
 
     private final OAuthFactory<AuthorizationInfo> oAuthProvider;
     private final CookieOAuthFactory<AuthorizationInfo> cookieOAuthProvider;
     private final PublicAccessService publicAccessService;
-    private final String unAuthenticatedPathPattern;
     private final boolean checkDomain;
-    private final Pattern requestWithDomainPattern;
+    private final RequestPathClassifier requestPathClassifier;
+    private final AuthorizationDecisionCache decisionCache;
 
     @Context private HttpServletRequest request;
 
     public AuthorizationRequestFilter(OAuthFactory<AuthorizationInfo> provider, CookieOAuthFactory<AuthorizationInfo> cookieOAuthProvider,
                                       PublicAccessService publicAccessService, String unAuthenticatedPathPattern, boolean checkDomain, String endpoints) {
+        this(provider, cookieOAuthProvider, publicAccessService, unAuthenticatedPathPattern, checkDomain, endpoints, null);
+    }
+
+    public AuthorizationRequestFilter(OAuthFactory<AuthorizationInfo> provider, CookieOAuthFactory<AuthorizationInfo> cookieOAuthProvider,
+                                      PublicAccessService publicAccessService, String unAuthenticatedPathPattern, boolean checkDomain, String endpoints,
+                                      AuthorizationDecisionCache decisionCache) {
         this.oAuthProvider = provider;
         this.cookieOAuthProvider = cookieOAuthProvider;
         this.publicAccessService = publicAccessService;
-        this.unAuthenticatedPathPattern = unAuthenticatedPathPattern;
         this.checkDomain = checkDomain;
-        this.requestWithDomainPattern = Pattern.compile("v[0-9]+\\.[0-9]+/[\\w\\-:\\.]+/(" + endpoints.replace(",", "|") + ")(/.*)?");
+        this.requestPathClassifier = new RequestPathClassifier(unAuthenticatedPathPattern, endpoints);
+        this.decisionCache = decisionCache;
     }
 
     public AuthorizationRequestFilter(OAuthFactory<AuthorizationInfo> provider, CookieOAuthFactory<AuthorizationInfo> cookieOAuthProvider,
@@ -91,159 +105,202 @@ import com.google.gson.JsonObject;
         this.oAuthProvider = null;
         this.cookieOAuthProvider = null;
         publicAccessService = null;
-        this.unAuthenticatedPathPattern = null;
         this.checkDomain = false;
-        this.requestWithDomainPattern = null;
+        this.requestPathClassifier = null;
+        this.decisionCache = null;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void filter(ContainerRequestContext request) {
-        if (!request.getUriInfo().getPath().matches(unAuthenticatedPathPattern)) {
+        RequestPath requestPath = requestPathClassifier.classify(request);
+        if (!requestPath.isUnAuthenticated()) {
             // OPTIONS is always allowed (for CORS)
             if (!request.getMethod().equals(HttpMethod.OPTIONS)) {
-                CustomRequest customRequest = new CustomRequest(getRequest(), request);
-                AuthFactory<String, AuthorizationInfo> localOAuthProvider = oAuthProvider.clone(false);
-                localOAuthProvider.setRequest(customRequest);
-                AuthorizationInfo info = localOAuthProvider.provide();
-
+                if (decisionCache != null && applyCachedDecision(request)) {
+                    return;
+                }
+                AuthorizationInfo info = null;
+                String bearerToken = extractBearerToken(request);
+                if (bearerToken != null) {
+                    TokenReader verifiedToken = getVerifiedToken(request, bearerToken);
+                    info = verifiedToken != null ? authenticate(verifiedToken) : authenticate(oAuthProvider.authenticator(), bearerToken);
+                }
                 if (info == null) {
-                    AuthFactory<String, AuthorizationInfo> localCookieOAuthProvider = cookieOAuthProvider.clone(false);
-                    localCookieOAuthProvider.setRequest(customRequest);
-                    info = localCookieOAuthProvider.provide();
+                    String cookieToken = extractCookieToken(request);
+                    if (cookieToken != null) {
+                        info = authenticate(cookieOAuthProvider.authenticator(), cookieToken);
+                    }
                 }
-                String domainId = getDomainId(info, request);
+                String domainId = getDomainId(info, requestPath);
                 if (info != null) {
                     if (checkDomain && !isEqualsOrChildDomain(info.getDomainId(), domainId)) {
-                        throw new WebApplicationException(generateUnauthorizedTokenResponse());
+                        cacheDecision(info, request, false);
+                        throw UNAUTHORIZED_TOKEN.exception();
+                    }
+                    if (matchesTokenAccessRules(info, request, requestPath, domainId)) {
+                        cacheDecision(info, request, true);
+                    } else if (!matchesPublicAccessRules(domainId, request, requestPath)) {
+                        // not cached, the public rules of the domain may be published or changed at any time
+                        throw UNAUTHORIZED_TOKEN.exception();
                     }
-                    checkTokenAccessRules(info, request, domainId);
                     storeAuthorizationInfoInRequestProperties(info, request);
                 } else {
-                    checkPublicAccessRules(domainId, request);
+                    checkPublicAccessRules(domainId, request, requestPath);
                 }
             }
         }
     }
 
-    private boolean isEqualsOrChildDomain(String tokenDomainId, String urlDomainId) {
-        return tokenDomainId.equals(urlDomainId) || tokenDomainId.startsWith(urlDomainId + ":") || urlDomainId.startsWith(tokenDomainId + ":");
-    }
-
-    private String getDomainId(AuthorizationInfo info, ContainerRequestContext request) {
-        if (requestWithDomainPattern.matcher(request.getUriInfo().getPath()).matches()) {
-            return request.getUriInfo().getPath().split("/")[1];
-        } else {
-            return info != null ? info.getDomainId() : null;
+    private boolean applyCachedDecision(ContainerRequestContext request) {
+        String token = extractToken(request);
+        if (token == null) {
+            return false;
+        }
+        AuthorizationDecisionCache.Decision decision = decisionCache.get(token, request.getMethod(), request.getUriInfo().getPath(),
+                request.getAcceptableMediaTypes());
+        if (decision == null) {
+            return false;
         }
+        if (!decision.isAllowed()) {
+            throw UNAUTHORIZED_TOKEN.exception();
+        }
+        storeAuthorizationInfoInRequestProperties(decision.getAuthorizationInfo(), request);
+        return true;
     }
 
-    public void checkTokenAccessRules(final AuthorizationInfo info, final ContainerRequestContext request, String domainId) {
-        Set<JsonObject> applicableRules = getApplicableAccessRules(info.getAccessRules(), request, domainId, info.getUserId() != null);
-        // If no rules apply then by default access is denied
-        if (applicableRules.isEmpty() && getApplicablePublicAccessRules(domainId, request).isEmpty()) {
-            throw new WebApplicationException(generateUnauthorizedTokenResponse());
+    private void cacheDecision(AuthorizationInfo info, ContainerRequestContext request, boolean allowed) {
+        if (decisionCache != null) {
+            decisionCache.put(info, request.getMethod(), request.getUriInfo().getPath(), request.getAcceptableMediaTypes(), allowed);
         }
     }
 
-    public void checkPublicAccessRules(String domainId, final ContainerRequestContext request) {
-        Set<JsonObject> applicableRules = getApplicablePublicAccessRules(domainId, request);
-        // If no rules apply then by default access is denied
-        if (applicableRules.isEmpty()) {
-            throw new WebApplicationException(generateInvalidTokenResponse());
+    private TokenReader getVerifiedToken(ContainerRequestContext request, String bearerToken) {
+        Object verifiedToken = request.getProperty(VERIFIED_TOKEN_PROPERTIES_KEY);
+        if (verifiedToken instanceof TokenReader && ((TokenReader) verifiedToken).getToken().equals(bearerToken)) {
+            return (TokenReader) verifiedToken;
         }
+        return null;
     }
 
-    private Set<JsonObject> getApplicableAccessRules(Set<JsonObject> accessRules, final ContainerRequestContext request, String domainId,
-                                                     boolean userToken) {
-        String scopeUrl = extractScopeUrl(domainId, request.getUriInfo().getPath());
-        return Sets.filter(accessRules, rule -> matchesMethod(request.getMethod(), rule) && matchesUriPath(scopeUrl, rule)
-                && matchesMediaTypes(request, rule) && (matchesTokenType(userToken, rule)));
+    private AuthorizationInfo authenticate(TokenReader verifiedToken) {
+        Authenticator<String, AuthorizationInfo> authenticator = oAuthProvider.authenticator();
+        if (authenticator instanceof BearerTokenAuthenticator) {
+            try {
+                return ((BearerTokenAuthenticator) authenticator).authenticate(verifiedToken).orNull();
+            } catch (AuthenticationException e) {
+                LOG.warn("Error authenticating credentials", e);
+                throw new InternalServerErrorException();
+            }
+        }
+        return authenticate(authenticator, verifiedToken.getToken());
     }
 
-    private Set<JsonObject> getApplicablePublicAccessRules(String domainId, final ContainerRequestContext request) {
-        Set<JsonObject> applicableRules = null;
-        if (publicAccessService != null) {
-            Set<JsonObject> accessRules = publicAccessService.getDomainPublicRules(domainId);
-            applicableRules = getApplicableAccessRules(accessRules, request, domainId, false);
+    /**
+     * Authenticates the credentials as the OAuth providers do when the authentication is not required: missing or invalid credentials
+     * return null and errors of the authenticator a 500 response.
+     */
+    private AuthorizationInfo authenticate(Authenticator<String, AuthorizationInfo> authenticator, String credentials) {
+        try {
+            return authenticator.authenticate(credentials).orNull();
+        } catch (AuthenticationException e) {
+            // same behaviour as OAuthFactory
+            LOG.warn("Error authenticating credentials", e);
+            throw new InternalServerErrorException();
         }
-        return applicableRules != null ? applicableRules : Collections.EMPTY_SET;
     }
 
-    private Response generateInvalidTokenResponse() {
-        return ErrorResponseFactory.getInstance().unauthorized("invalid_token", "The authorization token is invalid");
+    /**
+     * Gets the token the same way the OAuth providers do: a bearer Authorization header or, failing that, the token cookie.
+     */
+    private String extractToken(ContainerRequestContext request) {
+        String token = extractBearerToken(request);
+        return token != null ? token : extractCookieToken(request);
     }
 
-    private Response generateUnauthorizedTokenResponse() {
-        return ErrorResponseFactory.getInstance().unauthorized("unauthorized_token", "The authorization token can not perform the request");
+    private String extractCookieToken(ContainerRequestContext request) {
+        Cookie cookie = request.getCookies().get(TOKEN_COOKIE);
+        return cookie != null ? cookie.getValue() : null;
     }
 
-    private String extractScopeUrl(String domainId, String path) {
-        String regex = domainId != null ? VERSION_REGEX + "(" + domainId + "/)?" : VERSION_REGEX;
-        return path.replaceFirst(regex, EMPTY_STRING);
+    private String extractBearerToken(ContainerRequestContext request) {
+        String header = request.getHeaderString(HttpHeaders.AUTHORIZATION);
+        if (header != null) {
+            int space = header.indexOf(' ');
+            if (space > 0 && BEARER_PREFIX.equalsIgnoreCase(header.substring(0, space))) {
+                return header.substring(space + 1);
+            }
+        }
+        return null;
     }
 
-    private void storeAuthorizationInfoInRequestProperties(AuthorizationInfo info, ContainerRequestContext request) {
-        request.setProperty(AUTHORIZATION_INFO_PROPERTIES_KEY, info);
+    private boolean isEqualsOrChildDomain(String tokenDomainId, String urlDomainId) {
+        return tokenDomainId.equals(urlDomainId) || tokenDomainId.startsWith(urlDomainId + ":") || urlDomainId.startsWith(tokenDomainId + ":");
     }
 
-    private boolean matchesTokenType(boolean userToken, JsonObject rule) {
-        if (!rule.has("tokenType")) {
-            // if no tokenType is defined there's nothing to check.
-            return true;
-        }
-        String value = rule.get("tokenType").getAsString();
-        switch (value) {
-            case "user":
-                return userToken;
-            default:
-                return false; // if we don't know what that value means then fail the rule
+    private String getDomainId(AuthorizationInfo info, RequestPath requestPath) {
+        if (requestPath.getDomainId() != null) {
+            return requestPath.getDomainId();
+        } else {
+            return info != null ? info.getDomainId() : null;
         }
     }
 
-    private boolean matchesMethod(String method, JsonObject input) {
-        if (!input.has("methods")) {
-            LOG.warn("Http access rule without methods field: {}", input.toString());
-            return false;
-        }
-        JsonArray methods = input.get("methods").getAsJsonArray();
-        for (JsonElement jsonMethod : methods) {
-            if (method.equals(jsonMethod.getAsString())) {
-                return true;
-            }
-        }
-        return false;
+    public void checkTokenAccessRules(final AuthorizationInfo info, final ContainerRequestContext request, String domainId) {
+        checkTokenAccessRules(info, request, requestPathClassifier.classify(request), domainId);
     }
 
-    private boolean matchesMediaTypes(ContainerRequestContext request, JsonObject input) {
-        if (!input.has("mediaTypes")) {
-            LOG.warn("Http access rule without mediaTypes field: {}", input.toString());
-            return false;
+    private void checkTokenAccessRules(AuthorizationInfo info, ContainerRequestContext request, RequestPath requestPath, String domainId) {
+        // If no rules apply then by default access is denied
+        if (!matchesTokenAccessRules(info, request, requestPath, domainId) && !matchesPublicAccessRules(domainId, request, requestPath)) {
+            throw UNAUTHORIZED_TOKEN.exception();
         }
-        JsonArray mediaTypesArray = input.get("mediaTypes").getAsJsonArray();
+    }
 
-        for (MediaType mediaType : request.getAcceptableMediaTypes()) {
-            if (stream(mediaTypesArray.spliterator(), true).map(mediaTypeElement -> MediaType.valueOf(mediaTypeElement.getAsString()))
-                    .anyMatch(mediaType::isCompatible)) {
-                return true;
-            }
+    private boolean matchesTokenAccessRules(AuthorizationInfo info, ContainerRequestContext request, RequestPath requestPath,
+            String domainId) {
+        return matchesAccessRules(info.getCompiledAccessRules(), request, requestPath, domainId, info.getUserId() != null);
+    }
+
+    public void checkPublicAccessRules(String domainId, final ContainerRequestContext request) {
+        checkPublicAccessRules(domainId, request, requestPathClassifier.classify(request));
+    }
+
+    private void checkPublicAccessRules(String domainId, ContainerRequestContext request, RequestPath requestPath) {
+        // If no rules apply then by default access is denied
+        if (!matchesPublicAccessRules(domainId, request, requestPath)) {
+            throw INVALID_TOKEN.exception();
         }
-        return false;
     }
 
-    private boolean matchesUriPath(String path, JsonObject input) {
-        if (!input.has("uri")) {
-            LOG.warn("Http access rule without uri field: {}", input.toString());
+    private boolean matchesAccessRules(AccessRules accessRules, final ContainerRequestContext request, RequestPath requestPath,
+            String domainId, boolean userToken) {
+        if (accessRules == null || accessRules.isEmpty()) {
             return false;
         }
-        return path.matches(input.get("uri").getAsString());
+        return accessRules.matches(request.getMethod(), requestPath.getScopeUrl(domainId), request.getAcceptableMediaTypes(), userToken);
+    }
+
+    private boolean matchesPublicAccessRules(String domainId, final ContainerRequestContext request, RequestPath requestPath) {
+        return publicAccessService != null
+                && matchesAccessRules(publicAccessService.getCompiledDomainPublicRules(domainId), request, requestPath, domainId, false);
+    }
+
+    private void storeAuthorizationInfoInRequestProperties(AuthorizationInfo info, ContainerRequestContext request) {
+        request.setProperty(AUTHORIZATION_INFO_PROPERTIES_KEY, info);
     }
 
-    // Testing purpose
+    /**
+     * @deprecated the filter reads the credentials from the {@link ContainerRequestContext} and no longer uses the servlet request
+     */
+    @Deprecated
     public HttpServletRequest getRequest() {
         return this.request;
     }
 
+    /**
+     * @deprecated no longer used by the filter, the credentials are read from the {@link ContainerRequestContext}
+     */
+    @Deprecated
     public class CustomRequest implements HttpServletRequest {
         private final HttpServletRequest request;
         private final ContainerRequestContext requestContext;
@@ -272,7 +329,7 @@ import com.google.gson.JsonObject;
         }
 
         @Override
-        public Cookie[] getCookies() {
+        public javax.servlet.http.Cookie[] getCookies() {
             return request.getCookies();
         }
 
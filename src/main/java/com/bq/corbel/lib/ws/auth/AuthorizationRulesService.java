@@ -1,8 +1,10 @@
 package com.bq.corbel.lib.ws.auth;
 
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
 import com.google.gson.JsonObject;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Alexander De Leon
@@ -12,5 +14,45 @@ public interface AuthorizationRulesService {
 
 	Set<JsonObject> getAuthorizationRules(String token, String audience);
 
+	/**
+	 * @return the rules with their time to expire, when it can be read together with them. The default implementation returns the
+	 *         rules alone.
+	 */
+	default ExpiringRules getAuthorizationRulesWithTimeToExpire(String token, String audience) {
+		return new ExpiringRules(getAuthorizationRules(token, audience), null);
+	}
+
 	boolean existsRulesForToken(String token, String audience);
+
+	/**
+	 * @return the remaining time to live of the rules in seconds, negative if the rules never expire (-1) or do not exist (-2). The
+	 *         default implementation returns null, as the time to expire is unknown.
+	 */
+	default Long getTimeToExpire(String token, String audience) {
+		return null;
+	}
+
+	/**
+	 * Asynchronous version of {@link #getAuthorizationRules(String, String)}. The default implementation runs synchronously in the
+	 * calling thread.
+	 */
+	default CompletableFuture<Set<JsonObject>> getAuthorizationRulesAsync(String token, String audience) {
+		return CompletableFuture.completedFuture(getAuthorizationRules(token, audience));
+	}
+
+	/**
+	 * Asynchronous version of {@link #existsRulesForToken(String, String)}. The default implementation runs synchronously in the
+	 * calling thread.
+	 */
+	default CompletableFuture<Boolean> existsRulesForTokenAsync(String token, String audience) {
+		return CompletableFuture.completedFuture(existsRulesForToken(token, audience));
+	}
+
+	/**
+	 * Asynchronous version of {@link #getTimeToExpire(String, String)}. The default implementation runs synchronously in the calling
+	 * thread.
+	 */
+	default CompletableFuture<Long> getTimeToExpireAsync(String token, String audience) {
+		return CompletableFuture.completedFuture(getTimeToExpire(token, audience));
+	}
 }
@@ -1,10 +1,13 @@
 package com.bq.corbel.lib.ws.auth;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.bq.corbel.lib.token.exception.TokenVerificationException;
 import com.bq.corbel.lib.token.parser.TokenParser;
 import com.bq.corbel.lib.token.reader.TokenReader;
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,25 +31,67 @@ public class BearerTokenAuthenticator implements Authenticator<String, Authoriza
 	private final String audience;
 	private final AuthorizationRulesService authorizationRulesService;
 	private final TokenParser tokenParser;
+	private final NegativeTokenCache negativeTokenCache;
+	private final AccessRuleCompiler accessRuleCompiler;
 
 	public BearerTokenAuthenticator(String audience, AuthorizationRulesService authorizationRulesService,
 			TokenParser tokenParser) {
+		this(audience, authorizationRulesService, tokenParser, null);
+	}
+
+	public BearerTokenAuthenticator(String audience, AuthorizationRulesService authorizationRulesService,
+			TokenParser tokenParser, NegativeTokenCache negativeTokenCache) {
+		this(audience, authorizationRulesService, tokenParser, negativeTokenCache, AccessRuleCompiler.getInstance());
+	}
+
+	public BearerTokenAuthenticator(String audience, AuthorizationRulesService authorizationRulesService,
+			TokenParser tokenParser, NegativeTokenCache negativeTokenCache, AccessRuleCompiler accessRuleCompiler) {
 		this.audience = audience;
 		this.authorizationRulesService = authorizationRulesService;
 		this.tokenParser = tokenParser;
-
+		this.negativeTokenCache = negativeTokenCache;
+		this.accessRuleCompiler = accessRuleCompiler;
 	}
 
 	@Override
 	public Optional<AuthorizationInfo> authenticate(String token) throws AuthenticationException {
+		if (negativeTokenCache != null && negativeTokenCache.isInvalid(token)) {
+			return Optional.absent();
+		}
+		TokenReader tokenReader;
 		try {
-			TokenReader tokenReader = tokenParser.parseAndVerify(token);
-			Set<JsonObject> accessRules = authorizationRulesService.getAuthorizationRules(token, audience);
+			tokenReader = tokenParser.parseAndVerify(token);
+		} catch (IllegalArgumentException | TokenVerificationException e) {
+			LOG.trace("Invalid access token {}", token, e);
+			recordInvalidToken(token);
+			return Optional.absent();
+		} catch (Exception e) {
+			LOG.error("Unexpected error when validating token", e);
+			throw new AuthenticationException(e);
+		}
+		return getAuthorizationInfo(token, tokenReader);
+	}
+
+	/**
+	 * Provides the {@link AuthorizationInfo} of a token already verified in the current request.
+	 */
+	public Optional<AuthorizationInfo> authenticate(TokenReader tokenReader) throws AuthenticationException {
+		if (negativeTokenCache != null && negativeTokenCache.isInvalid(tokenReader.getToken())) {
+			return Optional.absent();
+		}
+		return getAuthorizationInfo(tokenReader.getToken(), tokenReader);
+	}
+
+	private Optional<AuthorizationInfo> getAuthorizationInfo(String token, TokenReader tokenReader) throws AuthenticationException {
+		try {
+			ExpiringRules expiringRules = authorizationRulesService.getAuthorizationRulesWithTimeToExpire(token, audience);
+			Set<JsonObject> accessRules = expiringRules != null ? expiringRules.getRules() : null;
 			// If we can not find authorization rules then no authorization exists.
 			if (accessRules != null && !accessRules.isEmpty()) {
-				return Optional.of(new AuthorizationInfo(tokenReader, accessRules));
+				return Optional.of(new AuthorizationInfo(tokenReader, accessRules, accessRuleCompiler, getRulesExpireAt(expiringRules
+						.getTimeToExpire())));
 			}
-		} catch (IllegalArgumentException | TokenVerificationException e) {
+		} catch (IllegalArgumentException e) {
 			LOG.trace("Invalid access token {}", token, e);
 		} catch (Exception e) {
 			LOG.error("Unexpected error when validating token", e);
@@ -54,4 +99,18 @@ public class BearerTokenAuthenticator implements Authenticator<String, Authoriza
 		}
 		return Optional.absent();
 	}
+
+	private static long getRulesExpireAt(Long timeToExpire) {
+		if (timeToExpire == null || timeToExpire == -1) {
+			return Long.MAX_VALUE;
+		}
+		// rules that expired right after being read (-2) expire now
+		return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Math.max(0, timeToExpire));
+	}
+
+	private void recordInvalidToken(String token) {
+		if (negativeTokenCache != null) {
+			negativeTokenCache.recordInvalid(token);
+		}
+	}
 }
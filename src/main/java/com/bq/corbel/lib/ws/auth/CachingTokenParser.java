@@ -0,0 +1,44 @@
+package com.bq.corbel.lib.ws.auth;
+
+import java.util.concurrent.TimeUnit;
+
+import com.bq.corbel.lib.token.exception.TokenVerificationException;
+import com.bq.corbel.lib.token.parser.TokenParser;
+import com.bq.corbel.lib.token.reader.TokenReader;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * {@link TokenParser} that keeps the tokens already verified by its delegate in a bounded cache keyed by the raw token, so the signature
+ * of a token reused by a client is checked only once. A cached token is never returned after its own expiration time nor after the
+ * configured maximum time to live. One use tokens are always verified by the delegate because their verification consumes them.
+ *
+ */
+public class CachingTokenParser implements TokenParser {
+
+    private final TokenParser delegate;
+    private final Cache<String, TokenReader> verifiedTokens;
+
+    public CachingTokenParser(TokenParser delegate, long maximumSize, long maxTimeToLiveMillis) {
+        this.delegate = delegate;
+        this.verifiedTokens = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(maxTimeToLiveMillis, TimeUnit.MILLISECONDS).build();
+    }
+
+    @Override
+    public TokenReader parseAndVerify(String token) throws TokenVerificationException {
+        TokenReader tokenReader = verifiedTokens.getIfPresent(token);
+        if (tokenReader != null) {
+            if (tokenReader.getExpireTime() > System.currentTimeMillis()) {
+                return tokenReader;
+            }
+            verifiedTokens.invalidate(token);
+        }
+        tokenReader = delegate.parseAndVerify(token);
+        if (!tokenReader.getInfo().isOneUseToken() && tokenReader.getExpireTime() > System.currentTimeMillis()) {
+            verifiedTokens.put(token, tokenReader);
+        }
+        return tokenReader;
+    }
+
+}
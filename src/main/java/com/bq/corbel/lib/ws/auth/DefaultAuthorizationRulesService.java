@@ -1,9 +1,11 @@
 package com.bq.corbel.lib.ws.auth;
 
 import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
 import com.google.gson.JsonObject;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Alexander De Leon
@@ -23,10 +25,36 @@ public class DefaultAuthorizationRulesService implements AuthorizationRulesServi
 		return repository.get(key);
 	}
 
+	@Override
+	public ExpiringRules getAuthorizationRulesWithTimeToExpire(String token, String audience) {
+		return repository.getWithTimeToExpire(repository.getKeyForAuthorizationRules(token, audience));
+	}
+
 	@Override
 	public boolean existsRulesForToken(String token, String audience) {
 		String key = repository.getKeyForAuthorizationRules(token, audience);
 		return repository.existsRules(key);
 	}
 
+	@Override
+	public Long getTimeToExpire(String token, String audience) {
+		String key = repository.getKeyForAuthorizationRules(token, audience);
+		return repository.getTimeToExpire(key);
+	}
+
+	@Override
+	public CompletableFuture<Set<JsonObject>> getAuthorizationRulesAsync(String token, String audience) {
+		return repository.getAsync(repository.getKeyForAuthorizationRules(token, audience));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> existsRulesForTokenAsync(String token, String audience) {
+		return repository.existsRulesAsync(repository.getKeyForAuthorizationRules(token, audience));
+	}
+
+	@Override
+	public CompletableFuture<Long> getTimeToExpireAsync(String token, String audience) {
+		return repository.getTimeToExpireAsync(repository.getKeyForAuthorizationRules(token, audience));
+	}
+
 }
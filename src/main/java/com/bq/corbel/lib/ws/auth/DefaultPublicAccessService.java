@@ -1,53 +1,223 @@
 package com.bq.corbel.lib.ws.auth;
 
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
+import com.bq.corbel.lib.ws.auth.rules.AccessRules;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.JsonObject;
 import com.bq.corbel.event.DomainPublicScopesNotPublishedEvent;
 import com.bq.corbel.eventbus.service.EventBus;
 
 import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Public rules of a domain are read with a single SMEMBERS, an empty set meaning that they have not been published yet. In that case a
+ * single {@link DomainPublicScopesNotPublishedEvent} is dispatched per domain and the repository is polled until the rules appear or the
+ * wait time is over, all the concurrent requests of the domain waiting for the same poll. Optionally, the published rules of every
+ * domain are kept in memory and refreshed in background with a single lookup, so requests to hot domains do not wait for Redis. Domains
+ * without published rules are never cached, and a refresh that finds no rules discards the domain instead of waiting for them, so the
+ * next request waits for the publication as if the domain was not cached. A
+ * {@link DomainEventDebouncer} may also limit the events of a domain whose rules are still missing after the wait time to one every
+ * quiet window.
  *
  * @author Alberto J. Rubio
  *
  */
 public class DefaultPublicAccessService implements PublicAccessService {
 
+    private static final Logger LOG = LoggerFactory.getLogger(DefaultPublicAccessService.class);
     public static final String PUBLIC_SCOPES_SUFFIX = "_public_scopes";
+    private static final long POLL_INTERVAL_MILLIS = 25;
 
     private final AuthorizationRulesService authorizationRulesService;
     private final Integer waitTimeForPublishPublicScopes;
     private final EventBus eventBus;
     private final String audience;
-
+    private final Cache<String, PublicRules> publicRules;
+    private final long refreshMillis;
+    private final Set<String> refreshingDomains = ConcurrentHashMap.newKeySet();
+    private final Executor refreshExecutor;
+    private final DomainEventDebouncer eventDebouncer;
+    private final AccessRuleCompiler accessRuleCompiler;
+    private final ConcurrentMap<String, CompletableFuture<Set<JsonObject>>> pendingPublications = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService publicationPoller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("public-scopes-poller-%d").build());
 
     public DefaultPublicAccessService(AuthorizationRulesService authorizationRulesService, Integer waitTimeForPublishPublicScopes, EventBus eventBus, String audience) {
+        this(authorizationRulesService, waitTimeForPublishPublicScopes, eventBus, audience, 0, 0);
+    }
+
+    /**
+     * @param refreshMillis time after which the cached rules of a domain are reloaded in background on the next access, 0 to disable the
+     *        cache, which is the default
+     * @param expireMillis time after which the cached rules of a domain not accessed are discarded
+     */
+    public DefaultPublicAccessService(AuthorizationRulesService authorizationRulesService, Integer waitTimeForPublishPublicScopes, EventBus eventBus, String audience,
+                                      long refreshMillis, long expireMillis) {
+        this(authorizationRulesService, waitTimeForPublishPublicScopes, eventBus, audience, refreshMillis, expireMillis, null);
+    }
+
+    /**
+     * @param eventDebouncer debouncer of the {@link DomainPublicScopesNotPublishedEvent} of every domain, or null to dispatch one per
+     *        publication wait
+     */
+    public DefaultPublicAccessService(AuthorizationRulesService authorizationRulesService, Integer waitTimeForPublishPublicScopes, EventBus eventBus, String audience,
+                                      long refreshMillis, long expireMillis, DomainEventDebouncer eventDebouncer) {
+        this(authorizationRulesService, waitTimeForPublishPublicScopes, eventBus, audience, refreshMillis, expireMillis, eventDebouncer,
+                AccessRuleCompiler.getInstance());
+    }
+
+    public DefaultPublicAccessService(AuthorizationRulesService authorizationRulesService, Integer waitTimeForPublishPublicScopes, EventBus eventBus, String audience,
+                                      long refreshMillis, long expireMillis, DomainEventDebouncer eventDebouncer,
+                                      AccessRuleCompiler accessRuleCompiler) {
         this.authorizationRulesService = authorizationRulesService;
         this.waitTimeForPublishPublicScopes = waitTimeForPublishPublicScopes;
         this.eventBus = eventBus;
         this.audience = audience;
+        this.eventDebouncer = eventDebouncer;
+        this.accessRuleCompiler = accessRuleCompiler;
+        this.refreshMillis = refreshMillis;
+        this.publicRules = refreshMillis > 0 ? CacheBuilder.newBuilder()
+                .expireAfterAccess(Math.max(refreshMillis, expireMillis), TimeUnit.MILLISECONDS).build() : null;
+        this.refreshExecutor = refreshMillis > 0 ? Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("public-scopes-refresh-%d").build()) : null;
     }
 
     @Override
     public Set<JsonObject> getDomainPublicRules(String domainId) {
         if (domainId != null) {
-            String token = domainId + PUBLIC_SCOPES_SUFFIX;
-            if(!authorizationRulesService.existsRulesForToken(token, audience)) {
-                eventBus.dispatch(new DomainPublicScopesNotPublishedEvent(domainId));
-                waitPublicScopesArePublished();
+            return publicRules != null ? getCachedPublicRules(domainId).rules : findDomainPublicRules(domainId);
+        }
+        return Collections.emptySet();
+    }
+
+    @Override
+    public AccessRules getCompiledDomainPublicRules(String domainId) {
+        if (domainId != null) {
+            return publicRules != null ? getCachedPublicRules(domainId).compiledRules : accessRuleCompiler.compile(
+                    findDomainPublicRules(domainId));
+        }
+        return AccessRules.EMPTY;
+    }
+
+    private PublicRules getCachedPublicRules(String domainId) {
+        PublicRules cachedRules = publicRules.getIfPresent(domainId);
+        if (cachedRules == null) {
+            Set<JsonObject> rules = findDomainPublicRules(domainId);
+            PublicRules loadedRules = new PublicRules(rules, accessRuleCompiler.compile(rules));
+            if (!rules.isEmpty()) {
+                publicRules.put(domainId, loadedRules);
+            }
+            return loadedRules;
+        }
+        if (System.currentTimeMillis() - cachedRules.loadedAt >= refreshMillis && refreshingDomains.add(domainId)) {
+            try {
+                refreshExecutor.execute(() -> refreshPublicRules(domainId));
+            } catch (RuntimeException e) {
+                refreshingDomains.remove(domainId);
+                throw e;
             }
-            return authorizationRulesService.getAuthorizationRules(token, audience);
         }
-        return Collections.EMPTY_SET;
+        return cachedRules;
     }
 
-    private void waitPublicScopesArePublished() {
+    /**
+     * Reads the rules of a cached domain once, without waiting for their publication, so the refresh thread never blocks.
+     */
+    private void refreshPublicRules(String domainId) {
         try {
-            TimeUnit.MILLISECONDS.sleep(waitTimeForPublishPublicScopes);
-        } catch (InterruptedException ignored) {
+            Set<JsonObject> rules = authorizationRulesService.getAuthorizationRules(domainId + PUBLIC_SCOPES_SUFFIX, audience);
+            if (rules != null && !rules.isEmpty()) {
+                publicRules.put(domainId, new PublicRules(rules, accessRuleCompiler.compile(rules)));
+            } else {
+                publicRules.invalidate(domainId);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Error refreshing public rules of domain {}", domainId, e);
+        } finally {
+            refreshingDomains.remove(domainId);
+        }
+    }
+
+    private Set<JsonObject> findDomainPublicRules(String domainId) {
+        String token = domainId + PUBLIC_SCOPES_SUFFIX;
+        Set<JsonObject> rules = authorizationRulesService.getAuthorizationRules(token, audience);
+        if (rules == null || rules.isEmpty()) {
+            rules = waitPublicScopesArePublished(domainId, token);
+        }
+        return rules != null ? rules : Collections.emptySet();
+    }
+
+    private Set<JsonObject> waitPublicScopesArePublished(String domainId, String token) {
+        try {
+            // the publication always completes after the wait time, the timeout only protects against a stuck poller
+            return getPublication(domainId, token).get(2L * waitTimeForPublishPublicScopes + POLL_INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (TimeoutException ignored) {}
+        return null;
+    }
+
+    private CompletableFuture<Set<JsonObject>> getPublication(String domainId, String token) {
+        CompletableFuture<Set<JsonObject>> publication = new CompletableFuture<>();
+        CompletableFuture<Set<JsonObject>> pendingPublication = pendingPublications.putIfAbsent(domainId, publication);
+        if (pendingPublication != null) {
+            return pendingPublication;
+        }
+        publication.whenComplete((rules, error) -> pendingPublications.remove(domainId, publication));
+        try {
+            if (eventDebouncer != null) {
+                eventDebouncer.dispatch(domainId, () -> eventBus.dispatch(new DomainPublicScopesNotPublishedEvent(domainId)));
+            } else {
+                eventBus.dispatch(new DomainPublicScopesNotPublishedEvent(domainId));
+            }
+        } catch (RuntimeException e) {
+            publication.completeExceptionally(e);
+            return publication;
+        }
+        long deadline = System.currentTimeMillis() + waitTimeForPublishPublicScopes;
+        long pollInterval = Math.max(1, Math.min(POLL_INTERVAL_MILLIS, waitTimeForPublishPublicScopes));
+        ScheduledFuture<?> poll = publicationPoller.scheduleWithFixedDelay(() -> {
+            try {
+                Set<JsonObject> rules = authorizationRulesService.getAuthorizationRules(token, audience);
+                if ((rules != null && !rules.isEmpty()) || System.currentTimeMillis() >= deadline) {
+                    publication.complete(rules);
+                }
+            } catch (RuntimeException e) {
+                publication.completeExceptionally(e);
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        publication.whenComplete((rules, error) -> poll.cancel(false));
+        return publication;
+    }
+
+    private static class PublicRules {
+        private final Set<JsonObject> rules;
+        private final AccessRules compiledRules;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private PublicRules(Set<JsonObject> rules, AccessRules compiledRules) {
+            this.rules = rules;
+            this.compiledRules = compiledRules;
         }
     }
 }
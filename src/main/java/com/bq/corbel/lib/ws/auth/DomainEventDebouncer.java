@@ -0,0 +1,52 @@
+package com.bq.corbel.lib.ws.auth;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Lets through at most one event per domain every quiet window, so a burst of requests to a domain does not flood the event bus with
+ * identical events. The domains are kept in a bounded cache, a domain evicted before its window is over may dispatch again earlier.
+ *
+ */
+public class DomainEventDebouncer {
+
+    private final ConcurrentMap<String, Boolean> recentDomains;
+    private final Meter emitted;
+    private final Meter suppressed;
+
+    /**
+     * @param quietWindowMillis time after an event of a domain during which other events of the same domain are suppressed
+     * @param maximumDomains maximum number of domains remembered at once
+     */
+    public DomainEventDebouncer(long quietWindowMillis, long maximumDomains, MetricRegistry metricRegistry) {
+        this.recentDomains = CacheBuilder.newBuilder().maximumSize(maximumDomains)
+                .expireAfterWrite(quietWindowMillis, TimeUnit.MILLISECONDS).<String, Boolean>build().asMap();
+        this.emitted = metricRegistry.meter(MetricRegistry.name(DomainEventDebouncer.class, "emitted"));
+        this.suppressed = metricRegistry.meter(MetricRegistry.name(DomainEventDebouncer.class, "suppressed"));
+    }
+
+    /**
+     * Runs the dispatch unless another event of the domain was dispatched within the quiet window. A dispatch that fails does not count,
+     * so the next event of the domain is dispatched.
+     *
+     * @return true if the dispatch was run
+     */
+    public boolean dispatch(String domainId, Runnable dispatch) {
+        if (recentDomains.putIfAbsent(domainId, Boolean.TRUE) != null) {
+            suppressed.mark();
+            return false;
+        }
+        try {
+            dispatch.run();
+        } catch (RuntimeException e) {
+            recentDomains.remove(domainId, Boolean.TRUE);
+            throw e;
+        }
+        emitted.mark();
+        return true;
+    }
+}
@@ -4,13 +4,13 @@ import io.dropwizard.auth.UnauthorizedHandler;
 
 import javax.ws.rs.core.Response;
 
-import com.bq.corbel.lib.ws.api.error.ErrorResponseFactory;
+import com.bq.corbel.lib.ws.api.error.PrebuiltErrorResponse;
 
 public class JsonUnauthorizedHandler implements UnauthorizedHandler {
 
     @Override
     public Response buildResponse(String prefix, String realm) {
-        return ErrorResponseFactory.getInstance().unauthorized();
+        return PrebuiltErrorResponse.UNAUTHORIZED.build();
     }
 
 }
@@ -0,0 +1,56 @@
+package com.bq.corbel.lib.ws.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Short lived, bounded LRU of the tokens that failed verification, so repeated invalid tokens are rejected without checking their
+ * signature or looking for their rules in Redis. Only a 128 bits hash of each token is kept. Tokens that are valid but have no
+ * authorization rules yet are not recorded, since their rules may be written right after the token is issued.
+ *
+ */
+public class NegativeTokenCache {
+
+    private static final HashFunction TOKEN_HASH = Hashing.murmur3_128();
+
+    private final Cache<HashCode, Boolean> invalidTokens;
+    private final Meter rejected;
+    private final Meter recorded;
+
+    public NegativeTokenCache(long maximumSize, long timeToLiveMillis, MetricRegistry metricRegistry) {
+        this.invalidTokens = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(timeToLiveMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.rejected = metricRegistry.meter(MetricRegistry.name(NegativeTokenCache.class, "rejected"));
+        this.recorded = metricRegistry.meter(MetricRegistry.name(NegativeTokenCache.class, "recorded"));
+        metricRegistry.register(MetricRegistry.name(NegativeTokenCache.class, "size"), (Gauge<Long>) invalidTokens::size);
+    }
+
+    /**
+     * @return true if the token was recently found invalid
+     */
+    public boolean isInvalid(String token) {
+        if (invalidTokens.getIfPresent(hash(token)) != null) {
+            rejected.mark();
+            return true;
+        }
+        return false;
+    }
+
+    public void recordInvalid(String token) {
+        invalidTokens.put(hash(token), Boolean.TRUE);
+        recorded.mark();
+    }
+
+    private HashCode hash(String token) {
+        return TOKEN_HASH.hashString(token, StandardCharsets.UTF_8);
+    }
+}
@@ -1,5 +1,7 @@
 package com.bq.corbel.lib.ws.auth;
 
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
+import com.bq.corbel.lib.ws.auth.rules.AccessRules;
 import com.google.gson.JsonObject;
 
 import java.util.Set;
@@ -11,4 +13,8 @@ import java.util.Set;
  */
 public interface PublicAccessService {
     Set<JsonObject> getDomainPublicRules(String domainId);
+
+    default AccessRules getCompiledDomainPublicRules(String domainId) {
+        return AccessRuleCompiler.getInstance().compile(getDomainPublicRules(domainId));
+    }
 }
@@ -0,0 +1,86 @@
+package com.bq.corbel.lib.ws.auth;
+
+/**
+ * Classification of the path of a request made once by {@link RequestPathClassifier} and shared by all the filters of the request.
+ *
+ */
+public class RequestPath {
+
+    private final String path;
+    private final RequestPathClassifier classifier;
+    private final boolean unAuthenticated;
+    private final String version;
+    private final String beforeVersion;
+    private final String afterVersion;
+    private final String domainId;
+    private final String endpoint;
+    private final boolean withoutDomain;
+
+    RequestPath(String path, RequestPathClassifier classifier, boolean unAuthenticated, String version, String beforeVersion,
+            String afterVersion, String domainId, String endpoint, boolean withoutDomain) {
+        this.path = path;
+        this.classifier = classifier;
+        this.unAuthenticated = unAuthenticated;
+        this.version = version;
+        this.beforeVersion = beforeVersion;
+        this.afterVersion = afterVersion;
+        this.domainId = domainId;
+        this.endpoint = endpoint;
+        this.withoutDomain = withoutDomain;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isUnAuthenticated() {
+        return unAuthenticated;
+    }
+
+    /**
+     * @return the API version without the trailing slash, such as v1.0, or null if the path does not contain one
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the domain of the path if it is a request to one of the endpoints with the domain in the URI, otherwise null
+     */
+    public String getDomainId() {
+        return domainId;
+    }
+
+    /**
+     * @return the endpoint requested, with or without the domain in the URI, or null if the path is not a request to an endpoint
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return true if the path is a request to one of the endpoints without the domain in the URI
+     */
+    public boolean isWithoutDomain() {
+        return withoutDomain;
+    }
+
+    /**
+     * @return the path that the access rules are matched against: the path without the API version and, if it follows the version, the
+     *         given domain
+     */
+    public String getScopeUrl(String domainId) {
+        if (version == null) {
+            return path;
+        }
+        if (domainId != null && afterVersion.length() > domainId.length() && afterVersion.charAt(domainId.length()) == '/'
+                && afterVersion.startsWith(domainId)) {
+            return beforeVersion + afterVersion.substring(domainId.length() + 1);
+        }
+        return beforeVersion + afterVersion;
+    }
+
+    RequestPathClassifier getClassifier() {
+        return classifier;
+    }
+}
@@ -0,0 +1,119 @@
+package com.bq.corbel.lib.ws.auth;
+
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.ws.rs.container.ContainerRequestContext;
+
+/**
+ * Classifies the path of a request once and keeps the {@link RequestPath} in the request properties, so the filters of the request do
+ * not parse it again. The classification is made again if the path changes, as when a filter rewrites the URI of the request, or if it
+ * was made by a classifier with a different configuration.
+ *
+ */
+public class RequestPathClassifier {
+
+    public static final String REQUEST_PATH_PROPERTIES_KEY = "RequestPath";
+
+    private final String unAuthenticatedPathPattern;
+    private final String endpoints;
+    private final Pattern unAuthenticatedPath;
+    private final Pattern requestWithDomainPattern;
+    private final Pattern requestWithoutDomainPattern;
+
+    /**
+     * @param unAuthenticatedPathPattern pattern of the paths that do not need authorization, or null if all of them need it
+     * @param endpoints comma separated endpoints whose paths may include the domain after the API version
+     */
+    public RequestPathClassifier(String unAuthenticatedPathPattern, String endpoints) {
+        this.unAuthenticatedPathPattern = unAuthenticatedPathPattern;
+        this.endpoints = endpoints;
+        this.unAuthenticatedPath = unAuthenticatedPathPattern != null ? Pattern.compile(unAuthenticatedPathPattern) : null;
+        this.requestWithDomainPattern = Pattern.compile("v[0-9]+\\.[0-9]+/[\\w\\-:\\.]+/(" + endpoints.replace(",", "|") + ")(/.*)?");
+        this.requestWithoutDomainPattern = Pattern.compile("v[0-9]+\\.[0-9]+/(" + endpoints.replace(",", "|") + ")(/.*)?");
+    }
+
+    public RequestPath classify(ContainerRequestContext request) {
+        String path = request.getUriInfo().getPath();
+        Object classified = request.getProperty(REQUEST_PATH_PROPERTIES_KEY);
+        if (classified instanceof RequestPath && ((RequestPath) classified).getPath().equals(path)
+                && equals(((RequestPath) classified).getClassifier())) {
+            return (RequestPath) classified;
+        }
+        RequestPath requestPath = classify(path);
+        request.setProperty(REQUEST_PATH_PROPERTIES_KEY, requestPath);
+        return requestPath;
+    }
+
+    public RequestPath classify(String path) {
+        boolean unAuthenticated = unAuthenticatedPath != null && unAuthenticatedPath.matcher(path).matches();
+        String version = null;
+        String beforeVersion = null;
+        String afterVersion = null;
+        int versionStart = findVersion(path);
+        if (versionStart != -1) {
+            int versionEnd = path.indexOf('/', versionStart);
+            version = path.substring(versionStart, versionEnd);
+            beforeVersion = path.substring(0, versionStart);
+            afterVersion = path.substring(versionEnd + 1);
+        }
+        String domainId = null;
+        String endpoint = null;
+        boolean withoutDomain = false;
+        if (versionStart == 0) {
+            Matcher matcher = requestWithDomainPattern.matcher(path);
+            if (matcher.matches()) {
+                domainId = afterVersion.substring(0, afterVersion.indexOf('/'));
+                endpoint = matcher.group(1);
+            } else {
+                matcher = requestWithoutDomainPattern.matcher(path);
+                if (matcher.matches()) {
+                    endpoint = matcher.group(1);
+                    withoutDomain = true;
+                }
+            }
+        }
+        return new RequestPath(path, this, unAuthenticated, version, beforeVersion, afterVersion, domainId, endpoint, withoutDomain);
+    }
+
+    /**
+     * @return the index of the first API version of the path, as v1.0/, or -1 if there is none
+     */
+    private static int findVersion(String path) {
+        for (int start = path.indexOf('v'); start != -1; start = path.indexOf('v', start + 1)) {
+            int index = skipDigits(path, start + 1);
+            if (index > start + 1 && index < path.length() && path.charAt(index) == '.') {
+                int minorEnd = skipDigits(path, index + 1);
+                if (minorEnd > index + 1 && minorEnd < path.length() && path.charAt(minorEnd) == '/') {
+                    return start;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int skipDigits(String path, int index) {
+        while (index < path.length() && path.charAt(index) >= '0' && path.charAt(index) <= '9') {
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RequestPathClassifier)) {
+            return false;
+        }
+        RequestPathClassifier other = (RequestPathClassifier) obj;
+        return Objects.equals(unAuthenticatedPathPattern, other.unAuthenticatedPathPattern) && endpoints.equals(other.endpoints);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(unAuthenticatedPathPattern, endpoints);
+    }
+}
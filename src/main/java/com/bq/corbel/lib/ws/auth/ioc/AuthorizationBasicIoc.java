@@ -1,23 +1,51 @@
 package com.bq.corbel.lib.ws.auth.ioc;
 
+import com.google.common.base.Splitter;
 import com.google.gson.JsonObject;
 import com.bq.corbel.lib.ws.auth.*;
 import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.ioc.condition.InMemoryRulesRepositoryCondition;
+import com.bq.corbel.lib.ws.auth.ioc.condition.RedisCircuitBreakerEnabledCondition;
+import com.bq.corbel.lib.ws.auth.ioc.condition.RedisRulesRepositoryCondition;
+import com.bq.corbel.lib.ws.auth.repository.BatchingAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.CircuitBreaker;
+import com.bq.corbel.lib.ws.auth.repository.CircuitBreakerAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ContentAddressedAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ExecutorAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.InMemoryAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.NearCacheAuthorizationRulesRepository;
 import com.bq.corbel.lib.ws.auth.repository.RedisAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ReplicaRoutingAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ShardedAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.SharedMemoryAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
 import com.bq.corbel.lib.ws.filter.InformationResponseFilter;
 import com.bq.corbel.lib.ws.health.AuthorizationRedisHealthCheck;
+import com.bq.corbel.lib.ws.redis.BinaryJsonRedisSerializer;
 import com.bq.corbel.lib.ws.redis.GsonRedisSerializer;
+import com.bq.corbel.lib.ws.redis.RedisNodes;
+import com.codahale.metrics.MetricRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 import redis.clients.jedis.JedisPoolConfig;
 
 import javax.ws.rs.container.ContainerRequestFilter;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
 
 /**
  * Created by ruben on 12/01/16.
@@ -27,21 +55,135 @@ public class AuthorizationBasicIoc {
 
     private static final Logger LOG = LoggerFactory.getLogger(AuthorizationBasicIoc.class);
 
+    @Autowired private Environment env;
+
+    @Bean
+    @Conditional(InMemoryRulesRepositoryCondition.class)
+    public AuthorizationRulesRepository getInMemoryAuthorizationRulesRepository(@Value("${auth.rules.inMemory.tickMillis:100}") long tickMillis,
+                                                                                @Value("${auth.rules.inMemory.wheelSize:512}") int wheelSize) {
+        LOG.info("Authorization rules kept in memory, they are not shared with other nodes");
+        return new InMemoryAuthorizationRulesRepository(tickMillis, wheelSize);
+    }
+
     @Bean
-    public AuthorizationRulesRepository getAuthorizationRulesRepository(RedisTemplate<String, JsonObject> redisTemplate) {
+    @Conditional(RedisRulesRepositoryCondition.class)
+    public AuthorizationRulesRepository getAuthorizationRulesRepository(RedisNodes redisNodes, JedisConnectionFactory jedisConnectionFactory,
+                                                                        Optional<CircuitBreaker> circuitBreaker,
+                                                                        Optional<MetricRegistry> metricRegistry) throws IOException {
+        List<AuthorizationRulesRepository> shards = new ArrayList<>();
+        for (RedisTemplate<String, JsonObject> node : redisNodes.getNodes()) {
+            shards.add(createRedisRepository(node));
+        }
+        AuthorizationRulesRepository repository = shards.size() == 1 ? shards.get(0) : new ShardedAuthorizationRulesRepository(shards,
+                redisNodes.getNodeNames());
+        repository = withReplicas(repository, redisNodes.getReplicas());
+        if (env.getProperty("auth.redis.batching.enabled", Boolean.class, false)) {
+            repository = new BatchingAuthorizationRulesRepository(repository, env.getProperty("auth.redis.batching.windowMicros",
+                    Long.class, 200L), env.getProperty("auth.redis.batching.maxBatchSize", Integer.class, 64));
+        }
+        int asyncThreads = env.getProperty("auth.redis.async.threads", Integer.class, 0);
+        if (asyncThreads > 0) {
+            repository = new ExecutorAuthorizationRulesRepository(repository, asyncThreads, env.getProperty("auth.redis.async.queueSize",
+                    Integer.class, 1000));
+        }
+        if (circuitBreaker.isPresent()) {
+            repository = new CircuitBreakerAuthorizationRulesRepository(repository, circuitBreaker.get(), env.getProperty(
+                    "auth.redis.circuitBreaker.timeoutMillis", Long.class, 200L), env.getProperty(
+                    "auth.redis.circuitBreaker.staleMaximumSize", Long.class, 10000L), env.getProperty(
+                    "auth.redis.circuitBreaker.maxStalenessMillis", Long.class, 300000L), metricRegistry.orElseGet(MetricRegistry::new));
+        }
+        // under the near cache, so its hits are not deserialized again and the keyspace notifications invalidate it
+        if (env.getProperty("auth.sharedMemory.enabled", Boolean.class, false)) {
+            repository = new SharedMemoryAuthorizationRulesRepository(repository, Paths.get(env.getProperty("auth.sharedMemory.file",
+                    "/dev/shm/corbel-authorization-rules")), env.getProperty("auth.sharedMemory.slots", Integer.class, 16384),
+                    env.getProperty("auth.sharedMemory.slotSize", Integer.class, 4096), env.getProperty(
+                            "auth.sharedMemory.timeToLiveMillis", Long.class, 5000L));
+        }
+        if (env.getProperty("auth.nearCache.enabled", Boolean.class, false)) {
+            repository = withNearCache(repository, redisNodes, jedisConnectionFactory.getDatabase());
+        }
+        return repository;
+    }
+
+    private AuthorizationRulesRepository withReplicas(AuthorizationRulesRepository repository,
+                                                      List<RedisTemplate<String, JsonObject>> replicas) {
+        if (replicas.isEmpty()) {
+            return repository;
+        }
+        List<AuthorizationRulesRepository> replicaRepositories = new ArrayList<>();
+        for (RedisTemplate<String, JsonObject> replica : replicas) {
+            replicaRepositories.add(createRedisRepository(replica));
+        }
+        return new ReplicaRoutingAuthorizationRulesRepository(repository, replicaRepositories, env.getProperty(
+                "auth.redis.replicas.readYourWritesMillis", Long.class, 1000L), env.getProperty("auth.redis.replicas.maximumRecentWrites",
+                Long.class, 10000L));
+    }
+
+    private AuthorizationRulesRepository withNearCache(AuthorizationRulesRepository repository, RedisNodes redisNodes, int database) {
+        List<RedisMessageListenerContainer> listenerContainers = new ArrayList<>();
+        for (RedisTemplate<String, JsonObject> node : redisNodes.getNodes()) {
+            RedisMessageListenerContainer listenerContainer = new RedisMessageListenerContainer();
+            listenerContainer.setConnectionFactory(node.getConnectionFactory());
+            listenerContainer.afterPropertiesSet();
+            listenerContainer.start();
+            listenerContainers.add(listenerContainer);
+        }
+        return new NearCacheAuthorizationRulesRepository(repository, listenerContainers, database, env.getProperty(
+                "auth.nearCache.maximumSize", Long.class, 10000L), env.getProperty("auth.nearCache.maximumBytes", Long.class, 67108864L),
+                env.getProperty("auth.nearCache.timeToLiveMillis", Long.class, 60000L));
+    }
+
+    private AuthorizationRulesRepository createRedisRepository(RedisTemplate<String, JsonObject> redisTemplate) {
+        if (env.getProperty("auth.redis.contentAddressed.enabled", Boolean.class, false)) {
+            return new ContentAddressedAuthorizationRulesRepository(redisTemplate, env.getProperty(
+                    "auth.redis.contentAddressed.maximumCachedRuleSets", Long.class, 10000L));
+        }
         return new RedisAuthorizationRulesRepository(redisTemplate);
     }
 
     @Bean
-    public RedisTemplate<String, JsonObject> redisTemplate(JedisConnectionFactory jedisConnectionFactory) {
+    @Conditional(RedisRulesRepositoryCondition.class)
+    public RedisNodes redisNodes(RedisTemplate<String, JsonObject> redisTemplate, JedisConnectionFactory jedisConnectionFactory,
+                                 @Value("${auth.redis.nodes:}") String nodes, @Value("${auth.redis.replicas:}") String replicas) {
+        List<String> nodeNames = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(nodes);
+        List<String> replicaNames = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(replicas);
+        if (!nodeNames.isEmpty()) {
+            LOG.info("Authorization rules sharded across Redis nodes {}", nodeNames);
+            if (!replicaNames.isEmpty()) {
+                LOG.warn("Redis replicas {} are ignored because the authorization rules are sharded", replicaNames);
+                replicaNames = Collections.emptyList();
+            }
+        } else if (!replicaNames.isEmpty()) {
+            LOG.info("Authorization rules read from Redis replicas {}", replicaNames);
+        }
+        return new RedisNodes(redisTemplate, jedisConnectionFactory, nodeNames, replicaNames);
+    }
+
+    @Bean
+    @Conditional({RedisRulesRepositoryCondition.class, RedisCircuitBreakerEnabledCondition.class})
+    public CircuitBreaker redisCircuitBreaker(@Value("${auth.redis.circuitBreaker.windowSize:100}") int windowSize,
+                                              @Value("${auth.redis.circuitBreaker.minimumCalls:20}") int minimumCalls,
+                                              @Value("${auth.redis.circuitBreaker.failureRatePercentage:50}") int failureRatePercentage,
+                                              @Value("${auth.redis.circuitBreaker.openMillis:5000}") long openMillis) {
+        return new CircuitBreaker(windowSize, minimumCalls, failureRatePercentage, openMillis);
+    }
+
+    @Bean
+    @Conditional(RedisRulesRepositoryCondition.class)
+    public RedisTemplate<String, JsonObject> redisTemplate(JedisConnectionFactory jedisConnectionFactory,
+                                                           @Value("${auth.redis.serializer:json}") String serializer,
+                                                           @Value("${auth.redis.serializer.compressionThreshold:512}") int compressionThreshold) {
         final RedisTemplate<String, JsonObject> template = new RedisTemplate<>();
         template.setConnectionFactory(jedisConnectionFactory);
         template.setKeySerializer(new StringRedisSerializer());
-        template.setValueSerializer(new GsonRedisSerializer<JsonObject>());
+        // binary values are only readable by versions that include BinaryJsonRedisSerializer, enable it once all of them are updated
+        template.setValueSerializer("binary".equalsIgnoreCase(serializer) ? new BinaryJsonRedisSerializer<JsonObject>(compressionThreshold)
+                : new GsonRedisSerializer<JsonObject>());
         return template;
     }
 
     @Bean
+    @Conditional(RedisRulesRepositoryCondition.class)
     public JedisConnectionFactory jedisConnectionFactory(JedisPoolConfig jedisPoolConfig, @Value("${auth.redis.host:@null}") String host,
                                                          @Value("${auth.redis.port:@null}") Integer port, @Value("${auth.redis.password:}") String password) {
         JedisConnectionFactory connFactory = new JedisConnectionFactory(jedisPoolConfig);
@@ -56,6 +198,7 @@ public class AuthorizationBasicIoc {
     }
 
     @Bean
+    @Conditional(RedisRulesRepositoryCondition.class)
     public JedisPoolConfig jedisPoolConfig(@Value("${auth.redis.maxIdle:@null}") Integer maxIdle,
                                            @Value("${auth.redis.maxTotal:@null}") Integer maxTotal, @Value("${auth.redis.minIdle:@null}") Integer minIdle,
                                            @Value("${auth.redis.testOnBorrow:@null}") Boolean testOnBorrow,
@@ -104,14 +247,21 @@ public class AuthorizationBasicIoc {
         return new DefaultAuthorizationRulesService(authorizationRulesRepository);
     }
 
+    @Bean
+    public AccessRuleCompiler accessRuleCompiler(@Value("${auth.rules.cache.maximumSize:10000}") long maximumSize,
+                                                 @Value("${auth.rules.combinedUriMatcher.minRules:0}") int combinedUriMatcherMinRules) {
+        return new AccessRuleCompiler(maximumSize, combinedUriMatcherMinRules);
+    }
+
     @Bean
     public AuthorizationInfoProvider getAuthorizationInfoProvider() {
         return new AuthorizationInfoProvider();
     }
 
     @Bean
-    public AuthorizationRedisHealthCheck getAuthorizationRedisHealthCheck(RedisTemplate<String, JsonObject> redisTemplate) {
-        return new AuthorizationRedisHealthCheck(redisTemplate);
+    @Conditional(RedisRulesRepositoryCondition.class)
+    public AuthorizationRedisHealthCheck getAuthorizationRedisHealthCheck(RedisNodes redisNodes, Optional<CircuitBreaker> circuitBreaker) {
+        return new AuthorizationRedisHealthCheck(redisNodes.getAll(), circuitBreaker.orElse(null));
     }
 
     @Bean
@@ -1,15 +1,29 @@
 package com.bq.corbel.lib.ws.auth.ioc;
 
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
 
 import com.bq.corbel.lib.token.ioc.TokenIoc;
 import com.bq.corbel.lib.token.parser.TokenParser;
 import com.bq.corbel.lib.ws.auth.*;
+import com.bq.corbel.lib.ws.auth.ioc.condition.AuthorizationCacheSnapshotEnabledCondition;
+import com.bq.corbel.lib.ws.auth.ioc.condition.AuthorizationDecisionCacheEnabledCondition;
+import com.bq.corbel.lib.ws.auth.ioc.condition.NegativeTokenCacheEnabledCondition;
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
+import com.bq.corbel.lib.ws.metrics.DropwizardMetricsIoc;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.UnauthorizedHandler;
 import io.dropwizard.auth.oauth.OAuthFactory;
@@ -18,14 +32,59 @@ import io.dropwizard.auth.oauth.OAuthFactory;
  * @author Alexander De Leon
  * 
  */
-@Configuration @Import({AuthorizationBasicIoc.class, TokenIoc.class}) public class AuthorizationCommonIoc {
+@Configuration @Import({AuthorizationBasicIoc.class, TokenIoc.class, DropwizardMetricsIoc.class}) public class AuthorizationCommonIoc {
 
     private static final Logger LOG = LoggerFactory.getLogger(AuthorizationCommonIoc.class);
 
+    @Bean
+    @Primary
+    public TokenParser cachingTokenParser(@Qualifier("tokenParser") TokenParser tokenParser,
+            @Value("${auth.tokenCache.maximumSize:10000}") long maximumSize,
+            @Value("${auth.tokenCache.maxTimeToLiveMillis:3600000}") long maxTimeToLiveMillis) {
+        return new CachingTokenParser(tokenParser, maximumSize, maxTimeToLiveMillis);
+    }
+
     @Bean
     public Authenticator<String, AuthorizationInfo> authenticator(@Value("${auth.audience}") String audience, TokenParser tokenParser,
-            AuthorizationRulesService authorizationRulesService) {
-        return new BearerTokenAuthenticator(audience, authorizationRulesService, tokenParser);
+            AuthorizationRulesService authorizationRulesService, Optional<NegativeTokenCache> negativeTokenCache,
+            AccessRuleCompiler accessRuleCompiler) {
+        return new BearerTokenAuthenticator(audience, authorizationRulesService, tokenParser, negativeTokenCache.orElse(null),
+                accessRuleCompiler);
+    }
+
+    @Bean
+    @Conditional(NegativeTokenCacheEnabledCondition.class)
+    public NegativeTokenCache negativeTokenCache(@Value("${auth.negativeTokenCache.maximumSize:100000}") long maximumSize,
+            @Value("${auth.negativeTokenCache.timeToLiveMillis:10000}") long timeToLiveMillis, MetricRegistry metricRegistry) {
+        return new NegativeTokenCache(maximumSize, timeToLiveMillis, metricRegistry);
+    }
+
+    @Bean
+    @Conditional(AuthorizationDecisionCacheEnabledCondition.class)
+    public AuthorizationDecisionCache authorizationDecisionCache(@Value("${auth.audience}") String audience, @Value("${auth.decisionCache.maximumSize:10000}") long maximumSize,
+            @Value("${auth.decisionCache.maxTimeToLiveMillis:30000}") long maxTimeToLiveMillis, MetricRegistry metricRegistry) {
+        return new AuthorizationDecisionCache(audience, maximumSize, maxTimeToLiveMillis, metricRegistry);
+    }
+
+    @Bean
+    @Conditional(AuthorizationCacheSnapshotEnabledCondition.class)
+    public AuthorizationCacheSnapshot authorizationCacheSnapshot(AuthorizationRulesRepository authorizationRulesRepository,
+            AccessRuleCompiler accessRuleCompiler,
+            @Value("${auth.snapshot.file:/var/tmp/corbel-authorization-snapshot}") String file,
+            @Value("${auth.snapshot.intervalMillis:60000}") long intervalMillis,
+            @Value("${auth.snapshot.keptKeys:}") String keptKeys,
+            @Value("${auth.snapshot.maximumRules:10000}") int maximumRules,
+            @Value("${auth.snapshot.batchSize:500}") int batchSize,
+            @Value("${auth.snapshot.maximumAgeMillis:300000}") long maximumAgeMillis) {
+        // by default only the public scopes of the domains, whose keys contain no token
+        Pattern keptKeysPattern = keptKeys.isEmpty() ? Pattern.compile(".*" + Pattern.quote(DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX
+                + "|") + ".*") : Pattern.compile(keptKeys);
+        AuthorizationCacheSnapshot snapshot = new AuthorizationCacheSnapshot(Paths.get(file), authorizationRulesRepository,
+                accessRuleCompiler, keptKeysPattern, maximumRules, batchSize, maximumAgeMillis);
+        // loaded while the context starts, so before the instance serves requests or reports healthy
+        snapshot.load();
+        snapshot.start(intervalMillis);
+        return snapshot;
     }
 
     @Bean
@@ -1,5 +1,7 @@
 package com.bq.corbel.lib.ws.auth.ioc;
 
+import java.util.Optional;
+
 import javax.ws.rs.container.ContainerRequestFilter;
 
 import com.bq.corbel.lib.ws.auth.ioc.condition.PublicAccessDisabledCondition;
@@ -25,9 +27,11 @@ import io.dropwizard.auth.oauth.OAuthFactory;
             CookieOAuthFactory<AuthorizationInfo> cookieOauthProvider, @Value("${auth.enabled}") boolean authEnabled,
             @Value("${auth.unAuthenticatedPath}") String unAuthenticatedPath,
             @Value("${auth.checkDomain.enabled:false}") boolean checkDomain,
-            @Value("${filter.allowRequestWithoutDomainInUri.endpoints:}") String endpoints) {
+            @Value("${filter.allowRequestWithoutDomainInUri.endpoints:}") String endpoints,
+            Optional<AuthorizationDecisionCache> decisionCache) {
         if (authEnabled) {
-            return new AuthorizationRequestFilter(oauthProvider, cookieOauthProvider, unAuthenticatedPath, checkDomain, endpoints);
+            return new AuthorizationRequestFilter(oauthProvider, cookieOauthProvider, null, unAuthenticatedPath, checkDomain, endpoints,
+                    decisionCache.orElse(null));
         } else {
             LOG.warn("Authorization validation is disabled. The system runs in INSECURE mode");
             return emptyFilter();
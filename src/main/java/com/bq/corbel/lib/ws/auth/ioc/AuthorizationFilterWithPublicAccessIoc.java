@@ -1,16 +1,20 @@
 package com.bq.corbel.lib.ws.auth.ioc;
 
+import java.util.Optional;
+
 import javax.ws.rs.container.ContainerRequestFilter;
 
 import com.bq.corbel.eventbus.ioc.EventBusIoc;
 import com.bq.corbel.eventbus.service.EventBus;
 import com.bq.corbel.lib.ws.auth.ioc.condition.PublicAccessEnabledCondition;
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.*;
 
 import com.bq.corbel.lib.ws.auth.*;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.auth.oauth.OAuthFactory;
 
 /**
@@ -25,8 +29,15 @@ import io.dropwizard.auth.oauth.OAuthFactory;
     @Bean
     public PublicAccessService getPublicAccessService(AuthorizationRulesService authorizationRulesService,
             @Value("${auth.waitTimeForPublishPublicScopes:500}") Integer waitTimeForPublishPublicScopes, EventBus eventBus,
-            @Value("${auth.audience}") String audience) {
-        return new DefaultPublicAccessService(authorizationRulesService, waitTimeForPublishPublicScopes, eventBus, audience);
+            @Value("${auth.audience}") String audience, @Value("${auth.publicScopes.cache.refreshMillis:0}") long refreshMillis,
+            @Value("${auth.publicScopes.cache.expireMillis:300000}") long expireMillis,
+            @Value("${auth.publicScopes.event.quietWindowMillis:5000}") long quietWindowMillis,
+            @Value("${auth.publicScopes.event.maximumDomains:100000}") long maximumDomains, Optional<MetricRegistry> metricRegistry,
+            AccessRuleCompiler accessRuleCompiler) {
+        DomainEventDebouncer eventDebouncer = quietWindowMillis > 0 ? new DomainEventDebouncer(quietWindowMillis, maximumDomains,
+                metricRegistry.orElseGet(MetricRegistry::new)) : null;
+        return new DefaultPublicAccessService(authorizationRulesService, waitTimeForPublishPublicScopes, eventBus, audience, refreshMillis,
+                expireMillis, eventDebouncer, accessRuleCompiler);
     }
 
     @Bean
@@ -34,10 +45,11 @@ import io.dropwizard.auth.oauth.OAuthFactory;
             CookieOAuthFactory<AuthorizationInfo> cookieOauthProvider, PublicAccessService publicAccessService,
             @Value("${auth.enabled}") boolean authEnabled, @Value("${auth.unAuthenticatedPath}") String unAuthenticatedPath,
             @Value("${auth.checkDomain.enabled:false}") boolean checkDomain,
-            @Value("${filter.allowRequestWithoutDomainInUri.endpoints:}") String endpoints) {
+            @Value("${filter.allowRequestWithoutDomainInUri.endpoints:}") String endpoints,
+            Optional<AuthorizationDecisionCache> decisionCache) {
         if (authEnabled) {
             return new AuthorizationRequestFilter(oauthProvider, cookieOauthProvider, publicAccessService, unAuthenticatedPath, checkDomain,
-                    endpoints);
+                    endpoints, decisionCache.orElse(null));
         } else {
             LOG.warn("Authorization validation is disabled. The system runs in INSECURE mode");
             return emptyFilter();
@@ -0,0 +1,15 @@
+package com.bq.corbel.lib.ws.auth.ioc.condition;
+
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+public class AuthorizationCacheSnapshotEnabledCondition implements Condition {
+
+    @Override
+    public boolean matches(ConditionContext conditionContext, AnnotatedTypeMetadata annotatedTypeMetadata) {
+        // only the near cache keeps rules in memory to be written
+        return conditionContext.getEnvironment().getProperty("auth.snapshot.enabled", Boolean.class, false)
+                && conditionContext.getEnvironment().getProperty("auth.nearCache.enabled", Boolean.class, false);
+    }
+}
@@ -0,0 +1,13 @@
+package com.bq.corbel.lib.ws.auth.ioc.condition;
+
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+public class RedisRulesRepositoryCondition implements Condition {
+
+    @Override
+    public boolean matches(ConditionContext conditionContext, AnnotatedTypeMetadata annotatedTypeMetadata) {
+        return !"memory".equalsIgnoreCase(conditionContext.getEnvironment().getProperty("auth.rules.repository", "redis"));
+    }
+}
@@ -2,22 +2,70 @@ package com.bq.corbel.lib.ws.auth.repository;
 
 import com.google.gson.JsonObject;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Alexander De Leon
  * 
  */
-public interface AuthorizationRulesRepository {
+public interface AuthorizationRulesRepository extends AutoCloseable {
 
+	/**
+	 * Adds the rules to those already saved in the key, as SADD does, and sets the expiration of the key. Every implementation merges
+	 * the rules, none of them replaces the rules of the key.
+	 */
 	void save(String key, long timeToExpireInMillis, JsonObject... rules);
 
+	/**
+	 * Saves the rules of several keys, all of them expiring after the same time, merging them as {@link #save(String, long, JsonObject...)}
+	 * does. Implementations should send all the writes at once.
+	 */
+	default void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		rulesByKey.forEach((key, rules) -> save(key, timeToExpireInMillis, rules.toArray(new JsonObject[rules.size()])));
+	}
+
 	void delete(String key);
 
 	Set<JsonObject> get(String key);
 
+	/**
+	 * @return the rules of every key, empty for the keys without rules. Implementations should read all the keys at once.
+	 */
+	default Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		Map<String, Set<JsonObject>> rules = new HashMap<>();
+		for (String key : keys) {
+			rules.put(key, get(key));
+		}
+		return rules;
+	}
+
+	/**
+	 * @return the rules of the key with their time to expire when the implementation can read both at once, otherwise the rules alone
+	 *         with an unknown time to expire
+	 */
+	default ExpiringRules getWithTimeToExpire(String key) {
+		return new ExpiringRules(get(key), null);
+	}
+
 	Long getTimeToExpire(String key);
 
+	/**
+	 * @return the time to expire of every key, as returned by {@link #getTimeToExpire(String)}. Implementations should read all the keys
+	 *         at once.
+	 */
+	default Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		Map<String, Long> timesToExpire = new HashMap<>();
+		for (String key : keys) {
+			timesToExpire.put(key, getTimeToExpire(key));
+		}
+		return timesToExpire;
+	}
+
 	void addRules(String key, JsonObject... rules);
 
 	void removeRules(String key, JsonObject... rules);
@@ -27,4 +75,46 @@ public interface AuthorizationRulesRepository {
 	String getKeyForAuthorizationRules(String token, String key);
 
     void deleteByToken(String token);
+
+	/**
+	 * @return up to the given number of the rules kept in memory by a caching implementation. The default implementation keeps nothing
+	 *         in memory.
+	 */
+	default Map<String, Set<JsonObject>> getCachedRules(int maximumEntries) {
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * Notifies that the key was changed by another client, as reported by the Redis keyspace notifications, so the implementations
+	 * that cache or route reads stop trusting what they knew of the key. The default implementation ignores it.
+	 */
+	default void keyChanged(String key) {}
+
+	/**
+	 * Asynchronous version of {@link #get(String)}. The default implementation runs synchronously in the calling thread.
+	 */
+	default CompletableFuture<Set<JsonObject>> getAsync(String key) {
+		return CompletableFuture.completedFuture(get(key));
+	}
+
+	/**
+	 * Asynchronous version of {@link #getTimeToExpire(String)}. The default implementation runs synchronously in the calling thread.
+	 */
+	default CompletableFuture<Long> getTimeToExpireAsync(String key) {
+		return CompletableFuture.completedFuture(getTimeToExpire(key));
+	}
+
+	/**
+	 * Asynchronous version of {@link #existsRules(String)}. The default implementation runs synchronously in the calling thread.
+	 */
+	default CompletableFuture<Boolean> existsRulesAsync(String key) {
+		return CompletableFuture.completedFuture(existsRules(key));
+	}
+
+	/**
+	 * Releases the resources of the repository and closes the repositories it delegates to. The default implementation has nothing to
+	 * release.
+	 */
+	@Override
+	default void close() {}
 }
\ No newline at end of file
@@ -0,0 +1,182 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Throwables;
+import com.google.gson.JsonObject;
+
+/**
+ * {@link AuthorizationRulesRepository} that groups the {@link #get(String)} calls made concurrently by different threads into a
+ * single {@link AuthorizationRulesRepository#getAll(Collection)} of its delegate. The first caller of a batch waits for the batch
+ * window, or less if the batch reaches its maximum size before, and then reads all the keys of the batch for every waiting caller. A
+ * key requested several times in a batch is read only once. No additional threads are used. Other methods are run directly by the
+ * delegate.
+ *
+ */
+public class BatchingAuthorizationRulesRepository implements AuthorizationRulesRepository {
+
+	private final AuthorizationRulesRepository delegate;
+	private final long windowNanos;
+	private final int maxBatchSize;
+	private final Object lock = new Object();
+	private Batch currentBatch;
+
+	/**
+	 * @param windowMicros time the first caller of a batch waits for other callers
+	 * @param maxBatchSize number of distinct keys that makes a batch be read without waiting for the window
+	 */
+	public BatchingAuthorizationRulesRepository(AuthorizationRulesRepository delegate, long windowMicros, int maxBatchSize) {
+		this.delegate = delegate;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		Batch batch;
+		CompletableFuture<Set<JsonObject>> rules;
+		boolean leader = false;
+		boolean full;
+		synchronized (lock) {
+			if (currentBatch == null) {
+				currentBatch = new Batch();
+				leader = true;
+			}
+			batch = currentBatch;
+			rules = batch.rules.computeIfAbsent(key, k -> new CompletableFuture<>());
+			full = batch.rules.size() >= maxBatchSize;
+			if (full) {
+				currentBatch = null;
+			}
+		}
+		if (full) {
+			read(batch);
+		} else if (leader) {
+			waitWindow(rules);
+			synchronized (lock) {
+				// the batch may have been closed meanwhile by a caller that filled it, which then reads it
+				full = currentBatch != batch;
+				if (!full) {
+					currentBatch = null;
+				}
+			}
+			if (!full) {
+				read(batch);
+			}
+		}
+		try {
+			return rules.join();
+		} catch (CompletionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	/**
+	 * Not batched, as the delegate reads the rules and their time to expire at once, which a batch of {@link #get(String)} would lose.
+	 */
+	@Override
+	public ExpiringRules getWithTimeToExpire(String key) {
+		return delegate.getWithTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		return delegate.getAll(keys);
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		delegate.save(key, timeToExpireInMillis, rules);
+	}
+
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		delegate.saveAll(rulesByKey, timeToExpireInMillis);
+	}
+
+	@Override
+	public void delete(String key) {
+		delegate.delete(key);
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		return delegate.getTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		return delegate.getTimeToExpireAll(keys);
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		delegate.addRules(key, rules);
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		delegate.removeRules(key, rules);
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		return delegate.existsRules(key);
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return delegate.getKeyForAuthorizationRules(token, key);
+	}
+
+	@Override
+	public void deleteByToken(String token) {
+		delegate.deleteByToken(token);
+	}
+
+	@Override
+	public void keyChanged(String key) {
+		delegate.keyChanged(key);
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+
+	private void waitWindow(CompletableFuture<Set<JsonObject>> rules) {
+		// returns before the window if the batch is read by a caller that filled it
+		try {
+			rules.get(windowNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException ignored) {}
+	}
+
+	private void read(Batch batch) {
+		try {
+			Map<String, Set<JsonObject>> rules = delegate.getAll(batch.rules.keySet());
+			batch.rules.forEach((key, future) -> {
+				Set<JsonObject> keyRules = rules.get(key);
+				future.complete(keyRules != null ? keyRules : Collections.emptySet());
+			});
+		} catch (RuntimeException | Error e) {
+			// every caller of the batch must be released, whatever the error
+			batch.rules.values().forEach(future -> future.completeExceptionally(e));
+		}
+	}
+
+	private static class Batch {
+		// only modified while the batch is the current one, and only read once it is not
+		private final Map<String, CompletableFuture<Set<JsonObject>>> rules = new LinkedHashMap<>();
+	}
+}
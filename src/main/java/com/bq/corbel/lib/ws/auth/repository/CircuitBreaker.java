@@ -0,0 +1,144 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+/**
+ * Circuit breaker that opens when the rate of failed calls in a window of the last calls reaches a threshold. While open every call
+ * is rejected. Once the open time has passed a single trial call is allowed, which closes the breaker if it succeeds or opens it again
+ * if it fails. Every allowed call must report its result with {@link #onSuccess(long)} or {@link #onFailure(long)}, or with
+ * {@link #onNotCalled(long)} if it was not made after all, passing the generation returned by {@link #acquire()}. The generation changes
+ * with every change of state, so calls that started before the breaker opened do not close it, or open it again, once they finish.
+ *
+ */
+public class CircuitBreaker {
+
+	public static final long NOT_PERMITTED = -1;
+
+	public enum State {
+		CLOSED, HALF_OPEN, OPEN
+	}
+
+	private final boolean[] window;
+	private final int minimumCalls;
+	private final int failureRatePercentage;
+	private final long openMillis;
+
+	private State state = State.CLOSED;
+	private int calls;
+	private int failures;
+	private int next;
+	private long openedAt;
+	private boolean trialInProgress;
+	private long generation;
+
+	/**
+	 * @param windowSize number of the last calls used to compute the failure rate
+	 * @param minimumCalls number of calls in the window required before the breaker can open
+	 * @param failureRatePercentage percentage of failed calls in the window that opens the breaker
+	 * @param openMillis time the breaker stays open before allowing a trial call
+	 */
+	public CircuitBreaker(int windowSize, int minimumCalls, int failureRatePercentage, long openMillis) {
+		if (windowSize <= 0 || minimumCalls > windowSize) {
+			throw new IllegalArgumentException("The window must be positive and not smaller than the minimum calls");
+		}
+		this.window = new boolean[windowSize];
+		this.minimumCalls = minimumCalls;
+		this.failureRatePercentage = failureRatePercentage;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return the generation of the breaker to report the result of the call with, or {@link #NOT_PERMITTED} if the call can not be
+	 *         made
+	 */
+	public synchronized long acquire() {
+		switch (state) {
+			case CLOSED:
+				return generation;
+			case OPEN:
+				if (System.currentTimeMillis() - openedAt < openMillis) {
+					return NOT_PERMITTED;
+				}
+				transition(State.HALF_OPEN);
+				trialInProgress = true;
+				return generation;
+			default:
+				if (trialInProgress) {
+					return NOT_PERMITTED;
+				}
+				trialInProgress = true;
+				return generation;
+		}
+	}
+
+	public synchronized void onSuccess(long callGeneration) {
+		if (callGeneration != generation) {
+			return;
+		}
+		if (state == State.HALF_OPEN) {
+			close();
+		} else if (state == State.CLOSED) {
+			record(false);
+		}
+	}
+
+	public synchronized void onFailure(long callGeneration) {
+		if (callGeneration != generation) {
+			return;
+		}
+		if (state == State.HALF_OPEN) {
+			open();
+		} else if (state == State.CLOSED) {
+			record(true);
+			if (calls >= minimumCalls && failures * 100 >= failureRatePercentage * calls) {
+				open();
+			}
+		}
+	}
+
+	/**
+	 * Reports that an allowed call was not made, as when it was rejected by a full executor, so it is neither a success nor a failure
+	 * of the backend. A trial call not made lets another one through.
+	 */
+	public synchronized void onNotCalled(long callGeneration) {
+		if (callGeneration == generation && state == State.HALF_OPEN) {
+			trialInProgress = false;
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	private void record(boolean failure) {
+		if (calls == window.length) {
+			if (window[next]) {
+				failures--;
+			}
+		} else {
+			calls++;
+		}
+		window[next] = failure;
+		if (failure) {
+			failures++;
+		}
+		next = (next + 1) % window.length;
+	}
+
+	private void transition(State newState) {
+		state = newState;
+		generation++;
+	}
+
+	private void open() {
+		transition(State.OPEN);
+		openedAt = System.currentTimeMillis();
+		trialInProgress = false;
+	}
+
+	private void close() {
+		transition(State.CLOSED);
+		trialInProgress = false;
+		calls = 0;
+		failures = 0;
+		next = 0;
+	}
+}
@@ -0,0 +1,360 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * {@link AuthorizationRulesRepository} that protects the service from a slow or failing Redis backend with a {@link CircuitBreaker}.
+ * Synchronous calls, writes and batch reads included, run in the calling thread, bounded by the timeout of the Redis connection, and those
+ * slower than the timeout are failures of the breaker although their result is returned. Asynchronous reads fail with a
+ * {@link TimeoutException} when the delegate does not answer in time, which needs them to run in other threads, as in
+ * {@link ExecutorAuthorizationRulesRepository}. Timeouts and errors are failures of the breaker, calls rejected by a full executor are not.
+ * <p>
+ * The rules read recently are kept in a bounded stale cache. When the breaker is open, or a read fails, they are returned for up to the
+ * maximum staleness instead of failing, and never after their key expires when the delegate reports its time to expire. Reads of unknown
+ * keys and writes fail fast with a {@link CircuitBreakerOpenException} while the breaker is open.
+ *
+ */
+public class CircuitBreakerAuthorizationRulesRepository implements AuthorizationRulesRepository {
+
+	private final AuthorizationRulesRepository delegate;
+	private final CircuitBreaker circuitBreaker;
+	private final long timeoutMillis;
+	private final Cache<String, StaleRules> staleRules;
+	private final ScheduledThreadPoolExecutor timeoutScheduler;
+	private final Meter rejected;
+	private final Meter timeouts;
+	private final Meter staleServed;
+
+	/**
+	 * @param timeoutMillis maximum time of a call
+	 * @param staleMaximumSize maximum number of rule sets kept to be served while the breaker is open
+	 * @param maxStalenessMillis maximum time since a rule set was read for it to be served while the breaker is open
+	 */
+	public CircuitBreakerAuthorizationRulesRepository(AuthorizationRulesRepository delegate, CircuitBreaker circuitBreaker,
+			long timeoutMillis, long staleMaximumSize, long maxStalenessMillis, MetricRegistry metricRegistry) {
+		this.delegate = delegate;
+		this.circuitBreaker = circuitBreaker;
+		this.timeoutMillis = timeoutMillis;
+		this.staleRules = CacheBuilder.newBuilder().maximumSize(staleMaximumSize)
+				.expireAfterWrite(maxStalenessMillis, TimeUnit.MILLISECONDS).build();
+		this.timeoutScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("authorization-rules-timeout-%d").build());
+		timeoutScheduler.setRemoveOnCancelPolicy(true);
+		this.rejected = metricRegistry.meter(MetricRegistry.name(CircuitBreakerAuthorizationRulesRepository.class, "rejected"));
+		this.timeouts = metricRegistry.meter(MetricRegistry.name(CircuitBreakerAuthorizationRulesRepository.class, "timeouts"));
+		this.staleServed = metricRegistry.meter(MetricRegistry.name(CircuitBreakerAuthorizationRulesRepository.class, "staleServed"));
+		metricRegistry.register(MetricRegistry.name(CircuitBreakerAuthorizationRulesRepository.class, "state"),
+				(Gauge<Integer>) () -> circuitBreaker.getState().ordinal());
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		// read with its time to expire, so the stale copy is not served after the key expires
+		return getWithTimeToExpire(key).getRules();
+	}
+
+	@Override
+	public CompletableFuture<Set<JsonObject>> getAsync(String key) {
+		return call(repository -> repository.getAsync(key)).handle((rules, error) -> {
+			if (error == null) {
+				remember(key, rules, null);
+				return rules;
+			}
+			Set<JsonObject> stale = getStale(key);
+			if (stale == null) {
+				throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+			}
+			staleServed.mark();
+			return stale;
+		});
+	}
+
+	@Override
+	public ExpiringRules getWithTimeToExpire(String key) {
+		ExpiringRules rules;
+		try {
+			rules = callSync(() -> delegate.getWithTimeToExpire(key));
+		} catch (RuntimeException e) {
+			Set<JsonObject> stale = getStale(key);
+			if (stale == null) {
+				throw e;
+			}
+			staleServed.mark();
+			return new ExpiringRules(stale, null);
+		}
+		remember(key, rules.getRules(), rules.getTimeToExpire());
+		return rules;
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		Map<String, Set<JsonObject>> rules;
+		try {
+			rules = callSync(() -> delegate.getAll(keys));
+		} catch (RuntimeException e) {
+			Map<String, Set<JsonObject>> stale = new HashMap<>();
+			for (String key : keys) {
+				Set<JsonObject> keyRules = getStale(key);
+				if (keyRules == null) {
+					throw e;
+				}
+				stale.put(key, keyRules);
+			}
+			staleServed.mark(stale.size());
+			return stale;
+		}
+		rules.forEach((key, keyRules) -> remember(key, keyRules, null));
+		return rules;
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		try {
+			return callSync(() -> delegate.existsRules(key));
+		} catch (RuntimeException e) {
+			if (getStale(key) == null) {
+				throw e;
+			}
+			staleServed.mark();
+			return true;
+		}
+	}
+
+	@Override
+	public CompletableFuture<Boolean> existsRulesAsync(String key) {
+		return call(repository -> repository.existsRulesAsync(key)).handle((exists, error) -> {
+			if (error == null) {
+				return exists;
+			}
+			if (getStale(key) == null) {
+				throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+			}
+			staleServed.mark();
+			return true;
+		});
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		return callSync(() -> delegate.getTimeToExpire(key));
+	}
+
+	@Override
+	public CompletableFuture<Long> getTimeToExpireAsync(String key) {
+		return call(repository -> repository.getTimeToExpireAsync(key));
+	}
+
+	@Override
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		return callSync(() -> delegate.getTimeToExpireAll(keys));
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		staleRules.invalidate(key);
+		callSync(() -> {
+			delegate.save(key, timeToExpireInMillis, rules);
+			return null;
+		});
+	}
+
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		staleRules.invalidateAll(rulesByKey.keySet());
+		callSync(() -> {
+			delegate.saveAll(rulesByKey, timeToExpireInMillis);
+			return null;
+		});
+	}
+
+	@Override
+	public void delete(String key) {
+		staleRules.invalidate(key);
+		callSync(() -> {
+			delegate.delete(key);
+			return null;
+		});
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		staleRules.invalidate(key);
+		callSync(() -> {
+			delegate.addRules(key, rules);
+			return null;
+		});
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		staleRules.invalidate(key);
+		callSync(() -> {
+			delegate.removeRules(key, rules);
+			return null;
+		});
+	}
+
+	@Override
+	public void deleteByToken(String token) {
+		String prefix = delegate.getKeyForAuthorizationRules(token, "");
+		staleRules.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+		callSync(() -> {
+			delegate.deleteByToken(token);
+			return null;
+		});
+	}
+
+	@Override
+	public void keyChanged(String key) {
+		staleRules.invalidate(key);
+		delegate.keyChanged(key);
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return delegate.getKeyForAuthorizationRules(token, key);
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	@Override
+	public void close() {
+		timeoutScheduler.shutdownNow();
+		delegate.close();
+	}
+
+	private <T> CompletableFuture<T> call(Function<AuthorizationRulesRepository, CompletableFuture<T>> operation) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		long generation = circuitBreaker.acquire();
+		if (generation == CircuitBreaker.NOT_PERMITTED) {
+			rejected.mark();
+			result.completeExceptionally(new CircuitBreakerOpenException("Redis circuit breaker is open"));
+			return result;
+		}
+		// only the first of the call and its timeout reports the result, before releasing the callers
+		AtomicBoolean reported = new AtomicBoolean();
+		ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> {
+			if (reported.compareAndSet(false, true)) {
+				timeouts.mark();
+				circuitBreaker.onFailure(generation);
+				result.completeExceptionally(new TimeoutException("Redis did not answer in " + timeoutMillis + " ms"));
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		CompletableFuture<T> call;
+		try {
+			call = operation.apply(delegate);
+		} catch (RuntimeException | Error e) {
+			call = new CompletableFuture<>();
+			call.completeExceptionally(e);
+		}
+		call.whenComplete((value, error) -> {
+			timeout.cancel(false);
+			if (reported.compareAndSet(false, true)) {
+				if (error == null) {
+					circuitBreaker.onSuccess(generation);
+					result.complete(value);
+				} else {
+					if (isRejected(error)) {
+						circuitBreaker.onNotCalled(generation);
+					} else {
+						circuitBreaker.onFailure(generation);
+					}
+					result.completeExceptionally(error);
+				}
+			}
+		});
+		return result;
+	}
+
+	private <T> T callSync(Supplier<T> operation) {
+		long generation = circuitBreaker.acquire();
+		if (generation == CircuitBreaker.NOT_PERMITTED) {
+			rejected.mark();
+			throw new CircuitBreakerOpenException("Redis circuit breaker is open");
+		}
+		long start = System.nanoTime();
+		T result;
+		try {
+			result = operation.get();
+		} catch (RejectedExecutionException e) {
+			circuitBreaker.onNotCalled(generation);
+			throw e;
+		} catch (RuntimeException | Error e) {
+			circuitBreaker.onFailure(generation);
+			throw e;
+		}
+		if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+			// the result is already here, but a slow backend must open the breaker as a failing one does
+			timeouts.mark();
+			circuitBreaker.onFailure(generation);
+		} else {
+			circuitBreaker.onSuccess(generation);
+		}
+		return result;
+	}
+
+	/**
+	 * @param timeToExpire seconds to expire of the key, -1 if it does not expire or null if unknown
+	 */
+	private void remember(String key, Set<JsonObject> rules, Long timeToExpire) {
+		if (rules == null || rules.isEmpty()) {
+			return;
+		}
+		if (timeToExpire == null || timeToExpire == -1) {
+			staleRules.put(key, new StaleRules(rules, Long.MAX_VALUE));
+		} else if (timeToExpire > 0) {
+			staleRules.put(key, new StaleRules(rules, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeToExpire)));
+		} else {
+			staleRules.invalidate(key);
+		}
+	}
+
+	private Set<JsonObject> getStale(String key) {
+		StaleRules stale = staleRules.getIfPresent(key);
+		if (stale == null) {
+			return null;
+		}
+		if (stale.expiresAt <= System.currentTimeMillis()) {
+			staleRules.invalidate(key);
+			return null;
+		}
+		return stale.rules;
+	}
+
+	private static boolean isRejected(Throwable error) {
+		return (error instanceof CompletionException ? error.getCause() : error) instanceof RejectedExecutionException;
+	}
+
+	private static class StaleRules {
+		private final Set<JsonObject> rules;
+		private final long expiresAt;
+
+		private StaleRules(Set<JsonObject> rules, long expiresAt) {
+			this.rules = rules;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
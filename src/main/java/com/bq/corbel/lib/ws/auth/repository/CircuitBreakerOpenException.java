@@ -0,0 +1,15 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+/**
+ * Thrown instead of calling the Redis backend while its {@link CircuitBreaker} is open. It has no stack trace, since it is expected
+ * in bursts and says nothing about its caller.
+ *
+ */
+public class CircuitBreakerOpenException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitBreakerOpenException(String message) {
+		super(message, null, false, false);
+	}
+}
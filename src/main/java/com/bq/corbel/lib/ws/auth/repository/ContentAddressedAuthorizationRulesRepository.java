@@ -0,0 +1,436 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * {@link AuthorizationRulesRepository} that stores every distinct set of rules only once, under a key derived from the SHA-256 of its
+ * members, and keeps in the key of every token and audience only that hash. A rule set never expires before the last token key saved
+ * with it, and as its content never changes it is cached locally by hash once read. Token keys without expiration are counted in a
+ * reference counter of their rule set, which does not expire while it is referenced, and when the last of them moves to another rule
+ * set or is deleted the rule set expires with the last token key saved with expiration, or is deleted if there is none. As with the SADD of
+ * {@link RedisAuthorizationRulesRepository}, saving merges the rules with those already saved for the key, and adding or removing rules
+ * of a key saves a new rule set for it. Every update of a key is applied only if the key still has the rule set it was computed from,
+ * and retried otherwise, so concurrent updates are not lost. The hash is computed over a canonical form of the rules, with the fields
+ * of every object sorted, so it does not depend on the order of the fields either. The format is not readable by
+ * {@link RedisAuthorizationRulesRepository}, so all the instances sharing a Redis database must use the same repository.
+ *
+ */
+public class ContentAddressedAuthorizationRulesRepository implements AuthorizationRulesRepository {
+
+	private static final String RULE_SET_KEY_PREFIX = "rules:";
+	private static final String REFERENCES_KEY_SUFFIX = ":refs";
+	private static final String DEADLINE_KEY_SUFFIX = ":ttl";
+	private static final int DEFAULT_SCAN_BATCH_SIZE = 500;
+	private static final long NO_EXPIRATION = -1;
+	private static final int MAXIMUM_UPDATE_ATTEMPTS = 10;
+	private static final long UPDATED = 1;
+	// Releases a reference of a token key without expiration to its rule set (KEYS: rule set, references, deadline). Negative counts
+	// are of rule sets saved before the references were counted, which are left as they were.
+	private static final String RELEASE_FUNCTION = "local function release(set, refs, deadline) "
+			+ "  local count = redis.call('decr', refs) "
+			+ "  if count <= 0 then redis.call('del', refs) end "
+			+ "  if count == 0 then "
+			+ "    local remaining = redis.call('pttl', deadline) "
+			+ "    if remaining > 0 then redis.call('pexpire', set, remaining) else redis.call('del', set) end "
+			+ "  end "
+			+ "end ";
+	// KEYS: rule set, token key, references and deadline of the rule set, previous rule set of the token key, its references and
+	// deadline. ARGV: time to live in millis or -1, rule set hash, hash expected in the token key or empty, members. The deadline is a
+	// key that expires with the last token key saved with expiration. The members are added in chunks, as unpack fails when the number
+	// of values exceeds the Lua stack.
+	private static final byte[] SAVE_SCRIPT = (RELEASE_FUNCTION
+			+ "if (redis.call('get', KEYS[2]) or '') ~= ARGV[3] then return 0 end "
+			+ "local ttl = tonumber(ARGV[1]) "
+			+ "if ARGV[3] ~= '' and redis.call('pttl', KEYS[2]) == -1 then release(KEYS[5], KEYS[6], KEYS[7]) end "
+			+ "local created = redis.call('exists', KEYS[1]) == 0 "
+			+ "if created then "
+			+ "  for i = 4, #ARGV, 1000 do redis.call('sadd', KEYS[1], unpack(ARGV, i, math.min(i + 999, #ARGV))) end "
+			+ "end "
+			+ "if ttl < 0 then "
+			+ "  redis.call('incr', KEYS[3]) "
+			+ "  redis.call('persist', KEYS[1]) "
+			+ "  redis.call('set', KEYS[2], ARGV[2]) "
+			+ "else "
+			+ "  if redis.call('pttl', KEYS[4]) < ttl then redis.call('psetex', KEYS[4], ttl, '1') end "
+			+ "  local current = redis.call('pttl', KEYS[1]) "
+			+ "  if redis.call('exists', KEYS[3]) == 0 and (created or (current >= 0 and current < ttl)) then "
+			+ "    redis.call('pexpire', KEYS[1], ttl) "
+			+ "  end "
+			+ "  redis.call('psetex', KEYS[2], ttl, ARGV[2]) "
+			+ "end "
+			+ "return 1").getBytes(StandardCharsets.UTF_8);
+	// KEYS: token key, its rule set, references and deadline of the rule set. ARGV: hash expected in the token key.
+	private static final byte[] DELETE_SCRIPT = (RELEASE_FUNCTION
+			+ "local current = redis.call('get', KEYS[1]) "
+			+ "if not current then return 1 end "
+			+ "if current ~= ARGV[1] then return 0 end "
+			+ "if redis.call('pttl', KEYS[1]) == -1 then release(KEYS[2], KEYS[3], KEYS[4]) end "
+			+ "redis.call('del', KEYS[1]) "
+			+ "return 1").getBytes(StandardCharsets.UTF_8);
+
+	private final RedisTemplate<String, JsonObject> redisTemplate;
+	private final RedisAuthorizationRulesRepository keys;
+	private final Cache<String, Set<JsonObject>> ruleSets;
+
+	/**
+	 * @param maximumCachedRuleSets maximum number of rule sets kept in memory
+	 */
+	public ContentAddressedAuthorizationRulesRepository(RedisTemplate<String, JsonObject> redisTemplate, long maximumCachedRuleSets) {
+		this.redisTemplate = redisTemplate;
+		this.keys = new RedisAuthorizationRulesRepository(redisTemplate);
+		this.ruleSets = CacheBuilder.newBuilder().maximumSize(maximumCachedRuleSets).build();
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		saveAll(Collections.singletonMap(key, Arrays.asList(rules)), timeToExpireInMillis);
+	}
+
+	/**
+	 * Merges the rules of every key with its current rule set and saves all the keys in a single pipeline, saving again the keys
+	 * updated concurrently. As with EXPIRE, a time to live not greater than zero deletes the keys.
+	 */
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		if (rulesByKey.isEmpty()) {
+			return;
+		}
+		if (timeToExpireInMillis <= 0) {
+			deleteAll(rulesByKey.keySet());
+			return;
+		}
+		List<String> pendingKeys = new ArrayList<>(rulesByKey.keySet());
+		for (int attempt = 0; !pendingKeys.isEmpty(); attempt++) {
+			checkAttempts(attempt, pendingKeys);
+			Map<String, String> hashes = getHashes(pendingKeys);
+			Map<String, Set<JsonObject>> ruleSets = getRuleSets(hashes.values());
+			Map<String, Set<JsonObject>> mergedRules = new LinkedHashMap<>();
+			for (String key : pendingKeys) {
+				String hash = hashes.get(key);
+				Set<JsonObject> rules = new HashSet<>(rulesByKey.get(key));
+				if (hash != null) {
+					rules.addAll(ruleSets.get(hash));
+				}
+				// a key without rules to save nor saved has nothing to update
+				if (!rules.isEmpty()) {
+					mergedRules.put(key, rules);
+				}
+			}
+			List<String> keys = new ArrayList<>(mergedRules.keySet());
+			List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+				mergedRules.forEach((key, rules) -> save(connection, key, timeToExpireInMillis, rules, hashes.get(key)));
+				return null;
+			});
+			pendingKeys = new ArrayList<>();
+			for (int i = 0; i < keys.size(); i++) {
+				if (!Long.valueOf(UPDATED).equals(results.get(i))) {
+					pendingKeys.add(keys.get(i));
+				}
+			}
+		}
+	}
+
+	@Override
+	public void delete(String key) {
+		deleteAll(Collections.singletonList(key));
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		return redisTemplate.execute((RedisCallback<Set<JsonObject>>) connection -> {
+			byte[] hash = connection.get(keySerializer().serialize(key));
+			return hash != null ? getRuleSet(connection, new String(hash, StandardCharsets.UTF_8)) : Collections.emptySet();
+		});
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		return keys.getTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		return this.keys.getTimeToExpireAll(keys);
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		updateRules(key, newRules -> newRules.addAll(Arrays.asList(rules)));
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		updateRules(key, newRules -> newRules.removeAll(Arrays.asList(rules)));
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		return keys.existsRules(key);
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return keys.getKeyForAuthorizationRules(token, key);
+	}
+
+	/**
+	 * Iterates the keyspace with SCAN, as {@link RedisAuthorizationRulesRepository} does, deleting the keys found in batches so the
+	 * references to their rule sets are released.
+	 */
+	@Override
+	public void deleteByToken(String token) {
+		String pattern = keys.getKeyForAuthorizationRules(escapeGlob(token), "*");
+		ScanOptions options = ScanOptions.scanOptions().match(pattern).count(DEFAULT_SCAN_BATCH_SIZE).build();
+		List<String> found = redisTemplate.execute((RedisCallback<List<String>>) connection -> {
+			List<String> scanned = new ArrayList<>();
+			try (Cursor<byte[]> cursor = connection.scan(options)) {
+				while (cursor.hasNext()) {
+					scanned.add(keySerializer().deserialize(cursor.next()));
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Error closing scan cursor", e);
+			}
+			return scanned;
+		});
+		for (List<String> batch : Lists.partition(found, DEFAULT_SCAN_BATCH_SIZE)) {
+			deleteAll(batch);
+		}
+	}
+
+	/**
+	 * Deletes the keys in a single pipeline, deleting again the keys updated concurrently.
+	 */
+	private void deleteAll(Collection<String> keysToDelete) {
+		List<String> pendingKeys = new ArrayList<>(keysToDelete);
+		for (int attempt = 0; !pendingKeys.isEmpty(); attempt++) {
+			checkAttempts(attempt, pendingKeys);
+			Map<String, String> hashes = getHashes(pendingKeys);
+			// keys without hash do not exist
+			List<String> keys = new ArrayList<>(hashes.keySet());
+			List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+				keys.forEach(key -> delete(connection, key, hashes.get(key)));
+				return null;
+			});
+			pendingKeys = new ArrayList<>();
+			for (int i = 0; i < keys.size(); i++) {
+				if (!Long.valueOf(UPDATED).equals(results.get(i))) {
+					pendingKeys.add(keys.get(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the update to the current rules of the key and saves them if they changed, keeping the expiration of the key.
+	 */
+	private void updateRules(String key, Predicate<Set<JsonObject>> update) {
+		for (int attempt = 0;; attempt++) {
+			checkAttempts(attempt, Collections.singletonList(key));
+			String hash = getHashes(Collections.singletonList(key)).get(key);
+			Set<JsonObject> newRules = new HashSet<>(hash != null ? getRuleSets(Collections.singletonList(hash)).get(hash)
+					: Collections.emptySet());
+			if (!update.test(newRules)) {
+				return;
+			}
+			if (newRules.isEmpty()) {
+				delete(key);
+				return;
+			}
+			Long timeToExpire = getTimeToExpire(key);
+			long timeToExpireInMillis = timeToExpire != null && timeToExpire > 0 ? timeToExpire * 1000 : NO_EXPIRATION;
+			Object result = redisTemplate.execute((RedisCallback<Object>) connection -> save(connection, key, timeToExpireInMillis,
+					newRules, hash));
+			if (Long.valueOf(UPDATED).equals(result)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param expectedHash hash of the rule set the key must have for the save to be applied, or null if the key must not exist
+	 * @return {@link #UPDATED} if the key was saved, or deleted if there are no rules
+	 */
+	private Object save(RedisConnection connection, String key, long timeToExpireInMillis, Collection<JsonObject> rules,
+			String expectedHash) {
+		if (rules.isEmpty()) {
+			return expectedHash != null ? delete(connection, key, expectedHash) : UPDATED;
+		}
+		List<byte[]> members = new ArrayList<>(rules.size());
+		for (JsonObject rule : rules) {
+			members.add(valueSerializer().serialize(rule));
+		}
+		String hash = hash(rules);
+		// without a previous rule set, the keys of the new one are given in its place and not used
+		String previousHash = expectedHash != null ? expectedHash : hash;
+		byte[][] keysAndArgs = new byte[members.size() + 10][];
+		keysAndArgs[0] = keySerializer().serialize(RULE_SET_KEY_PREFIX + hash);
+		keysAndArgs[1] = keySerializer().serialize(key);
+		keysAndArgs[2] = keySerializer().serialize(RULE_SET_KEY_PREFIX + hash + REFERENCES_KEY_SUFFIX);
+		keysAndArgs[3] = keySerializer().serialize(RULE_SET_KEY_PREFIX + hash + DEADLINE_KEY_SUFFIX);
+		keysAndArgs[4] = keySerializer().serialize(RULE_SET_KEY_PREFIX + previousHash);
+		keysAndArgs[5] = keySerializer().serialize(RULE_SET_KEY_PREFIX + previousHash + REFERENCES_KEY_SUFFIX);
+		keysAndArgs[6] = keySerializer().serialize(RULE_SET_KEY_PREFIX + previousHash + DEADLINE_KEY_SUFFIX);
+		keysAndArgs[7] = String.valueOf(timeToExpireInMillis).getBytes(StandardCharsets.UTF_8);
+		keysAndArgs[8] = hash.getBytes(StandardCharsets.UTF_8);
+		keysAndArgs[9] = (expectedHash != null ? expectedHash : "").getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < members.size(); i++) {
+			keysAndArgs[i + 10] = members.get(i);
+		}
+		return connection.eval(SAVE_SCRIPT, ReturnType.INTEGER, 7, keysAndArgs);
+	}
+
+	/**
+	 * @param expectedHash hash of the rule set the key must have for the delete to be applied
+	 * @return {@link #UPDATED} if the key was deleted or did not exist
+	 */
+	private Object delete(RedisConnection connection, String key, String expectedHash) {
+		return connection.eval(DELETE_SCRIPT, ReturnType.INTEGER, 4, keySerializer().serialize(key), keySerializer().serialize(
+				RULE_SET_KEY_PREFIX + expectedHash), keySerializer().serialize(RULE_SET_KEY_PREFIX + expectedHash
+				+ REFERENCES_KEY_SUFFIX), keySerializer().serialize(RULE_SET_KEY_PREFIX + expectedHash + DEADLINE_KEY_SUFFIX),
+				expectedHash.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return hash of the canonical form of the rules, the same for equal rules whatever the order of the rules and of their fields
+	 */
+	private static String hash(Collection<JsonObject> rules) {
+		List<String> canonicalRules = new ArrayList<>(rules.size());
+		for (JsonObject rule : rules) {
+			StringBuilder canonicalRule = new StringBuilder();
+			appendCanonical(rule, canonicalRule);
+			canonicalRules.add(canonicalRule.toString());
+		}
+		Collections.sort(canonicalRules);
+		Hasher hasher = Hashing.sha256().newHasher();
+		for (String canonicalRule : canonicalRules) {
+			byte[] bytes = canonicalRule.getBytes(StandardCharsets.UTF_8);
+			hasher.putInt(bytes.length).putBytes(bytes);
+		}
+		return hasher.hash().toString();
+	}
+
+	private static void appendCanonical(JsonElement element, StringBuilder canonical) {
+		if (element.isJsonObject()) {
+			List<Map.Entry<String, JsonElement>> fields = new ArrayList<>(element.getAsJsonObject().entrySet());
+			fields.sort(Map.Entry.comparingByKey());
+			canonical.append('{');
+			for (int i = 0; i < fields.size(); i++) {
+				if (i > 0) {
+					canonical.append(',');
+				}
+				canonical.append(new JsonPrimitive(fields.get(i).getKey())).append(':');
+				appendCanonical(fields.get(i).getValue(), canonical);
+			}
+			canonical.append('}');
+		} else if (element.isJsonArray()) {
+			JsonArray array = element.getAsJsonArray();
+			canonical.append('[');
+			for (int i = 0; i < array.size(); i++) {
+				if (i > 0) {
+					canonical.append(',');
+				}
+				appendCanonical(array.get(i), canonical);
+			}
+			canonical.append(']');
+		} else {
+			canonical.append(element);
+		}
+	}
+
+	/**
+	 * @return the rule set hash of every key that has one, read with a single MGET
+	 */
+	private Map<String, String> getHashes(List<String> keys) {
+		List<byte[]> hashes = redisTemplate.execute((RedisCallback<List<byte[]>>) connection -> {
+			byte[][] rawKeys = new byte[keys.size()][];
+			for (int i = 0; i < keys.size(); i++) {
+				rawKeys[i] = keySerializer().serialize(keys.get(i));
+			}
+			return connection.mGet(rawKeys);
+		});
+		Map<String, String> hashesByKey = new HashMap<>();
+		for (int i = 0; hashes != null && i < hashes.size(); i++) {
+			if (hashes.get(i) != null) {
+				hashesByKey.put(keys.get(i), new String(hashes.get(i), StandardCharsets.UTF_8));
+			}
+		}
+		return hashesByKey;
+	}
+
+	private Map<String, Set<JsonObject>> getRuleSets(Collection<String> hashes) {
+		return redisTemplate.execute((RedisCallback<Map<String, Set<JsonObject>>>) connection -> {
+			Map<String, Set<JsonObject>> ruleSetsByHash = new HashMap<>();
+			for (String hash : hashes) {
+				ruleSetsByHash.computeIfAbsent(hash, ruleSetHash -> getRuleSet(connection, ruleSetHash));
+			}
+			return ruleSetsByHash;
+		});
+	}
+
+	private static void checkAttempts(int attempt, Collection<String> keys) {
+		if (attempt == MAXIMUM_UPDATE_ATTEMPTS) {
+			throw new IllegalStateException("Rules of " + keys + " updated concurrently " + MAXIMUM_UPDATE_ATTEMPTS + " times");
+		}
+	}
+
+	private Set<JsonObject> getRuleSet(RedisConnection connection, String hash) {
+		Set<JsonObject> rules = ruleSets.getIfPresent(hash);
+		if (rules == null) {
+			Set<byte[]> members = connection.sMembers(keySerializer().serialize(RULE_SET_KEY_PREFIX + hash));
+			rules = new HashSet<>(members.size());
+			for (byte[] member : members) {
+				rules.add(valueSerializer().deserialize(member));
+			}
+			if (rules.isEmpty()) {
+				return rules;
+			}
+			rules = Collections.unmodifiableSet(rules);
+			ruleSets.put(hash, rules);
+		}
+		return rules;
+	}
+
+	private static String escapeGlob(String value) {
+		return value.replaceAll("([\\\\*?\\[\\]])", "\\\\$1");
+	}
+
+	@SuppressWarnings("unchecked")
+	private RedisSerializer<String> keySerializer() {
+		return (RedisSerializer<String>) redisTemplate.getKeySerializer();
+	}
+
+	@SuppressWarnings("unchecked")
+	private RedisSerializer<JsonObject> valueSerializer() {
+		return (RedisSerializer<JsonObject>) redisTemplate.getValueSerializer();
+	}
+}
@@ -0,0 +1,138 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * {@link AuthorizationRulesRepository} that runs the asynchronous reads of its blocking delegate in a bounded pool of threads, so
+ * callers using the asynchronous methods never block waiting for a Redis connection. The pool should not have more threads than the
+ * Redis connection pool has connections. When the pool and its queue are full the returned futures fail with a
+ * {@link RejectedExecutionException}. Synchronous methods are run by the delegate in the calling thread.
+ *
+ */
+public class ExecutorAuthorizationRulesRepository implements AuthorizationRulesRepository {
+
+	private final AuthorizationRulesRepository delegate;
+	private final ExecutorService executor;
+
+	public ExecutorAuthorizationRulesRepository(AuthorizationRulesRepository delegate, int threads, int queueSize) {
+		this.delegate = delegate;
+		ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("authorization-rules-%d").build());
+		threadPoolExecutor.allowCoreThreadTimeOut(true);
+		this.executor = threadPoolExecutor;
+	}
+
+	@Override
+	public CompletableFuture<Set<JsonObject>> getAsync(String key) {
+		return supplyAsync(() -> delegate.get(key));
+	}
+
+	@Override
+	public CompletableFuture<Long> getTimeToExpireAsync(String key) {
+		return supplyAsync(() -> delegate.getTimeToExpire(key));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> existsRulesAsync(String key) {
+		return supplyAsync(() -> delegate.existsRules(key));
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		delegate.save(key, timeToExpireInMillis, rules);
+	}
+
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		delegate.saveAll(rulesByKey, timeToExpireInMillis);
+	}
+
+	@Override
+	public void delete(String key) {
+		delegate.delete(key);
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		return delegate.get(key);
+	}
+
+	@Override
+	public ExpiringRules getWithTimeToExpire(String key) {
+		return delegate.getWithTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		return delegate.getAll(keys);
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		return delegate.getTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		return delegate.getTimeToExpireAll(keys);
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		delegate.addRules(key, rules);
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		delegate.removeRules(key, rules);
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		return delegate.existsRules(key);
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return delegate.getKeyForAuthorizationRules(token, key);
+	}
+
+	@Override
+	public void deleteByToken(String token) {
+		delegate.deleteByToken(token);
+	}
+
+	@Override
+	public void keyChanged(String key) {
+		delegate.keyChanged(key);
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+		delegate.close();
+	}
+
+	private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+		try {
+			return CompletableFuture.supplyAsync(supplier, executor);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> rejected = new CompletableFuture<>();
+			rejected.completeExceptionally(e);
+			return rejected;
+		}
+	}
+}
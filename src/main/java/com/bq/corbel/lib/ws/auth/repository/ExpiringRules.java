@@ -0,0 +1,35 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.util.Set;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Rules of a key together with their time to expire, when it was read with them.
+ *
+ */
+public class ExpiringRules {
+
+	private final Set<JsonObject> rules;
+	private final Long timeToExpire;
+
+	/**
+	 * @param timeToExpire as returned by {@link AuthorizationRulesRepository#getTimeToExpire(String)}, or null if it was not read
+	 */
+	public ExpiringRules(Set<JsonObject> rules, Long timeToExpire) {
+		this.rules = rules;
+		this.timeToExpire = timeToExpire;
+	}
+
+	public Set<JsonObject> getRules() {
+		return rules;
+	}
+
+	/**
+	 * @return the remaining time to live of the rules in seconds, negative if the rules never expire (-1) or do not exist (-2), or null
+	 *         if it is unknown
+	 */
+	public Long getTimeToExpire() {
+		return timeToExpire;
+	}
+}
@@ -0,0 +1,213 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * {@link AuthorizationRulesRepository} that keeps the rules in memory, for single node deployments and load tests without Redis. It
+ * follows the contract of {@link RedisAuthorizationRulesRepository}: missing keys have no rules, adding rules to a missing key creates
+ * it without expiration, removing all the rules of a key deletes it and {@link #getTimeToExpire(String)} returns seconds, -1 for keys
+ * without expiration and -2 for missing keys.
+ * <p>
+ * Expired keys are never returned. They are removed by a hashed timer wheel, advanced by a single thread every tick, whose buckets
+ * hold the keys expiring in the same tick of every lap of the wheel, so no timer is kept for every key. Keys are removed at most a
+ * tick after they expire.
+ *
+ */
+public class InMemoryAuthorizationRulesRepository implements AuthorizationRulesRepository {
+
+	private static final long NO_EXPIRATION = Long.MAX_VALUE;
+	private static final long TIME_TO_EXPIRE_NONE = -1;
+	private static final long TIME_TO_EXPIRE_NOT_FOUND = -2;
+	private static final char KEY_SEPARATOR = '|';
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final long tickMillis;
+	private final ConcurrentLinkedQueue<Timeout>[] wheel;
+	private final ScheduledExecutorService timer;
+	private final long startNanos = System.nanoTime();
+	// tick whose bucket the expiration thread visits, or visited last
+	private volatile long sweepingTick;
+
+	/**
+	 * @param tickMillis duration of every bucket of the timer wheel
+	 * @param wheelSize number of buckets of the timer wheel, keys expiring after a lap of the wheel are kept until the following laps
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public InMemoryAuthorizationRulesRepository(long tickMillis, int wheelSize) {
+		this.tickMillis = tickMillis;
+		this.wheel = new ConcurrentLinkedQueue[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			wheel[i] = new ConcurrentLinkedQueue<>();
+		}
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("authorization-rules-expiration-%d").build());
+		timer.scheduleWithFixedDelay(this::expire, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		long expiresAt = now() + timeToExpireInMillis;
+		entries.compute(key, (k, entry) -> new Entry(union(live(entry), rules), expiresAt));
+		schedule(key, expiresAt);
+	}
+
+	@Override
+	public void delete(String key) {
+		entries.remove(key);
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		Entry entry = live(entries.get(key));
+		return entry != null ? entry.rules : Collections.emptySet();
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		Entry entry = live(entries.get(key));
+		if (entry == null) {
+			return TIME_TO_EXPIRE_NOT_FOUND;
+		}
+		if (entry.expiresAt == NO_EXPIRATION) {
+			return TIME_TO_EXPIRE_NONE;
+		}
+		return TimeUnit.MILLISECONDS.toSeconds(Math.max(0, entry.expiresAt - now()));
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		entries.compute(key, (k, entry) -> {
+			Entry current = live(entry);
+			return new Entry(union(current, rules), current != null ? current.expiresAt : NO_EXPIRATION);
+		});
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		entries.computeIfPresent(key, (k, entry) -> {
+			Entry current = live(entry);
+			if (current == null) {
+				return null;
+			}
+			Set<JsonObject> remaining = new LinkedHashSet<>(current.rules);
+			for (JsonObject rule : rules) {
+				remaining.remove(rule);
+			}
+			return remaining.isEmpty() ? null : new Entry(Collections.unmodifiableSet(remaining), current.expiresAt);
+		});
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		return live(entries.get(key)) != null;
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return token + KEY_SEPARATOR + key;
+	}
+
+	/**
+	 * Iterates all the keys, which in memory is cheaper than keeping an index by token up to date.
+	 */
+	@Override
+	public void deleteByToken(String token) {
+		String prefix = getKeyForAuthorizationRules(token, "");
+		entries.keySet().removeIf(key -> key.startsWith(prefix));
+	}
+
+	@Override
+	public void close() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * @return the number of keys stored, including expired keys not removed yet
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	private void schedule(String key, long expiresAt) {
+		Timeout timeout = new Timeout(key, expiresAt);
+		// a tick already visited would only be visited again in the next lap
+		long tick = Math.max(expiresAt / tickMillis, sweepingTick + 1);
+		wheel[bucket(tick)].add(timeout);
+		// the expiration thread may have started visiting the tick before the timeout was added, so it is added again to a tick not
+		// visited yet. A copy left behind is discarded without effect in the next lap.
+		for (long sweeping = sweepingTick; sweeping >= tick; sweeping = sweepingTick) {
+			tick = sweeping + 1;
+			wheel[bucket(tick)].add(timeout);
+		}
+	}
+
+	private void expire() {
+		long now = now();
+		long currentTick = now / tickMillis;
+		long firstTick = Math.max(sweepingTick + 1, currentTick - wheel.length + 1);
+		for (long tick = firstTick; tick <= currentTick; tick++) {
+			// published before visiting the bucket, so a timeout added to it afterwards is seen by schedule and moved to a later tick
+			sweepingTick = tick;
+			Iterator<Timeout> timeouts = wheel[bucket(tick)].iterator();
+			while (timeouts.hasNext()) {
+				Timeout timeout = timeouts.next();
+				if (timeout.expiresAt <= now) {
+					timeouts.remove();
+					// the key may have been saved again with a later expiration, which has its own timeout
+					entries.computeIfPresent(timeout.key, (key, entry) -> entry.expiresAt == timeout.expiresAt ? null : entry);
+				}
+			}
+		}
+	}
+
+	private int bucket(long tick) {
+		return (int) (tick % wheel.length);
+	}
+
+	private Entry live(Entry entry) {
+		return entry != null && entry.expiresAt > now() ? entry : null;
+	}
+
+	private static Set<JsonObject> union(Entry entry, JsonObject... rules) {
+		Set<JsonObject> union = entry != null ? new LinkedHashSet<>(entry.rules) : new LinkedHashSet<>();
+		Collections.addAll(union, rules);
+		return Collections.unmodifiableSet(union);
+	}
+
+	// milliseconds since the repository was created, so ticks are never negative
+	private long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	private static class Entry {
+		private final Set<JsonObject> rules;
+		private final long expiresAt;
+
+		private Entry(Set<JsonObject> rules, long expiresAt) {
+			this.rules = rules;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static class Timeout {
+		private final String key;
+		private final long expiresAt;
+
+		private Timeout(String key, long expiresAt) {
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.gson.JsonObject;
+
+/**
+ * In memory cache of authorization rules in front of another {@link AuthorizationRulesRepository}. The cache is bounded both by number
+ * of entries and by the estimated size of the rules, and is kept up to date with the Redis keyspace notifications of the rule keys.
+ * Redis must be configured with notify-keyspace-events including at least "K$sgxe": keyspace events (K) of the set (s) and generic (g)
+ * commands that write the rules, and of the keys that expire (x) or are evicted (e), since otherwise the rules of an expired token would
+ * stay cached and keep being granted. Every event invalidates the key, whatever its type. Entries also expire after a fixed time to live
+ * in case a notification is lost. Writes done through this repository invalidate the local entries immediately. Notified keys are
+ * passed on to the delegate with {@link AuthorizationRulesRepository#keyChanged(String)}.
+ *
+ */
+public class NearCacheAuthorizationRulesRepository implements AuthorizationRulesRepository, MessageListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NearCacheAuthorizationRulesRepository.class);
+	private static final String KEYSPACE_CHANNEL_PATTERN = "__keyspace@{0}__:*|*";
+	private static final String KEYSPACE_CHANNEL_SEPARATOR = "__:";
+	private static final int ENTRY_OVERHEAD_BYTES = 64;
+	private static final int RULE_OVERHEAD_BYTES = 48;
+	private static final int INVALIDATION_STRIPES = 64;
+
+	private final AuthorizationRulesRepository delegate;
+	private final List<RedisMessageListenerContainer> listenerContainers;
+	private final Cache<String, Set<JsonObject>> rules;
+	// incremented on every invalidation of a key of the stripe, so rules read from Redis before an invalidation are not cached after it
+	private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+
+	/**
+	 * @param listenerContainer started container used to subscribe to keyspace notifications, it is stopped when the repository is
+	 *        closed
+	 */
+	public NearCacheAuthorizationRulesRepository(AuthorizationRulesRepository delegate, RedisMessageListenerContainer listenerContainer,
+			int database, long maximumSize, long maximumBytes, long timeToLiveMillis) {
+		this(delegate, Collections.singletonList(listenerContainer), database, maximumSize, maximumBytes, timeToLiveMillis);
+	}
+
+	/**
+	 * @param listenerContainers started containers of every Redis node where the delegate stores rules
+	 */
+	public NearCacheAuthorizationRulesRepository(AuthorizationRulesRepository delegate,
+			List<RedisMessageListenerContainer> listenerContainers, int database, long maximumSize, long maximumBytes,
+			long timeToLiveMillis) {
+		this.delegate = delegate;
+		this.listenerContainers = listenerContainers;
+		// every entry weighs at least maximumBytes / maximumSize, so the weight limit also limits the number of entries
+		long minimumWeight = Math.max(1, maximumBytes / maximumSize);
+		Weigher<String, Set<JsonObject>> weigher = (key, value) -> (int) Math.min(Integer.MAX_VALUE, Math.max(minimumWeight,
+				estimateBytes(key, value)));
+		this.rules = CacheBuilder.newBuilder().maximumWeight(maximumBytes).weigher(weigher)
+				.expireAfterWrite(timeToLiveMillis, TimeUnit.MILLISECONDS).build();
+		PatternTopic topic = new PatternTopic(MessageFormat.format(KEYSPACE_CHANNEL_PATTERN, database));
+		listenerContainers.forEach(listenerContainer -> listenerContainer.addMessageListener(this, topic));
+	}
+
+	@Override
+	public void onMessage(Message message, byte[] pattern) {
+		String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+		int separator = channel.indexOf(KEYSPACE_CHANNEL_SEPARATOR);
+		if (separator != -1) {
+			// the event (the message body) is ignored, an expired or evicted key is invalidated like any other change
+			String key = channel.substring(separator + KEYSPACE_CHANNEL_SEPARATOR.length());
+			invalidate(key);
+			// the next miss of the key must not read a replica that has not received the change yet
+			delegate.keyChanged(key);
+		}
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		delegate.save(key, timeToExpireInMillis, rules);
+		invalidate(key);
+	}
+
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		delegate.saveAll(rulesByKey, timeToExpireInMillis);
+		rulesByKey.keySet().forEach(this::invalidate);
+	}
+
+	@Override
+	public void delete(String key) {
+		delegate.delete(key);
+		invalidate(key);
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		Set<JsonObject> cached = rules.getIfPresent(key);
+		if (cached != null) {
+			return cached;
+		}
+		int stripe = stripe(key);
+		long invalidationsBeforeLoad = invalidations.get(stripe);
+		return cacheLoaded(key, stripe, invalidationsBeforeLoad, delegate.get(key));
+	}
+
+	/**
+	 * The time to expire of cached rules is unknown, it is read only together with the rules that are not cached.
+	 */
+	@Override
+	public ExpiringRules getWithTimeToExpire(String key) {
+		Set<JsonObject> cached = rules.getIfPresent(key);
+		if (cached != null) {
+			return new ExpiringRules(cached, null);
+		}
+		int stripe = stripe(key);
+		long invalidationsBeforeLoad = invalidations.get(stripe);
+		ExpiringRules loaded = delegate.getWithTimeToExpire(key);
+		return new ExpiringRules(cacheLoaded(key, stripe, invalidationsBeforeLoad, loaded.getRules()), loaded.getTimeToExpire());
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		Map<String, Set<JsonObject>> found = new HashMap<>();
+		Map<String, Long> invalidationsBeforeLoad = new HashMap<>();
+		for (String key : keys) {
+			Set<JsonObject> cached = rules.getIfPresent(key);
+			if (cached != null) {
+				found.put(key, cached);
+			} else {
+				invalidationsBeforeLoad.put(key, invalidations.get(stripe(key)));
+			}
+		}
+		if (!invalidationsBeforeLoad.isEmpty()) {
+			delegate.getAll(invalidationsBeforeLoad.keySet()).forEach((key, loaded) -> found.put(key, cacheLoaded(key, stripe(key),
+					invalidationsBeforeLoad.get(key), loaded)));
+		}
+		return found;
+	}
+
+	@Override
+	public CompletableFuture<Set<JsonObject>> getAsync(String key) {
+		Set<JsonObject> cached = rules.getIfPresent(key);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		int stripe = stripe(key);
+		long invalidationsBeforeLoad = invalidations.get(stripe);
+		return delegate.getAsync(key).thenApply(loaded -> cacheLoaded(key, stripe, invalidationsBeforeLoad, loaded));
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		return delegate.getTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		return delegate.getTimeToExpireAll(keys);
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		delegate.addRules(key, rules);
+		invalidate(key);
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		delegate.removeRules(key, rules);
+		invalidate(key);
+	}
+
+	@Override
+	public CompletableFuture<Long> getTimeToExpireAsync(String key) {
+		return delegate.getTimeToExpireAsync(key);
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		return rules.getIfPresent(key) != null || delegate.existsRules(key);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> existsRulesAsync(String key) {
+		return rules.getIfPresent(key) != null ? CompletableFuture.completedFuture(true) : delegate.existsRulesAsync(key);
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getCachedRules(int maximumEntries) {
+		Map<String, Set<JsonObject>> cached = new HashMap<>();
+		for (Map.Entry<String, Set<JsonObject>> entry : rules.asMap().entrySet()) {
+			if (cached.size() >= maximumEntries) {
+				break;
+			}
+			cached.put(entry.getKey(), entry.getValue());
+		}
+		return cached;
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return delegate.getKeyForAuthorizationRules(token, key);
+	}
+
+	@Override
+	public void deleteByToken(String token) {
+		delegate.deleteByToken(token);
+		String prefix = delegate.getKeyForAuthorizationRules(token, "");
+		for (int stripe = 0; stripe < INVALIDATION_STRIPES; stripe++) {
+			invalidations.incrementAndGet(stripe);
+		}
+		rules.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+	}
+
+	@Override
+	public void close() {
+		for (RedisMessageListenerContainer listenerContainer : listenerContainers) {
+			try {
+				listenerContainer.destroy();
+			} catch (Exception e) {
+				LOG.warn("Error stopping keyspace notifications listener", e);
+			}
+		}
+		delegate.close();
+	}
+
+	private Set<JsonObject> cacheLoaded(String key, int stripe, long invalidationsBeforeLoad, Set<JsonObject> loaded) {
+		// missing rules are not cached, they are usually about to be created
+		if (loaded != null && !loaded.isEmpty() && invalidations.get(stripe) == invalidationsBeforeLoad) {
+			loaded = Collections.unmodifiableSet(loaded);
+			rules.put(key, loaded);
+		}
+		return loaded;
+	}
+
+	private void invalidate(String key) {
+		invalidations.incrementAndGet(stripe(key));
+		rules.invalidate(key);
+	}
+
+	private static int stripe(String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES;
+	}
+
+	private static long estimateBytes(String key, Set<JsonObject> value) {
+		long bytes = ENTRY_OVERHEAD_BYTES + 2L * key.length();
+		for (JsonObject rule : value) {
+			bytes += RULE_OVERHEAD_BYTES + 2L * rule.toString().length();
+		}
+		return bytes;
+	}
+}
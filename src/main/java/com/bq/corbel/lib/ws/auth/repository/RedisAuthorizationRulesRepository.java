@@ -1,9 +1,26 @@
 package com.bq.corbel.lib.ws.auth.repository;
 
+import com.bq.corbel.lib.ws.redis.BinaryJsonRedisSerializer;
+import com.bq.corbel.lib.ws.redis.GsonRedisSerializer;
 import com.google.gson.JsonObject;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.serializer.RedisSerializer;
 
+import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -13,17 +30,56 @@ import java.util.concurrent.TimeUnit;
 public class RedisAuthorizationRulesRepository implements AuthorizationRulesRepository {
 
 	private static final String AUTHORIZATION_RULES_KEY = "{0}|{1}";
+	private static final int DEFAULT_SCAN_BATCH_SIZE = 500;
+	private static final GsonRedisSerializer<JsonObject> JSON_SERIALIZER = new GsonRedisSerializer<>();
 
 	private final RedisTemplate<String, JsonObject> redisTemplate;
+	private final int scanBatchSize;
 
 	public RedisAuthorizationRulesRepository(RedisTemplate<String, JsonObject> redisTemplate) {
+		this(redisTemplate, DEFAULT_SCAN_BATCH_SIZE);
+	}
+
+	/**
+	 * @param scanBatchSize number of keys examined by every SCAN step and maximum number of keys removed by every DEL of
+	 *        {@link #deleteByToken(String)}
+	 */
+	public RedisAuthorizationRulesRepository(RedisTemplate<String, JsonObject> redisTemplate, int scanBatchSize) {
 		this.redisTemplate = redisTemplate;
+		this.scanBatchSize = scanBatchSize;
 	}
 
+	/**
+	 * Adds the rules and sets the expiration in a single MULTI/EXEC, so a key is never left without expiration.
+	 */
 	@Override
 	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
-		redisTemplate.opsForSet().add(key, rules);
-		redisTemplate.expire(key, timeToExpireInMillis, TimeUnit.MILLISECONDS);
+		redisTemplate.execute(new TransactionalSave() {
+			@Override
+			protected void save(RedisOperations<String, JsonObject> operations) {
+				operations.opsForSet().add(key, rules);
+				operations.expire(key, timeToExpireInMillis, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	/**
+	 * Saves all the rules in a single MULTI/EXEC, whose commands are sent to Redis together.
+	 */
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		if (rulesByKey.isEmpty()) {
+			return;
+		}
+		redisTemplate.execute(new TransactionalSave() {
+			@Override
+			protected void save(RedisOperations<String, JsonObject> operations) {
+				rulesByKey.forEach((key, rules) -> {
+					operations.opsForSet().add(key, rules.toArray(new JsonObject[rules.size()]));
+					operations.expire(key, timeToExpireInMillis, TimeUnit.MILLISECONDS);
+				});
+			}
+		});
 	}
 
 	@Override
@@ -36,19 +92,95 @@ public class RedisAuthorizationRulesRepository implements AuthorizationRulesRepo
 		return redisTemplate.opsForSet().members(key);
 	}
 
+	/**
+	 * Reads the rules and their time to expire with a single pipeline of SMEMBERS and TTL.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public ExpiringRules getWithTimeToExpire(String key) {
+		RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+		byte[] rawKey = keySerializer.serialize(key);
+		List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+			connection.sMembers(rawKey);
+			connection.ttl(rawKey);
+			return null;
+		});
+		Set<JsonObject> members = (Set<JsonObject>) results.get(0);
+		return new ExpiringRules(members != null ? members : Collections.emptySet(), (Long) results.get(1));
+	}
+
+	/**
+	 * Reads all the keys with a single pipeline of SMEMBERS.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		List<String> distinctKeys = new ArrayList<>(new LinkedHashSet<>(keys));
+		RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+		List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+			for (String key : distinctKeys) {
+				connection.sMembers(keySerializer.serialize(key));
+			}
+			return null;
+		});
+		Map<String, Set<JsonObject>> rules = new HashMap<>();
+		for (int i = 0; i < distinctKeys.size(); i++) {
+			Set<JsonObject> members = (Set<JsonObject>) results.get(i);
+			rules.put(distinctKeys.get(i), members != null ? members : Collections.emptySet());
+		}
+		return rules;
+	}
+
 	@Override
 	public Long getTimeToExpire(String key) {
 		return redisTemplate.getExpire(key);
 	}
 
+	/**
+	 * Reads the time to expire of all the keys with a single pipeline of TTL.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		List<String> distinctKeys = new ArrayList<>(new LinkedHashSet<>(keys));
+		RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+		List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+			for (String key : distinctKeys) {
+				connection.ttl(keySerializer.serialize(key));
+			}
+			return null;
+		});
+		Map<String, Long> timesToExpire = new HashMap<>();
+		for (int i = 0; i < distinctKeys.size(); i++) {
+			timesToExpire.put(distinctKeys.get(i), (Long) results.get(i));
+		}
+		return timesToExpire;
+	}
+
 	@Override
 	public void addRules(String key, JsonObject... rules) {
 		redisTemplate.opsForSet().add(key, rules);
 	}
 
+	/**
+	 * With {@link BinaryJsonRedisSerializer} the rules are also removed in the JSON form of {@link GsonRedisSerializer}, since Redis
+	 * compares the members byte by byte and the rules saved before the binary format was enabled would be kept otherwise.
+	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	public void removeRules(String key, JsonObject... rules) {
-		redisTemplate.opsForSet().remove(key, rules);
+		if (!(redisTemplate.getValueSerializer() instanceof BinaryJsonRedisSerializer)) {
+			redisTemplate.opsForSet().remove(key, rules);
+			return;
+		}
+		RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+		RedisSerializer<JsonObject> valueSerializer = (RedisSerializer<JsonObject>) redisTemplate.getValueSerializer();
+		byte[][] members = new byte[rules.length * 2][];
+		for (int i = 0; i < rules.length; i++) {
+			members[2 * i] = valueSerializer.serialize(rules[i]);
+			members[2 * i + 1] = JSON_SERIALIZER.serialize(rules[i]);
+		}
+		redisTemplate.execute((RedisCallback<Long>) connection -> connection.sRem(keySerializer.serialize(key), members));
 	}
 
 	@Override
@@ -58,13 +190,51 @@ public class RedisAuthorizationRulesRepository implements AuthorizationRulesRepo
 
 	@Override
 	public boolean existsRules(String key) {
-		return !redisTemplate.keys(key).isEmpty();
+		return Boolean.TRUE.equals(redisTemplate.hasKey(key));
+	}
+
+	/**
+	 * Deletes the rules of every audience of the token iterating the keyspace with SCAN, so Redis is never blocked for longer than a
+	 * batch of keys.
+	 */
+	@Override
+	public void deleteByToken(String token) {
+		String patternToken = MessageFormat.format(AUTHORIZATION_RULES_KEY, escapeGlob(token), "*");
+		ScanOptions options = ScanOptions.scanOptions().match(patternToken).count(scanBatchSize).build();
+		redisTemplate.execute((RedisCallback<Void>) connection -> {
+			List<byte[]> batch = new ArrayList<>(scanBatchSize);
+			try (Cursor<byte[]> cursor = connection.scan(options)) {
+				while (cursor.hasNext()) {
+					batch.add(cursor.next());
+					if (batch.size() == scanBatchSize) {
+						connection.del(batch.toArray(new byte[batch.size()][]));
+						batch.clear();
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Error closing scan cursor", e);
+			}
+			if (!batch.isEmpty()) {
+				connection.del(batch.toArray(new byte[batch.size()][]));
+			}
+			return null;
+		});
 	}
 
-    @Override
-    public void deleteByToken(String token) {
-        String patternToken = MessageFormat.format(AUTHORIZATION_RULES_KEY, token, "*");
-        Set<String> keysToDelete = redisTemplate.keys(patternToken);
-        redisTemplate.delete(keysToDelete);
-    }
+	private abstract static class TransactionalSave implements SessionCallback<List<Object>> {
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <K, V> List<Object> execute(RedisOperations<K, V> operations) throws DataAccessException {
+			operations.multi();
+			save((RedisOperations<String, JsonObject>) operations);
+			return operations.exec();
+		}
+
+		protected abstract void save(RedisOperations<String, JsonObject> operations);
+	}
+
+	private static String escapeGlob(String value) {
+		return value.replaceAll("([\\\\*?\\[\\]])", "\\\\$1");
+	}
 }
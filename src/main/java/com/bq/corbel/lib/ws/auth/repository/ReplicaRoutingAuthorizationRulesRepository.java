@@ -0,0 +1,282 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * {@link AuthorizationRulesRepository} that sends writes to the primary Redis and balances reads across its replicas. Every read picks
+ * two random replicas and uses the one with the lowest expected cost, its exponentially weighted moving average of latency multiplied
+ * by its number of reads in progress. Estimates not updated for a while decay so slow or failed replicas are eventually tried again. A
+ * read that fails in a replica is retried in the primary. Keys written by this instance are read from the primary during the
+ * read-your-writes window, so local writes are never hidden by the replication lag.
+ *
+ */
+public class ReplicaRoutingAuthorizationRulesRepository implements AuthorizationRulesRepository {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReplicaRoutingAuthorizationRulesRepository.class);
+	private static final double EWMA_WEIGHT = 0.3;
+	private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final char KEY_SEPARATOR = '|';
+
+	private final AuthorizationRulesRepository primary;
+	private final List<Replica> replicas = new ArrayList<>();
+	private final Cache<String, Boolean> recentWrites;
+
+	/**
+	 * @param readYourWritesMillis time during which keys written by this instance are read from the primary, 0 to disable it
+	 */
+	public ReplicaRoutingAuthorizationRulesRepository(AuthorizationRulesRepository primary, List<AuthorizationRulesRepository> replicas,
+			long readYourWritesMillis, long maximumRecentWrites) {
+		this.primary = primary;
+		for (AuthorizationRulesRepository replica : replicas) {
+			this.replicas.add(new Replica(replica));
+		}
+		this.recentWrites = readYourWritesMillis > 0 ? CacheBuilder.newBuilder().maximumSize(maximumRecentWrites)
+				.expireAfterWrite(readYourWritesMillis, TimeUnit.MILLISECONDS).build() : null;
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		written(key);
+		primary.save(key, timeToExpireInMillis, rules);
+	}
+
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		rulesByKey.keySet().forEach(this::written);
+		primary.saveAll(rulesByKey, timeToExpireInMillis);
+	}
+
+	@Override
+	public void delete(String key) {
+		written(key);
+		primary.delete(key);
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		written(key);
+		primary.addRules(key, rules);
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		written(key);
+		primary.removeRules(key, rules);
+	}
+
+	@Override
+	public void deleteByToken(String token) {
+		written(token);
+		primary.deleteByToken(token);
+	}
+
+	/**
+	 * Reads the key from the primary during the read-your-writes window, since the replicas may not have the change yet.
+	 */
+	@Override
+	public void keyChanged(String key) {
+		written(key);
+		primary.keyChanged(key);
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		return read(key, repository -> repository.get(key));
+	}
+
+	@Override
+	public ExpiringRules getWithTimeToExpire(String key) {
+		return read(key, repository -> repository.getWithTimeToExpire(key));
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		for (String key : keys) {
+			if (recentlyWritten(key)) {
+				return primary.getAll(keys);
+			}
+		}
+		return read(null, repository -> repository.getAll(keys));
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		return read(key, repository -> repository.getTimeToExpire(key));
+	}
+
+	@Override
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		for (String key : keys) {
+			if (recentlyWritten(key)) {
+				return primary.getTimeToExpireAll(keys);
+			}
+		}
+		return read(null, repository -> repository.getTimeToExpireAll(keys));
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		return read(key, repository -> repository.existsRules(key));
+	}
+
+	@Override
+	public CompletableFuture<Set<JsonObject>> getAsync(String key) {
+		return readAsync(key, repository -> repository.getAsync(key));
+	}
+
+	@Override
+	public CompletableFuture<Long> getTimeToExpireAsync(String key) {
+		return readAsync(key, repository -> repository.getTimeToExpireAsync(key));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> existsRulesAsync(String key) {
+		return readAsync(key, repository -> repository.existsRulesAsync(key));
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return primary.getKeyForAuthorizationRules(token, key);
+	}
+
+	@Override
+	public void close() {
+		primary.close();
+		replicas.forEach(replica -> replica.repository.close());
+	}
+
+	private <T> T read(String key, Function<AuthorizationRulesRepository, T> operation) {
+		Replica replica = key != null && recentlyWritten(key) ? null : pickReplica();
+		if (replica == null) {
+			return operation.apply(primary);
+		}
+		long start = replica.start();
+		try {
+			T result = operation.apply(replica.repository);
+			replica.succeeded(start);
+			return result;
+		} catch (RuntimeException e) {
+			replica.failed();
+			LOG.warn("Error reading authorization rules from replica, reading from primary: {}", e.getMessage());
+			return operation.apply(primary);
+		}
+	}
+
+	private <T> CompletableFuture<T> readAsync(String key, Function<AuthorizationRulesRepository, CompletableFuture<T>> operation) {
+		Replica replica = recentlyWritten(key) ? null : pickReplica();
+		if (replica == null) {
+			return operation.apply(primary);
+		}
+		long start = replica.start();
+		CompletableFuture<T> result;
+		try {
+			result = operation.apply(replica.repository);
+		} catch (RuntimeException e) {
+			result = new CompletableFuture<>();
+			result.completeExceptionally(e);
+		}
+		return result.handle((value, error) -> {
+			if (error == null) {
+				replica.succeeded(start);
+				return CompletableFuture.completedFuture(value);
+			}
+			replica.failed();
+			LOG.warn("Error reading authorization rules from replica, reading from primary: {}", error.getMessage());
+			return operation.apply(primary);
+		}).thenCompose(Function.identity());
+	}
+
+	private Replica pickReplica() {
+		int size = replicas.size();
+		if (size == 0) {
+			return null;
+		}
+		if (size == 1) {
+			return replicas.get(0);
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(size);
+		int second = random.nextInt(size - 1);
+		if (second >= first) {
+			second++;
+		}
+		long now = System.nanoTime();
+		Replica a = replicas.get(first);
+		Replica b = replicas.get(second);
+		return a.cost(now) <= b.cost(now) ? a : b;
+	}
+
+	private void written(String key) {
+		if (recentWrites != null) {
+			recentWrites.put(key, Boolean.TRUE);
+		}
+	}
+
+	private boolean recentlyWritten(String key) {
+		if (recentWrites == null) {
+			return false;
+		}
+		if (recentWrites.getIfPresent(key) != null) {
+			return true;
+		}
+		// keys deleted by token are registered by their token
+		int separator = key.indexOf(KEY_SEPARATOR);
+		return separator != -1 && recentWrites.getIfPresent(key.substring(0, separator)) != null;
+	}
+
+	private static class Replica {
+		private final AuthorizationRulesRepository repository;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile double latencyNanos;
+		private volatile long updatedNanos = System.nanoTime();
+
+		private Replica(AuthorizationRulesRepository repository) {
+			this.repository = repository;
+		}
+
+		private double cost(long now) {
+			double decay = Math.exp(-(double) (now - updatedNanos) / DECAY_NANOS);
+			return (latencyNanos * decay + 1) * (inFlight.get() + 1);
+		}
+
+		private long start() {
+			inFlight.incrementAndGet();
+			return System.nanoTime();
+		}
+
+		private void succeeded(long start) {
+			long now = System.nanoTime();
+			inFlight.decrementAndGet();
+			update(now - start, now);
+		}
+
+		private void failed() {
+			long now = System.nanoTime();
+			inFlight.decrementAndGet();
+			update(Math.max(FAILURE_PENALTY_NANOS, latencyNanos), now);
+		}
+
+		// races between concurrent updates only lose samples, which is acceptable for an estimate
+		private void update(double sampleNanos, long now) {
+			latencyNanos = latencyNanos == 0 ? sampleNanos : latencyNanos + EWMA_WEIGHT * (sampleNanos - latencyNanos);
+			updatedNanos = now;
+		}
+	}
+}
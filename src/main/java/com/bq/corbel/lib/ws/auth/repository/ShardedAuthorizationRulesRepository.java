@@ -0,0 +1,202 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonObject;
+
+/**
+ * {@link AuthorizationRulesRepository} that spreads the keys across several repositories, usually one per Redis node, by consistent
+ * hashing. Every node is placed many times in a hash ring by its name, so adding or removing a node only moves the keys of its
+ * neighbours in the ring, and the order of the nodes does not matter. Keys are placed by their hash tag, the text between the first
+ * '{' and the next '}' as in Redis Cluster, or else by the token part of the {@code token|audience} key, so all the rules of a token
+ * are stored in the same node. {@link #deleteByToken(String)} is only sent to the node of the token, since it scans the whole keyspace
+ * of the node it runs in. Keys placed in another node before a change of the nodes are not deleted, but they are no longer read and
+ * they expire with their token.
+ *
+ */
+public class ShardedAuthorizationRulesRepository implements AuthorizationRulesRepository {
+
+	private static final int VIRTUAL_NODES = 160;
+	private static final char KEY_SEPARATOR = '|';
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+	private final List<AuthorizationRulesRepository> shards;
+	private final int[] ringHashes;
+	private final int[] ringShards;
+
+	/**
+	 * @param names unique name of every shard, such as its host and port, in the same order as the shards
+	 */
+	public ShardedAuthorizationRulesRepository(List<AuthorizationRulesRepository> shards, List<String> names) {
+		if (shards.isEmpty() || shards.size() != names.size()) {
+			throw new IllegalArgumentException("A name is required for every shard");
+		}
+		this.shards = shards;
+		List<RingEntry> ring = new ArrayList<>(shards.size() * VIRTUAL_NODES);
+		for (int shard = 0; shard < shards.size(); shard++) {
+			for (int virtualNode = 0; virtualNode < VIRTUAL_NODES; virtualNode++) {
+				ring.add(new RingEntry(hash(names.get(shard) + "#" + virtualNode), names.get(shard), shard));
+			}
+		}
+		// sorted by name on collision, so the ring does not depend on the order of the shards
+		ring.sort(Comparator.comparingInt((RingEntry entry) -> entry.hash).thenComparing(entry -> entry.name));
+		this.ringHashes = new int[ring.size()];
+		this.ringShards = new int[ring.size()];
+		for (int i = 0; i < ring.size(); i++) {
+			ringHashes[i] = ring.get(i).hash;
+			ringShards[i] = ring.get(i).shard;
+		}
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		shard(key).save(key, timeToExpireInMillis, rules);
+	}
+
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		Map<AuthorizationRulesRepository, Map<String, Collection<JsonObject>>> rulesByShard = new IdentityHashMap<>();
+		rulesByKey.forEach((key, rules) -> rulesByShard.computeIfAbsent(shard(key), shard -> new HashMap<>()).put(key, rules));
+		rulesByShard.forEach((shard, shardRules) -> shard.saveAll(shardRules, timeToExpireInMillis));
+	}
+
+	@Override
+	public void delete(String key) {
+		shard(key).delete(key);
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		return shard(key).get(key);
+	}
+
+	@Override
+	public ExpiringRules getWithTimeToExpire(String key) {
+		return shard(key).getWithTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		Map<String, Set<JsonObject>> rules = new HashMap<>();
+		groupByShard(keys).forEach((shard, shardKeys) -> rules.putAll(shard.getAll(shardKeys)));
+		return rules;
+	}
+
+	@Override
+	public CompletableFuture<Set<JsonObject>> getAsync(String key) {
+		return shard(key).getAsync(key);
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		return shard(key).getTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		Map<String, Long> timesToExpire = new HashMap<>();
+		groupByShard(keys).forEach((shard, shardKeys) -> timesToExpire.putAll(shard.getTimeToExpireAll(shardKeys)));
+		return timesToExpire;
+	}
+
+	@Override
+	public CompletableFuture<Long> getTimeToExpireAsync(String key) {
+		return shard(key).getTimeToExpireAsync(key);
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		shard(key).addRules(key, rules);
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		shard(key).removeRules(key, rules);
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		return shard(key).existsRules(key);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> existsRulesAsync(String key) {
+		return shard(key).existsRulesAsync(key);
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return shards.get(0).getKeyForAuthorizationRules(token, key);
+	}
+
+	@Override
+	public void deleteByToken(String token) {
+		shard(token + KEY_SEPARATOR).deleteByToken(token);
+	}
+
+	@Override
+	public void keyChanged(String key) {
+		shard(key).keyChanged(key);
+	}
+
+	@Override
+	public void close() {
+		shards.forEach(AuthorizationRulesRepository::close);
+	}
+
+	private Map<AuthorizationRulesRepository, List<String>> groupByShard(Collection<String> keys) {
+		Map<AuthorizationRulesRepository, List<String>> keysByShard = new IdentityHashMap<>();
+		for (String key : keys) {
+			keysByShard.computeIfAbsent(shard(key), shard -> new ArrayList<>()).add(key);
+		}
+		return keysByShard;
+	}
+
+	private AuthorizationRulesRepository shard(String key) {
+		int index = Arrays.binarySearch(ringHashes, hash(shardKey(key)));
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return shards.get(ringShards[index == ringHashes.length ? 0 : index]);
+	}
+
+	private static String shardKey(String key) {
+		int tagStart = key.indexOf('{');
+		if (tagStart != -1) {
+			int tagEnd = key.indexOf('}', tagStart + 1);
+			if (tagEnd > tagStart + 1) {
+				return key.substring(tagStart + 1, tagEnd);
+			}
+		}
+		int separator = key.indexOf(KEY_SEPARATOR);
+		return separator != -1 ? key.substring(0, separator) : key;
+	}
+
+	private static int hash(String value) {
+		return HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8).asInt();
+	}
+
+	private static class RingEntry {
+		private final int hash;
+		private final String name;
+		private final int shard;
+
+		private RingEntry(int hash, String name, int shard) {
+			this.hash = hash;
+			this.name = name;
+			this.shard = shard;
+		}
+	}
+}
@@ -0,0 +1,508 @@
+package com.bq.corbel.lib.ws.auth.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bq.corbel.lib.ws.redis.BinaryJsonRedisSerializer;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * {@link AuthorizationRulesRepository} that caches the rules read from its delegate in a hash table of a memory-mapped file, shared by
+ * all the processes of the host that map the same file, so every rule set is read from Redis once per host instead of once per process
+ * and is kept off the heap.
+ * <p>
+ * The table has a fixed number of slots of a fixed size, and every key can be stored in a few consecutive slots. Every slot stores the
+ * hash of its key, the time when it expires, the key and the rules in binary JSON, a checksum and a sequence number. Writers hold a
+ * lock of the slots, both in the process and in the file, and make the sequence number odd while writing. Reads take no locks: a read
+ * is discarded when the sequence number is odd or changes during the read, or when the checksum does not match, and is then read from
+ * the delegate. Rule sets larger than a slot are not cached.
+ * <p>
+ * Every group of slots where a key can be stored has an invalidation counter in the file, incremented by every invalidation of one of
+ * its keys, which is read before loading rules from the delegate and checked again under the lock before writing them, so rules read
+ * before an invalidation by any process are never shared after it. The rules read with {@link #getWithTimeToExpire(String)} are never
+ * shared for longer than the remaining time to live of their key.
+ * <p>
+ * Writes through this repository invalidate the shared entries, and so do the changes notified with {@link #keyChanged(String)}, as
+ * when it is placed under a {@link NearCacheAuthorizationRulesRepository}, which also saves deserializing the shared rules on every read.
+ * Other changes are only seen once the entries expire, so the time to live bounds the staleness.
+ *
+ */
+public class SharedMemoryAuthorizationRulesRepository implements AuthorizationRulesRepository {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryAuthorizationRulesRepository.class);
+
+	private static final int MAGIC = 0xC0DE5EED;
+	private static final int VERSION = 2;
+	private static final int FILE_HEADER_SIZE = 64;
+	private static final int PROBES = 4;
+
+	// offsets in a slot
+	private static final int SEQUENCE = 0;
+	private static final int DATA = 8;
+	// offsets in the data of a slot, which is covered by the checksum except the checksum itself
+	private static final int HASH = 0;
+	private static final int EXPIRES_AT = 8;
+	private static final int KEY_LENGTH = 16;
+	private static final int VALUE_LENGTH = 20;
+	private static final int CHECKSUM = 24;
+	private static final int KEY = 28;
+
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+	private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+	// file locks are held by the whole JVM, so the writers of every instance must not overlap
+	private static final Object WRITE_LOCK = new Object();
+
+	private final AuthorizationRulesRepository delegate;
+	private final long timeToLiveMillis;
+	private final int slots;
+	private final int slotSize;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final BinaryJsonRedisSerializer<JsonArray> serializer = new BinaryJsonRedisSerializer<>(0);
+
+	/**
+	 * @param file file shared by the processes, usually in a memory file system such as /dev/shm. It is created readable only by its
+	 *        owner when it does not exist, or else it must be a regular file owned by the current user with permissions rw-------, created
+	 *        with the same number and size of slots
+	 * @param slots number of slots of the hash table
+	 * @param slotSize size in bytes of every slot
+	 * @param timeToLiveMillis time during which the rules read from the delegate are shared
+	 */
+	public SharedMemoryAuthorizationRulesRepository(AuthorizationRulesRepository delegate, Path file, int slots, int slotSize,
+			long timeToLiveMillis) throws IOException {
+		if (slots < PROBES || slotSize <= DATA + KEY) {
+			throw new IllegalArgumentException("At least " + PROBES + " slots larger than " + (DATA + KEY) + " bytes are required");
+		}
+		long fileSize = FILE_HEADER_SIZE + (long) slots * Long.BYTES + (long) slots * slotSize;
+		if (fileSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The shared rules file can not be larger than 2 GB");
+		}
+		this.delegate = delegate;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.slots = slots;
+		this.slotSize = slotSize;
+		this.channel = openFile(file);
+		try (FileLock lock = channel.lock(0, FILE_HEADER_SIZE, false)) {
+			if (channel.size() == 0) {
+				channel.truncate(fileSize);
+				this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(8, slots);
+				buffer.putInt(12, slotSize);
+				buffer.putInt(0, MAGIC);
+			} else {
+				this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+				if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != slots || buffer.getInt(12) != slotSize) {
+					channel.close();
+					throw new IllegalArgumentException("The shared rules file " + file + " has a different format");
+				}
+			}
+		}
+		LOG.info("Authorization rules shared in {} with {} slots of {} bytes", file, slots, slotSize);
+	}
+
+	@Override
+	public Set<JsonObject> get(String key) {
+		Set<JsonObject> rules = read(key);
+		if (rules == null) {
+			long invalidationsBeforeLoad = invalidations(key);
+			rules = delegate.get(key);
+			write(key, rules, invalidationsBeforeLoad, timeToLiveMillis);
+		}
+		return rules;
+	}
+
+	/**
+	 * The time to expire of shared rules is unknown, it is read only together with the rules that are not shared.
+	 */
+	@Override
+	public ExpiringRules getWithTimeToExpire(String key) {
+		Set<JsonObject> rules = read(key);
+		if (rules != null) {
+			return new ExpiringRules(rules, null);
+		}
+		long invalidationsBeforeLoad = invalidations(key);
+		ExpiringRules loaded = delegate.getWithTimeToExpire(key);
+		Long timeToExpire = loaded.getTimeToExpire();
+		// keys without expiration return -1
+		long timeToLive = timeToExpire != null && timeToExpire >= 0 ? Math.min(timeToLiveMillis, TimeUnit.SECONDS.toMillis(
+				timeToExpire)) : timeToLiveMillis;
+		write(key, loaded.getRules(), invalidationsBeforeLoad, timeToLive);
+		return loaded;
+	}
+
+	@Override
+	public CompletableFuture<Set<JsonObject>> getAsync(String key) {
+		Set<JsonObject> rules = read(key);
+		if (rules != null) {
+			return CompletableFuture.completedFuture(rules);
+		}
+		long invalidationsBeforeLoad = invalidations(key);
+		return delegate.getAsync(key).thenApply(delegateRules -> {
+			write(key, delegateRules, invalidationsBeforeLoad, timeToLiveMillis);
+			return delegateRules;
+		});
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getAll(Collection<String> keys) {
+		Map<String, Set<JsonObject>> rules = new HashMap<>();
+		Map<String, Long> invalidationsBeforeLoad = new HashMap<>();
+		for (String key : new HashSet<>(keys)) {
+			Set<JsonObject> keyRules = read(key);
+			if (keyRules != null) {
+				rules.put(key, keyRules);
+			} else {
+				invalidationsBeforeLoad.put(key, invalidations(key));
+			}
+		}
+		if (!invalidationsBeforeLoad.isEmpty()) {
+			Map<String, Set<JsonObject>> delegateRules = delegate.getAll(invalidationsBeforeLoad.keySet());
+			delegateRules.forEach((key, keyRules) -> write(key, keyRules, invalidationsBeforeLoad.getOrDefault(key, -1L),
+					timeToLiveMillis));
+			rules.putAll(delegateRules);
+		}
+		return rules;
+	}
+
+	@Override
+	public boolean existsRules(String key) {
+		return read(key) != null || delegate.existsRules(key);
+	}
+
+	@Override
+	public Long getTimeToExpire(String key) {
+		return delegate.getTimeToExpire(key);
+	}
+
+	@Override
+	public Map<String, Long> getTimeToExpireAll(Collection<String> keys) {
+		return delegate.getTimeToExpireAll(keys);
+	}
+
+	@Override
+	public Map<String, Set<JsonObject>> getCachedRules(int maximumEntries) {
+		return delegate.getCachedRules(maximumEntries);
+	}
+
+	@Override
+	public void save(String key, long timeToExpireInMillis, JsonObject... rules) {
+		delegate.save(key, timeToExpireInMillis, rules);
+		invalidate(key);
+	}
+
+	@Override
+	public void saveAll(Map<String, ? extends Collection<JsonObject>> rulesByKey, long timeToExpireInMillis) {
+		delegate.saveAll(rulesByKey, timeToExpireInMillis);
+		rulesByKey.keySet().forEach(this::invalidate);
+	}
+
+	@Override
+	public void delete(String key) {
+		delegate.delete(key);
+		invalidate(key);
+	}
+
+	@Override
+	public void addRules(String key, JsonObject... rules) {
+		delegate.addRules(key, rules);
+		invalidate(key);
+	}
+
+	@Override
+	public void removeRules(String key, JsonObject... rules) {
+		delegate.removeRules(key, rules);
+		invalidate(key);
+	}
+
+	@Override
+	public void keyChanged(String key) {
+		invalidate(key);
+		delegate.keyChanged(key);
+	}
+
+	@Override
+	public String getKeyForAuthorizationRules(String token, String key) {
+		return delegate.getKeyForAuthorizationRules(token, key);
+	}
+
+	/**
+	 * Invalidates the shared keys of the token examining every slot, since the table has no index by token.
+	 */
+	@Override
+	public void deleteByToken(String token) {
+		delegate.deleteByToken(token);
+		byte[] prefix = delegate.getKeyForAuthorizationRules(token, "").getBytes(StandardCharsets.UTF_8);
+		for (int slot = 0; slot < slots; slot++) {
+			byte[] data = readData(slot);
+			if (data != null && startsWith(data, prefix)) {
+				invalidate(new String(data, KEY, ByteBuffer.wrap(data).getInt(KEY_LENGTH), StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.warn("Error closing shared authorization rules file", e);
+		}
+		delegate.close();
+	}
+
+	private Set<JsonObject> read(String key) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		long hash = hash(keyBytes);
+		int first = firstSlot(hash);
+		for (int slot = first; slot < first + PROBES; slot++) {
+			if (buffer.getLong(slotOffset(slot) + DATA + HASH) != hash) {
+				continue;
+			}
+			byte[] data = readData(slot);
+			if (data == null) {
+				return null;
+			}
+			ByteBuffer fields = ByteBuffer.wrap(data);
+			int keyLength = fields.getInt(KEY_LENGTH);
+			if (fields.getLong(HASH) == hash && keyLength == keyBytes.length
+					&& Arrays.equals(keyBytes, Arrays.copyOfRange(data, KEY, KEY + keyLength))) {
+				if (fields.getLong(EXPIRES_AT) <= System.currentTimeMillis()) {
+					return null;
+				}
+				return toRules(serializer.deserialize(Arrays.copyOfRange(data, KEY + keyLength, data.length)));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a consistent copy of the data of the slot, or null if it is empty, being written or was modified while copying it
+	 */
+	private byte[] readData(int slot) {
+		int offset = slotOffset(slot);
+		long sequence = buffer.getLong(offset + SEQUENCE);
+		if ((sequence & 1) != 0 || buffer.getLong(offset + DATA + EXPIRES_AT) == 0) {
+			return null;
+		}
+		int keyLength = buffer.getInt(offset + DATA + KEY_LENGTH);
+		int valueLength = buffer.getInt(offset + DATA + VALUE_LENGTH);
+		if (keyLength < 0 || valueLength < 0 || (long) DATA + KEY + keyLength + valueLength > slotSize) {
+			return null;
+		}
+		byte[] data = new byte[KEY + keyLength + valueLength];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + DATA);
+		view.get(data);
+		if (buffer.getLong(offset + SEQUENCE) != sequence || ByteBuffer.wrap(data).getInt(CHECKSUM) != checksum(data)) {
+			return null;
+		}
+		return data;
+	}
+
+	/**
+	 * @param invalidationsBeforeLoad invalidations of the slots of the key read before loading the rules, which are not written if the
+	 *        key has been invalidated since then
+	 */
+	private void write(String key, Set<JsonObject> rules, long invalidationsBeforeLoad, long timeToLive) {
+		if (rules == null || rules.isEmpty() || timeToLive <= 0) {
+			return;
+		}
+		JsonArray array = new JsonArray();
+		rules.forEach(array::add);
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] value = serializer.serialize(array);
+		if ((long) DATA + KEY + keyBytes.length + value.length > slotSize) {
+			return;
+		}
+		long hash = hash(keyBytes);
+		ByteBuffer data = ByteBuffer.allocate(KEY + keyBytes.length + value.length);
+		data.putLong(HASH, hash);
+		data.putLong(EXPIRES_AT, System.currentTimeMillis() + timeToLive);
+		data.putInt(KEY_LENGTH, keyBytes.length);
+		data.putInt(VALUE_LENGTH, value.length);
+		data.position(KEY);
+		data.put(keyBytes);
+		data.put(value);
+		data.putInt(CHECKSUM, checksum(data.array()));
+		update(hash, data.array(), invalidationsBeforeLoad);
+	}
+
+	private void invalidate(String key) {
+		update(hash(key.getBytes(StandardCharsets.UTF_8)), null, 0);
+	}
+
+	/**
+	 * @return the invalidations of the slots where the key can be stored
+	 */
+	private long invalidations(String key) {
+		return buffer.getLong(invalidationsOffset(firstSlot(hash(key.getBytes(StandardCharsets.UTF_8)))));
+	}
+
+	/**
+	 * Writes the data in the slot of its key, or in an empty or expired slot, or else in the slot expiring first, unless the slots of the
+	 * key were invalidated after the given number of invalidations. Null data empties the slot of the key, if any, and counts an
+	 * invalidation of its slots.
+	 */
+	private void update(long hash, byte[] data, long invalidationsBeforeLoad) {
+		int first = firstSlot(hash);
+		synchronized (WRITE_LOCK) {
+			// every update of the slots holds the lock of their first slot, which also covers their invalidation counter
+			try (FileLock lock = channel.lock(slotOffset(first), (long) PROBES * slotSize, false)) {
+				int invalidations = invalidationsOffset(first);
+				if (data == null) {
+					buffer.putLong(invalidations, buffer.getLong(invalidations) + 1);
+				} else if (buffer.getLong(invalidations) != invalidationsBeforeLoad) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				int target = -1;
+				int oldest = first;
+				for (int slot = first; slot < first + PROBES; slot++) {
+					int offset = slotOffset(slot);
+					long expiresAt = buffer.getLong(offset + DATA + EXPIRES_AT);
+					if (expiresAt != 0 && buffer.getLong(offset + DATA + HASH) == hash) {
+						target = slot;
+						break;
+					}
+					if (target == -1 && expiresAt <= now) {
+						target = slot;
+					}
+					if (expiresAt < buffer.getLong(slotOffset(oldest) + DATA + EXPIRES_AT)) {
+						oldest = slot;
+					}
+				}
+				if (data == null) {
+					if (target != -1 && buffer.getLong(slotOffset(target) + DATA + HASH) == hash) {
+						writeSlot(target, new byte[KEY]);
+					}
+					return;
+				}
+				writeSlot(target != -1 ? target : oldest, data);
+			} catch (IOException e) {
+				LOG.warn("Error locking shared authorization rules: {}", e.getMessage());
+			}
+		}
+	}
+
+	private void writeSlot(int slot, byte[] data) {
+		int offset = slotOffset(slot);
+		long sequence = buffer.getLong(offset + SEQUENCE);
+		// a process that died while writing may have left the sequence odd
+		long writing = (sequence & 1) == 0 ? sequence + 1 : sequence + 2;
+		buffer.putLong(offset + SEQUENCE, writing);
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + DATA);
+		view.put(data);
+		buffer.putLong(offset + SEQUENCE, writing + 1);
+	}
+
+	private int firstSlot(long hash) {
+		return (int) ((hash & Long.MAX_VALUE) % (slots - PROBES + 1));
+	}
+
+	private int invalidationsOffset(int firstSlot) {
+		return FILE_HEADER_SIZE + firstSlot * Long.BYTES;
+	}
+
+	private int slotOffset(int slot) {
+		return FILE_HEADER_SIZE + slots * Long.BYTES + slot * slotSize;
+	}
+
+	private static long hash(byte[] key) {
+		long hash = HASH_FUNCTION.hashBytes(key).asLong();
+		// zero is the hash of the empty slots
+		return hash != 0 ? hash : 1;
+	}
+
+	private static int checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, CHECKSUM);
+		crc.update(data, KEY, data.length - KEY);
+		return (int) crc.getValue();
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix) {
+		int keyLength = ByteBuffer.wrap(data).getInt(KEY_LENGTH);
+		if (keyLength < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[KEY + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Set<JsonObject> toRules(JsonArray array) {
+		Set<JsonObject> rules = new HashSet<>();
+		for (JsonElement element : array) {
+			rules.add(element.getAsJsonObject());
+		}
+		return Collections.unmodifiableSet(rules);
+	}
+
+	/**
+	 * Creates the file readable only by its owner in the same operation, or opens the existing one if it is a regular file owned by the
+	 * current user and not accessible by anyone else, so other users can neither read the rules nor plant a file with forged ones.
+	 */
+	private static FileChannel openFile(Path file) throws IOException {
+		boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+		Set<StandardOpenOption> create = EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+		try {
+			return posix ? FileChannel.open(file, create, PosixFilePermissions.asFileAttribute(OWNER_ONLY)) : FileChannel.open(file, create);
+		} catch (FileAlreadyExistsException e) {
+			// created before, maybe by another process
+		}
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+		if (posix) {
+			try {
+				PosixFileAttributes attributes = Files.readAttributes(file, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				UserPrincipal currentUser = file.getFileSystem().getUserPrincipalLookupService()
+						.lookupPrincipalByName(System.getProperty("user.name"));
+				if (!attributes.isRegularFile() || !attributes.owner().equals(currentUser)
+						|| !attributes.permissions().equals(OWNER_ONLY)) {
+					throw new IllegalArgumentException("The shared rules file " + file + " must be a regular file owned by "
+							+ currentUser.getName() + " with permissions " + PosixFilePermissions.toString(OWNER_ONLY));
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+		return channel;
+	}
+}
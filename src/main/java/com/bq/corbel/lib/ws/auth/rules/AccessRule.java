@@ -0,0 +1,150 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Immutable, pre-parsed form of an <b>http_access</b> rule. The JSON rule is read only once, when the rule is compiled, so evaluating
+ * it against a request does not touch Gson, compile regular expressions or parse media types.
+ *
+ */
+public final class AccessRule {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AccessRule.class);
+
+    private static final String METHODS_FIELD = "methods";
+    private static final String URI_FIELD = "uri";
+    private static final String MEDIA_TYPES_FIELD = "mediaTypes";
+    private static final String TOKEN_TYPE_FIELD = "tokenType";
+
+    private final JsonObject source;
+    private final int methods;
+    private final Set<String> extensionMethods;
+    private final String uri;
+    private final Pattern uriPattern;
+    private final List<MediaType> mediaTypes;
+    private final AccessRuleTokenType tokenType;
+
+    private AccessRule(JsonObject source, int methods, Set<String> extensionMethods, String uri, Pattern uriPattern,
+            List<MediaType> mediaTypes, AccessRuleTokenType tokenType) {
+        this.source = source;
+        this.methods = methods;
+        this.extensionMethods = extensionMethods;
+        this.uri = uri;
+        this.uriPattern = uriPattern;
+        this.mediaTypes = mediaTypes;
+        this.tokenType = tokenType;
+    }
+
+    /**
+     * Compiles a JSON access rule.
+     *
+     * @return the compiled rule, or empty if the rule is malformed and therefore can never grant access
+     */
+    public static Optional<AccessRule> compile(JsonObject rule) {
+        try {
+            if (!rule.has(METHODS_FIELD)) {
+                LOG.warn("Http access rule without methods field: {}", rule.toString());
+                return Optional.empty();
+            }
+            if (!rule.has(URI_FIELD)) {
+                LOG.warn("Http access rule without uri field: {}", rule.toString());
+                return Optional.empty();
+            }
+            if (!rule.has(MEDIA_TYPES_FIELD)) {
+                LOG.warn("Http access rule without mediaTypes field: {}", rule.toString());
+                return Optional.empty();
+            }
+
+            int methods = 0;
+            Set<String> extensionMethods = new HashSet<>();
+            for (JsonElement method : rule.get(METHODS_FIELD).getAsJsonArray()) {
+                int bit = HttpMethodMask.bit(method.getAsString());
+                if (bit != 0) {
+                    methods |= bit;
+                } else {
+                    extensionMethods.add(method.getAsString());
+                }
+            }
+
+            String uri = rule.get(URI_FIELD).getAsString();
+            Pattern uriPattern = Pattern.compile(uri);
+
+            JsonArray mediaTypesArray = rule.get(MEDIA_TYPES_FIELD).getAsJsonArray();
+            List<MediaType> mediaTypes = new ArrayList<>(mediaTypesArray.size());
+            for (JsonElement mediaType : mediaTypesArray) {
+                try {
+                    mediaTypes.add(MediaType.valueOf(mediaType.getAsString()));
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Ignoring invalid media type {} in http access rule: {}", mediaType, rule.toString());
+                }
+            }
+
+            AccessRuleTokenType tokenType = rule.has(TOKEN_TYPE_FIELD) ? AccessRuleTokenType.fromValue(rule.get(TOKEN_TYPE_FIELD)
+                    .getAsString()) : AccessRuleTokenType.ANY;
+
+            return Optional.of(new AccessRule(rule, methods, extensionMethods.isEmpty() ? Collections.emptySet() : Collections
+                    .unmodifiableSet(extensionMethods), uri, uriPattern, Collections.unmodifiableList(mediaTypes), tokenType));
+        } catch (PatternSyntaxException e) {
+            LOG.warn("Http access rule with invalid uri pattern: {}", rule.toString());
+        } catch (IllegalStateException | UnsupportedOperationException | ClassCastException e) {
+            LOG.warn("Malformed http access rule: {}", rule.toString());
+        }
+        return Optional.empty();
+    }
+
+    public boolean matchesMethod(int methodBit, String method) {
+        return methodBit != 0 ? (methods & methodBit) != 0 : extensionMethods.contains(method);
+    }
+
+    public boolean matchesUriPath(String path) {
+        return uriPattern.matcher(path).matches();
+    }
+
+    public boolean matchesMediaTypes(List<MediaType> acceptableMediaTypes) {
+        for (MediaType acceptable : acceptableMediaTypes) {
+            for (MediaType mediaType : mediaTypes) {
+                if (acceptable.isCompatible(mediaType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean matchesTokenType(boolean userToken) {
+        return tokenType.accepts(userToken);
+    }
+
+    public JsonObject getSource() {
+        return source;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public List<MediaType> getMediaTypes() {
+        return mediaTypes;
+    }
+
+    public AccessRuleTokenType getTokenType() {
+        return tokenType;
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonObject;
+
+/**
+ * Compiles JSON access rules into {@link AccessRules}. The same scopes are shared by many tokens, so every compiled rule is kept in a
+ * bounded cache keyed by its JSON value and compiled only the first time it is seen. Rules passed to the compiler must not be mutated
+ * afterwards.
+ * <p>
+ * Rule sets with at least {@code combinedUriMatcherMinRules} rules also get a {@link UriAutomaton} that matches all their uri patterns
+ * in a single pass. Automata are cached by the list of patterns, so tokens with the same scopes share them.
+ * <p>
+ * Whole rule sets can also be interned with {@link #intern(Set)}, so requests with the same scopes share a single immutable set of
+ * rules and its compiled form instead of retaining one copy per request.
+ *
+ */
+public class AccessRuleCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AccessRuleCompiler.class);
+    private static final long DEFAULT_MAXIMUM_SIZE = 10000;
+    private static final long AUTOMATA_MAXIMUM_SIZE = 1000;
+    private static final long RULE_SETS_MAXIMUM_SIZE = 10000;
+    public static final int COMBINED_URI_MATCHER_DISABLED = 0;
+
+    private final Cache<JsonObject, Optional<AccessRule>> compiledRules;
+    private final Cache<List<String>, UriAutomaton> automata;
+    private final Cache<Set<JsonObject>, RuleSet> ruleSets;
+    private final int combinedUriMatcherMinRules;
+
+    /**
+     * @return compiler with the default configuration, for the code that is not given a configured one
+     */
+    public static AccessRuleCompiler getInstance() {
+        return DefaultInstanceHolder.INSTANCE;
+    }
+
+    public AccessRuleCompiler(long maximumSize) {
+        this(maximumSize, COMBINED_URI_MATCHER_DISABLED);
+    }
+
+    /**
+     * @param combinedUriMatcherMinRules minimum number of rules of a rule set to match its uris with a single {@link UriAutomaton},
+     *        {@link #COMBINED_URI_MATCHER_DISABLED} to always evaluate the rules one by one
+     */
+    public AccessRuleCompiler(long maximumSize, int combinedUriMatcherMinRules) {
+        this.compiledRules = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.automata = CacheBuilder.newBuilder().maximumSize(AUTOMATA_MAXIMUM_SIZE).build();
+        this.ruleSets = CacheBuilder.newBuilder().maximumSize(RULE_SETS_MAXIMUM_SIZE).build();
+        this.combinedUriMatcherMinRules = combinedUriMatcherMinRules;
+    }
+
+    public AccessRules compile(Collection<JsonObject> rules) {
+        if (rules == null || rules.isEmpty()) {
+            return AccessRules.EMPTY;
+        }
+        List<AccessRule> compiled = new ArrayList<>(rules.size());
+        for (JsonObject rule : rules) {
+            compile(rule).ifPresent(compiled::add);
+        }
+        return new AccessRules(compiled, automaton(compiled));
+    }
+
+    /**
+     * @return the canonical {@link RuleSet} equal to the given rules, compiling them only if no equal rule set is cached
+     */
+    public RuleSet intern(Set<JsonObject> rules) {
+        if (rules == null || rules.isEmpty()) {
+            return RuleSet.EMPTY;
+        }
+        RuleSet ruleSet = ruleSets.getIfPresent(rules);
+        if (ruleSet == null) {
+            // the given set may be mutable, so the cache key is an immutable copy
+            Set<JsonObject> immutableRules = ImmutableSet.copyOf(rules);
+            ruleSet = new RuleSet(immutableRules, compile(immutableRules));
+            ruleSets.put(immutableRules, ruleSet);
+        }
+        return ruleSet;
+    }
+
+    public Optional<AccessRule> compile(JsonObject rule) {
+        Optional<AccessRule> compiled = compiledRules.getIfPresent(rule);
+        if (compiled == null) {
+            compiled = AccessRule.compile(rule);
+            compiledRules.put(rule, compiled);
+        }
+        return compiled;
+    }
+
+    private UriAutomaton automaton(List<AccessRule> rules) {
+        if (combinedUriMatcherMinRules == COMBINED_URI_MATCHER_DISABLED || rules.size() < combinedUriMatcherMinRules) {
+            return null;
+        }
+        List<String> uris = rules.stream().map(AccessRule::getUri).collect(Collectors.toList());
+        UriAutomaton automaton = automata.getIfPresent(uris);
+        if (automaton == null) {
+            automaton = UriAutomaton.compile(uris);
+            automata.put(uris, automaton);
+        }
+        return automaton;
+    }
+
+    private static class DefaultInstanceHolder {
+        private static final AccessRuleCompiler INSTANCE = new AccessRuleCompiler(DEFAULT_MAXIMUM_SIZE);
+    }
+}
@@ -0,0 +1,36 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+/**
+ * Values of the <b>tokenType</b> field of an access rule.
+ *
+ */
+public enum AccessRuleTokenType {
+
+    /**
+     * No tokenType defined, so there's nothing to check.
+     */
+    ANY,
+    /**
+     * Only tokens issued for a user.
+     */
+    USER,
+    /**
+     * We don't know what that value means, so the rule always fails.
+     */
+    UNSUPPORTED;
+
+    public static AccessRuleTokenType fromValue(String value) {
+        return "user".equals(value) ? USER : UNSUPPORTED;
+    }
+
+    public boolean accepts(boolean userToken) {
+        switch (this) {
+            case ANY:
+                return true;
+            case USER:
+                return userToken;
+            default:
+                return false;
+        }
+    }
+}
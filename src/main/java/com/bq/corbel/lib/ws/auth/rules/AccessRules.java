@@ -0,0 +1,71 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Immutable set of compiled {@link AccessRule}s. Instances are obtained through {@link AccessRuleCompiler}. When the set has a
+ * {@link UriAutomaton} only the rules whose uri matches the scope url, plus the ones the automaton cannot evaluate, are checked.
+ *
+ */
+public final class AccessRules {
+
+    public static final AccessRules EMPTY = new AccessRules(Collections.emptyList(), null);
+
+    private final List<AccessRule> rules;
+    private final UriAutomaton uriAutomaton;
+
+    AccessRules(List<AccessRule> rules, UriAutomaton uriAutomaton) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.uriAutomaton = uriAutomaton;
+    }
+
+    /**
+     * @return true if at least one rule grants access to the request
+     */
+    public boolean matches(String method, String scopeUrl, List<MediaType> acceptableMediaTypes, boolean userToken) {
+        int methodBit = HttpMethodMask.bit(method);
+        int[] candidates = uriAutomaton != null ? uriAutomaton.match(scopeUrl) : null;
+        if (candidates != null) {
+            for (int candidate : candidates) {
+                AccessRule rule = rules.get(candidate);
+                if (rule.matchesMethod(methodBit, method) && rule.matchesMediaTypes(acceptableMediaTypes)
+                        && rule.matchesTokenType(userToken)) {
+                    return true;
+                }
+            }
+            for (int unsupported : uriAutomaton.getUnsupportedPatterns()) {
+                if (matches(rules.get(unsupported), methodBit, method, scopeUrl, acceptableMediaTypes, userToken)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (AccessRule rule : rules) {
+            if (matches(rule, methodBit, method, scopeUrl, acceptableMediaTypes, userToken)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(AccessRule rule, int methodBit, String method, String scopeUrl, List<MediaType> acceptableMediaTypes,
+            boolean userToken) {
+        return rule.matchesMethod(methodBit, method) && rule.matchesUriPath(scopeUrl) && rule.matchesMediaTypes(acceptableMediaTypes)
+                && rule.matchesTokenType(userToken);
+    }
+
+    public List<AccessRule> getRules() {
+        return rules;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    public int size() {
+        return rules.size();
+    }
+}
@@ -0,0 +1,87 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable set of chars stored as sorted, disjoint, inclusive ranges.
+ *
+ */
+final class CharRanges {
+
+    private static final int MAX_CHAR = Character.MAX_VALUE;
+
+    static final CharRanges DIGIT = of('0', '9');
+    static final CharRanges WORD = of('a', 'z').union(of('A', 'Z')).union(of('_', '_')).union(DIGIT);
+    static final CharRanges SPACE = of(' ', ' ').union(of('\t', '\r'));
+    // java.util.regex excludes line terminators from '.' unless DOTALL is enabled
+    static final CharRanges DOT = of('\n').union(of('\r')).union(of((char) 0x85)).union(of((char) 0x2028, (char) 0x2029)).complement();
+
+    private final int[] ranges;
+
+    private CharRanges(int[] ranges) {
+        this.ranges = ranges;
+    }
+
+    static CharRanges of(char from, char to) {
+        return new CharRanges(new int[] {from, to});
+    }
+
+    static CharRanges of(char c) {
+        return of(c, c);
+    }
+
+    char first() {
+        return (char) ranges[0];
+    }
+
+    boolean contains(char c) {
+        for (int i = 0; i < ranges.length && ranges[i] <= c; i += 2) {
+            if (c <= ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    CharRanges union(CharRanges other) {
+        List<int[]> all = new ArrayList<>();
+        for (int i = 0; i < ranges.length; i += 2) {
+            all.add(new int[] {ranges[i], ranges[i + 1]});
+        }
+        for (int i = 0; i < other.ranges.length; i += 2) {
+            all.add(new int[] {other.ranges[i], other.ranges[i + 1]});
+        }
+        all.sort((a, b) -> Integer.compare(a[0], b[0]));
+        int[] merged = new int[all.size() * 2];
+        int size = 0;
+        for (int[] range : all) {
+            if (size > 0 && range[0] <= merged[size - 1] + 1) {
+                merged[size - 1] = Math.max(merged[size - 1], range[1]);
+            } else {
+                merged[size++] = range[0];
+                merged[size++] = range[1];
+            }
+        }
+        return new CharRanges(Arrays.copyOf(merged, size));
+    }
+
+    CharRanges complement() {
+        int[] complement = new int[ranges.length + 2];
+        int size = 0;
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                complement[size++] = next;
+                complement[size++] = ranges[i] - 1;
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= MAX_CHAR) {
+            complement[size++] = next;
+            complement[size++] = MAX_CHAR;
+        }
+        return new CharRanges(Arrays.copyOf(complement, size));
+    }
+}
@@ -0,0 +1,39 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.ws.rs.HttpMethod;
+
+/**
+ * Maps the standard HTTP methods to single bits so the methods of an access rule can be checked with one mask operation. Extension
+ * methods have no bit (0) and must be compared by name.
+ *
+ */
+public final class HttpMethodMask {
+
+    private static final Map<String, Integer> BITS = new HashMap<>();
+
+    static {
+        register(HttpMethod.GET);
+        register(HttpMethod.POST);
+        register(HttpMethod.PUT);
+        register(HttpMethod.DELETE);
+        register(HttpMethod.HEAD);
+        register(HttpMethod.OPTIONS);
+        register("PATCH");
+        register("TRACE");
+        register("CONNECT");
+    }
+
+    private HttpMethodMask() {}
+
+    private static void register(String method) {
+        BITS.put(method, 1 << BITS.size());
+    }
+
+    public static int bit(String method) {
+        Integer bit = method != null ? BITS.get(method) : null;
+        return bit != null ? bit : 0;
+    }
+}
@@ -0,0 +1,32 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import java.util.Collections;
+import java.util.Set;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Immutable set of JSON access rules together with its compiled form. Instances are obtained through
+ * {@link AccessRuleCompiler#intern(Set)}, so equal rule sets are usually the same instance.
+ *
+ */
+public final class RuleSet {
+
+    public static final RuleSet EMPTY = new RuleSet(Collections.emptySet(), AccessRules.EMPTY);
+
+    private final Set<JsonObject> rules;
+    private final AccessRules compiledRules;
+
+    RuleSet(Set<JsonObject> rules, AccessRules compiledRules) {
+        this.rules = rules;
+        this.compiledRules = compiledRules;
+    }
+
+    public Set<JsonObject> getRules() {
+        return rules;
+    }
+
+    public AccessRules getCompiledRules() {
+        return compiledRules;
+    }
+}
@@ -0,0 +1,279 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.bq.corbel.lib.ws.auth.rules.UriPatternParser.Alternation;
+import com.bq.corbel.lib.ws.auth.rules.UriPatternParser.CharClass;
+import com.bq.corbel.lib.ws.auth.rules.UriPatternParser.Concatenation;
+import com.bq.corbel.lib.ws.auth.rules.UriPatternParser.Node;
+import com.bq.corbel.lib.ws.auth.rules.UriPatternParser.Repetition;
+
+/**
+ * Matches a path against all the uri patterns of a rule set in a single pass. The patterns are combined into one NFA whose accepting
+ * states are labeled with the index of their pattern, and the equivalent DFA is built lazily while paths are matched, so the cost of a
+ * match is linear in the length of the path regardless of the number of patterns and it is not exposed to catastrophic backtracking.
+ * The number of cached DFA states is bounded; once the limit is reached the remaining transitions are computed on the fly.
+ *
+ */
+public final class UriAutomaton {
+
+    private static final int DEFAULT_MAX_DFA_STATES = 4096;
+    private static final int ASCII = 128;
+
+    private static final int CHARS = 0;
+    private static final int SPLIT = 1;
+    private static final int ACCEPT = 2;
+
+    // NFA
+    private final int[] types;
+    private final CharRanges[] charRanges;
+    private final int[] next;
+    private final int[] alternative;
+    private final int[] pattern;
+
+    private final int[] unsupported;
+    private final int maxDfaStates;
+    private final Map<StateKey, DfaState> dfaStates = new ConcurrentHashMap<>();
+    private final DfaState initial;
+
+    private UriAutomaton(NfaBuilder nfa, int[] starts, int[] unsupported, int maxDfaStates) {
+        this.types = nfa.types.stream().mapToInt(Integer::intValue).toArray();
+        this.charRanges = nfa.charRanges.toArray(new CharRanges[nfa.charRanges.size()]);
+        this.next = nfa.next.stream().mapToInt(Integer::intValue).toArray();
+        this.alternative = nfa.alternative.stream().mapToInt(Integer::intValue).toArray();
+        this.pattern = nfa.pattern.stream().mapToInt(Integer::intValue).toArray();
+        this.unsupported = unsupported;
+        this.maxDfaStates = maxDfaStates;
+        this.initial = state(closure(starts), true);
+    }
+
+    public static UriAutomaton compile(List<String> patterns) {
+        return compile(patterns, DEFAULT_MAX_DFA_STATES);
+    }
+
+    public static UriAutomaton compile(List<String> patterns, int maxDfaStates) {
+        NfaBuilder nfa = new NfaBuilder();
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> unsupported = new ArrayList<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            try {
+                Node node = UriPatternParser.parse(patterns.get(i));
+                starts.add(nfa.compile(node, nfa.accept(i)));
+            } catch (UriPatternParser.UnsupportedPatternException e) {
+                unsupported.add(i);
+            }
+        }
+        return new UriAutomaton(nfa, starts.stream().mapToInt(Integer::intValue).toArray(),
+                unsupported.stream().mapToInt(Integer::intValue).toArray(), maxDfaStates);
+    }
+
+    /**
+     * @return the sorted indexes of the patterns that fully match the path, or null if the path cannot be evaluated by the automaton
+     *         and the patterns must be matched one by one
+     */
+    public int[] match(String path) {
+        DfaState state = initial;
+        for (int i = 0; i < path.length() && state.nfaStates.length > 0; i++) {
+            char c = path.charAt(i);
+            if (Character.isSurrogate(c)) {
+                return null;
+            }
+            state = state.next(c);
+        }
+        return state.accepted;
+    }
+
+    /**
+     * @return the sorted indexes of the patterns that use features not supported by the automaton. They are never reported by
+     *         {@link #match(String)} and must be evaluated with java.util.regex.
+     */
+    public int[] getUnsupportedPatterns() {
+        return unsupported;
+    }
+
+    int getDfaStatesCount() {
+        return dfaStates.size();
+    }
+
+    private DfaState state(int[] nfaStates, boolean cache) {
+        StateKey key = new StateKey(nfaStates);
+        DfaState state = dfaStates.get(key);
+        if (state == null) {
+            state = new DfaState(nfaStates, accepted(nfaStates));
+            if (cache && dfaStates.size() < maxDfaStates) {
+                DfaState previous = dfaStates.putIfAbsent(key, state);
+                state = previous != null ? previous : state;
+            }
+        }
+        return state;
+    }
+
+    private int[] accepted(int[] nfaStates) {
+        return Arrays.stream(nfaStates).filter(state -> types[state] == ACCEPT).map(state -> pattern[state]).distinct().sorted()
+                .toArray();
+    }
+
+    private int[] step(int[] nfaStates, char c) {
+        int[] targets = new int[nfaStates.length];
+        int size = 0;
+        for (int state : nfaStates) {
+            if (types[state] == CHARS && charRanges[state].contains(c)) {
+                targets[size++] = next[state];
+            }
+        }
+        return closure(Arrays.copyOf(targets, size));
+    }
+
+    /**
+     * @return the sorted CHARS and ACCEPT states reachable from the given states through SPLIT states
+     */
+    private int[] closure(int[] states) {
+        boolean[] visited = new boolean[types.length];
+        int[] stack = new int[types.length];
+        int[] closure = new int[types.length];
+        int stackSize = 0;
+        int size = 0;
+        for (int state : states) {
+            if (!visited[state]) {
+                visited[state] = true;
+                stack[stackSize++] = state;
+            }
+        }
+        while (stackSize > 0) {
+            int state = stack[--stackSize];
+            if (types[state] == SPLIT) {
+                for (int target : new int[] {next[state], alternative[state]}) {
+                    if (!visited[target]) {
+                        visited[target] = true;
+                        stack[stackSize++] = target;
+                    }
+                }
+            } else {
+                closure[size++] = state;
+            }
+        }
+        int[] sorted = Arrays.copyOf(closure, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private final class DfaState {
+        private final int[] nfaStates;
+        private final int[] accepted;
+        // DfaState instances are immutable apart from these transition caches, racy writes only lose work
+        private final DfaState[] asciiTransitions = new DfaState[ASCII];
+        private final Map<Character, DfaState> transitions = new ConcurrentHashMap<>();
+
+        private DfaState(int[] nfaStates, int[] accepted) {
+            this.nfaStates = nfaStates;
+            this.accepted = accepted;
+        }
+
+        private DfaState next(char c) {
+            DfaState target = c < ASCII ? asciiTransitions[c] : transitions.get(c);
+            if (target == null) {
+                boolean cache = dfaStates.size() < maxDfaStates;
+                target = state(step(nfaStates, c), cache);
+                if (cache) {
+                    if (c < ASCII) {
+                        asciiTransitions[c] = target;
+                    } else {
+                        transitions.put(c, target);
+                    }
+                }
+            }
+            return target;
+        }
+    }
+
+    private static final class StateKey {
+        private final int[] states;
+        private final int hash;
+
+        private StateKey(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof StateKey && Arrays.equals(states, ((StateKey) obj).states);
+        }
+    }
+
+    private static final class NfaBuilder {
+        private final List<Integer> types = new ArrayList<>();
+        private final List<CharRanges> charRanges = new ArrayList<>();
+        private final List<Integer> next = new ArrayList<>();
+        private final List<Integer> alternative = new ArrayList<>();
+        private final List<Integer> pattern = new ArrayList<>();
+
+        private int add(int type, CharRanges ranges, int nextState, int alternativeState, int patternIndex) {
+            types.add(type);
+            charRanges.add(ranges);
+            next.add(nextState);
+            alternative.add(alternativeState);
+            pattern.add(patternIndex);
+            return types.size() - 1;
+        }
+
+        private int accept(int patternIndex) {
+            return add(ACCEPT, null, -1, -1, patternIndex);
+        }
+
+        private int split(int first, int second) {
+            return add(SPLIT, null, first, second, -1);
+        }
+
+        /**
+         * Thompson construction, built backwards from the state that follows the node.
+         *
+         * @return the entry state of the node
+         */
+        private int compile(Node node, int following) {
+            if (node instanceof CharClass) {
+                return add(CHARS, ((CharClass) node).ranges, following, -1, -1);
+            }
+            if (node instanceof Concatenation) {
+                List<Node> nodes = ((Concatenation) node).nodes;
+                int entry = following;
+                for (int i = nodes.size() - 1; i >= 0; i--) {
+                    entry = compile(nodes.get(i), entry);
+                }
+                return entry;
+            }
+            if (node instanceof Alternation) {
+                List<Node> alternatives = ((Alternation) node).alternatives;
+                int entry = compile(alternatives.get(alternatives.size() - 1), following);
+                for (int i = alternatives.size() - 2; i >= 0; i--) {
+                    entry = split(compile(alternatives.get(i), following), entry);
+                }
+                return entry;
+            }
+            Repetition repetition = (Repetition) node;
+            int entry = following;
+            if (repetition.max == Repetition.UNBOUNDED) {
+                int loop = split(-1, following);
+                next.set(loop, compile(repetition.node, loop));
+                entry = loop;
+            } else {
+                for (int i = repetition.min; i < repetition.max; i++) {
+                    entry = split(compile(repetition.node, entry), following);
+                }
+            }
+            for (int i = 0; i < repetition.min; i++) {
+                entry = compile(repetition.node, entry);
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the subset of {@link java.util.regex.Pattern} syntax that can be evaluated by {@link UriAutomaton}: literals, escapes, '.',
+ * character classes, groups, alternation and greedy or reluctant quantifiers. Anything else (back references, lookarounds, embedded
+ * flags, possessive quantifiers, boundaries...) is rejected with an {@link UnsupportedPatternException} and the pattern is evaluated
+ * with java.util.regex instead. Only patterns already accepted by {@link java.util.regex.Pattern#compile(String)} are parsed.
+ *
+ */
+final class UriPatternParser {
+
+    private static final int MAX_REPETITIONS = 64;
+
+    private final String pattern;
+    private int position;
+
+    private UriPatternParser(String pattern) {
+        this.pattern = pattern;
+    }
+
+    static Node parse(String pattern) throws UnsupportedPatternException {
+        for (int i = 0; i < pattern.length(); i++) {
+            // java.util.regex works on code points, the automaton on chars
+            if (Character.isSurrogate(pattern.charAt(i))) {
+                throw new UnsupportedPatternException(pattern);
+            }
+        }
+        UriPatternParser parser = new UriPatternParser(pattern);
+        // full matches are performed, so leading and trailing anchors are no-ops
+        int end = pattern.length();
+        if (end > 0 && pattern.charAt(0) == '^') {
+            parser.position = 1;
+        }
+        if (end > parser.position && pattern.charAt(end - 1) == '$' && !isEscaped(pattern, end - 1)) {
+            parser = new UriPatternParser(pattern.substring(0, end - 1));
+            parser.position = pattern.charAt(0) == '^' ? 1 : 0;
+        }
+        Node node = parser.parseAlternation();
+        if (parser.position != parser.pattern.length()) {
+            throw new UnsupportedPatternException(pattern);
+        }
+        return node;
+    }
+
+    private static boolean isEscaped(String pattern, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && pattern.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private Node parseAlternation() throws UnsupportedPatternException {
+        List<Node> alternatives = new ArrayList<>();
+        alternatives.add(parseConcatenation());
+        while (position < pattern.length() && pattern.charAt(position) == '|') {
+            position++;
+            alternatives.add(parseConcatenation());
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : new Alternation(alternatives);
+    }
+
+    private Node parseConcatenation() throws UnsupportedPatternException {
+        List<Node> nodes = new ArrayList<>();
+        while (position < pattern.length()) {
+            char c = pattern.charAt(position);
+            if (c == '|' || c == ')') {
+                break;
+            }
+            nodes.add(parseQuantified(parseAtom()));
+        }
+        return nodes.size() == 1 ? nodes.get(0) : new Concatenation(nodes);
+    }
+
+    private Node parseQuantified(Node atom) throws UnsupportedPatternException {
+        if (position < pattern.length()) {
+            char c = pattern.charAt(position);
+            int min;
+            int max;
+            if (c == '*') {
+                min = 0;
+                max = Repetition.UNBOUNDED;
+                position++;
+            } else if (c == '+') {
+                min = 1;
+                max = Repetition.UNBOUNDED;
+                position++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                position++;
+            } else if (c == '{') {
+                int close = pattern.indexOf('}', position);
+                if (close == -1) {
+                    throw unsupported();
+                }
+                String[] bounds = pattern.substring(position + 1, close).split(",", -1);
+                try {
+                    min = Integer.parseInt(bounds[0]);
+                    max = bounds.length == 1 ? min : bounds[1].isEmpty() ? Repetition.UNBOUNDED : Integer.parseInt(bounds[1]);
+                } catch (NumberFormatException e) {
+                    throw unsupported();
+                }
+                if (bounds.length > 2 || min > MAX_REPETITIONS || max > MAX_REPETITIONS) {
+                    throw unsupported();
+                }
+                position = close + 1;
+            } else {
+                return atom;
+            }
+            if (position < pattern.length()) {
+                char modifier = pattern.charAt(position);
+                if (modifier == '?') {
+                    // reluctant quantifiers accept the same inputs on a full match
+                    position++;
+                } else if (modifier == '+') {
+                    // possessive quantifiers may reject inputs that a greedy one accepts
+                    throw unsupported();
+                }
+            }
+            if (position < pattern.length() && "*+?{".indexOf(pattern.charAt(position)) != -1) {
+                throw unsupported();
+            }
+            return new Repetition(atom, min, max);
+        }
+        return atom;
+    }
+
+    private Node parseAtom() throws UnsupportedPatternException {
+        char c = pattern.charAt(position++);
+        switch (c) {
+            case '(':
+                return parseGroup();
+            case '[':
+                return new CharClass(parseCharClass());
+            case '.':
+                return new CharClass(CharRanges.DOT);
+            case '\\':
+                return new CharClass(parseEscape(false));
+            case '^':
+            case '$':
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw unsupported();
+            default:
+                return new CharClass(CharRanges.of(c));
+        }
+    }
+
+    private Node parseGroup() throws UnsupportedPatternException {
+        if (pattern.startsWith("?:", position)) {
+            position += 2;
+        } else if (pattern.startsWith("?<", position) && position + 2 < pattern.length()
+                && Character.isLetter(pattern.charAt(position + 2))) {
+            int close = pattern.indexOf('>', position);
+            if (close == -1) {
+                throw unsupported();
+            }
+            position = close + 1;
+        } else if (position < pattern.length() && pattern.charAt(position) == '?') {
+            throw unsupported();
+        }
+        Node node = parseAlternation();
+        if (position >= pattern.length() || pattern.charAt(position) != ')') {
+            throw unsupported();
+        }
+        position++;
+        return node;
+    }
+
+    private CharRanges parseCharClass() throws UnsupportedPatternException {
+        boolean negated = false;
+        if (position < pattern.length() && pattern.charAt(position) == '^') {
+            negated = true;
+            position++;
+        }
+        if (position < pattern.length() && pattern.charAt(position) == ']') {
+            throw unsupported();
+        }
+        CharRanges ranges = null;
+        while (true) {
+            if (position >= pattern.length()) {
+                throw unsupported();
+            }
+            char c = pattern.charAt(position++);
+            if (c == ']') {
+                break;
+            }
+            if (c == '[' || (c == '&' && position < pattern.length() && pattern.charAt(position) == '&')) {
+                // nested classes, unions and intersections
+                throw unsupported();
+            }
+            CharRanges item;
+            boolean single;
+            char from = c;
+            if (c == '\\') {
+                int escapeStart = position;
+                item = parseEscape(true);
+                single = isSingleCharEscape(pattern.charAt(escapeStart));
+                from = single ? singleChar(item) : 0;
+            } else {
+                item = CharRanges.of(c);
+                single = true;
+            }
+            if (single && position + 1 < pattern.length() && pattern.charAt(position) == '-' && pattern.charAt(position + 1) != ']') {
+                position++;
+                char to = pattern.charAt(position++);
+                if (to == '\\') {
+                    int escapeStart = position;
+                    CharRanges toRanges = parseEscape(true);
+                    if (!isSingleCharEscape(pattern.charAt(escapeStart))) {
+                        throw unsupported();
+                    }
+                    to = singleChar(toRanges);
+                } else if (to == '[') {
+                    throw unsupported();
+                }
+                if (to < from) {
+                    throw unsupported();
+                }
+                item = CharRanges.of(from, to);
+            } else if (!single && position + 1 < pattern.length() && pattern.charAt(position) == '-'
+                    && pattern.charAt(position + 1) != ']') {
+                throw unsupported();
+            }
+            ranges = ranges == null ? item : ranges.union(item);
+        }
+        if (ranges == null) {
+            throw unsupported();
+        }
+        return negated ? ranges.complement() : ranges;
+    }
+
+    private static boolean isSingleCharEscape(char escape) {
+        return "dDwWsS".indexOf(escape) == -1;
+    }
+
+    private char singleChar(CharRanges ranges) {
+        return ranges.first();
+    }
+
+    private CharRanges parseEscape(boolean inClass) throws UnsupportedPatternException {
+        if (position >= pattern.length()) {
+            throw unsupported();
+        }
+        char c = pattern.charAt(position++);
+        switch (c) {
+            case 'd':
+                return CharRanges.DIGIT;
+            case 'D':
+                return CharRanges.DIGIT.complement();
+            case 'w':
+                return CharRanges.WORD;
+            case 'W':
+                return CharRanges.WORD.complement();
+            case 's':
+                return CharRanges.SPACE;
+            case 'S':
+                return CharRanges.SPACE.complement();
+            case 't':
+                return CharRanges.of('\t');
+            case 'n':
+                return CharRanges.of('\n');
+            case 'r':
+                return CharRanges.of('\r');
+            case 'f':
+                return CharRanges.of('\f');
+            case 'a':
+                return CharRanges.of('\u0007');
+            case 'e':
+                return CharRanges.of('\u001B');
+            case 'x':
+                return CharRanges.of(parseHex(2));
+            case 'u':
+                return CharRanges.of(parseHex(4));
+            default:
+                if (Character.isLetterOrDigit(c)) {
+                    // back references, boundaries, quotes, unicode classes...
+                    throw unsupported();
+                }
+                return CharRanges.of(c);
+        }
+    }
+
+    private char parseHex(int digits) throws UnsupportedPatternException {
+        if (position + digits > pattern.length()) {
+            throw unsupported();
+        }
+        try {
+            char c = (char) Integer.parseInt(pattern.substring(position, position + digits), 16);
+            position += digits;
+            return c;
+        } catch (NumberFormatException e) {
+            throw unsupported();
+        }
+    }
+
+    private UnsupportedPatternException unsupported() {
+        return new UnsupportedPatternException(pattern);
+    }
+
+    static class UnsupportedPatternException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedPatternException(String pattern) {
+            super("Pattern not supported by the uri automaton: " + pattern, null, false, false);
+        }
+    }
+
+    interface Node {}
+
+    static final class CharClass implements Node {
+        final CharRanges ranges;
+
+        CharClass(CharRanges ranges) {
+            this.ranges = ranges;
+        }
+    }
+
+    static final class Concatenation implements Node {
+        final List<Node> nodes;
+
+        Concatenation(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    static final class Alternation implements Node {
+        final List<Node> alternatives;
+
+        Alternation(List<Node> alternatives) {
+            this.alternatives = alternatives;
+        }
+    }
+
+    static final class Repetition implements Node {
+        static final int UNBOUNDED = -1;
+
+        final Node node;
+        final int min;
+        final int max;
+
+        Repetition(Node node, int min, int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+    }
+}
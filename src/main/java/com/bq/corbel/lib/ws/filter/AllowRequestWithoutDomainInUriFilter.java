@@ -3,10 +3,12 @@ package com.bq.corbel.lib.ws.filter;
 import com.bq.corbel.lib.token.exception.TokenVerificationException;
 import com.bq.corbel.lib.token.parser.TokenParser;
 import com.bq.corbel.lib.token.reader.TokenReader;
+import com.bq.corbel.lib.ws.auth.AuthorizationRequestFilter;
+import com.bq.corbel.lib.ws.auth.RequestPath;
+import com.bq.corbel.lib.ws.auth.RequestPathClassifier;
 import com.bq.corbel.lib.ws.auth.priority.CorbelPriorities;
 
 import java.net.URI;
-import java.util.regex.Pattern;
 
 import javax.annotation.Priority;
 import javax.ws.rs.container.ContainerRequestContext;
@@ -26,36 +28,30 @@ import org.slf4j.LoggerFactory;
     private static final String AUTHORIZATION_HEADER = "Authorization";
     private static final String UNAUTHENTICATED = "unauthenticated";
     private static final String TOKEN_PREFIX = "Bearer ";
-    private static final String EMPTY_STRING = "";
 
     private final TokenParser tokenParser;
-    private final String unAuthenticatedPathPattern;
-    private final Pattern requestWithDomainPattern;
-    private final Pattern requestWithoutDomainPattern;
+    private final RequestPathClassifier requestPathClassifier;
 
     public AllowRequestWithoutDomainInUriFilter(boolean enabled, TokenParser tokenParser, String unAuthenticatedPathPattern,
             String endpoints) {
         super(enabled);
         this.tokenParser = tokenParser;
-        this.unAuthenticatedPathPattern = unAuthenticatedPathPattern;
-        this.requestWithDomainPattern = Pattern.compile("v[0-9]+\\.[0-9]+/[\\w\\-:\\.]+/(" + endpoints.replace(",", "|") + ")(/.*)?");
-        this.requestWithoutDomainPattern = Pattern.compile("v[0-9]+\\.[0-9]+/(" + endpoints.replace(",", "|") + ")(/.*)?");
+        this.requestPathClassifier = new RequestPathClassifier(unAuthenticatedPathPattern, endpoints);
     }
 
     @Override
     public void filter(ContainerRequestContext request) {
         try {
-            String path = request.getUriInfo().getPath();
-            if (!path.matches(unAuthenticatedPathPattern) && includeDomainInUri(path)) {
+            RequestPath requestPath = requestPathClassifier.classify(request);
+            if (!requestPath.isUnAuthenticated() && requestPath.isWithoutDomain()) {
                 String domain = extractRequestDomain(request);
-                int slashIndex = path.indexOf("/");
-                if (domain != null && slashIndex != -1) {
-                    String version = path.substring(0, slashIndex);
-                    String versionAndDomainPath = version + "/" + domain;
-                    String pathWithoutVersion = path.replace(version, EMPTY_STRING);
-                    String pathWithDomain = versionAndDomainPath + pathWithoutVersion;
+                if (domain != null) {
+                    // the path starts with the version, the domain is inserted right after it
+                    String version = requestPath.getVersion();
+                    String pathWithDomain = version + "/" + domain + requestPath.getPath().substring(version.length());
                     URI requestUriWithDomain = request.getUriInfo().getRequestUriBuilder().replacePath(pathWithDomain).build();
                     request.setRequestUri(requestUriWithDomain);
+                    // classified again by the next filters, with the new path
                 }
             }
         } catch (TokenVerificationException ignored) {
@@ -63,15 +59,13 @@ import org.slf4j.LoggerFactory;
         }
     }
 
-    private boolean includeDomainInUri(String path) {
-        return !requestWithDomainPattern.matcher(path).matches() && requestWithoutDomainPattern.matcher(path).matches();
-    }
-
     private String extractRequestDomain(ContainerRequestContext request) throws TokenVerificationException {
         String domain = UNAUTHENTICATED;
         String authorizationHeader = request.getHeaderString(AUTHORIZATION_HEADER);
         if (authorizationHeader != null && authorizationHeader.startsWith(TOKEN_PREFIX)) {
             TokenReader tokenReader = tokenParser.parseAndVerify(authorizationHeader.substring(TOKEN_PREFIX.length()));
+            // shared with the authorization filter so the token is verified only once per request
+            request.setProperty(AuthorizationRequestFilter.VERIFIED_TOKEN_PROPERTIES_KEY, tokenReader);
             domain = tokenReader.getInfo().getDomainId();
         }
         return domain;
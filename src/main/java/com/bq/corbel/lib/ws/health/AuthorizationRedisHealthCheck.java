@@ -1,7 +1,15 @@
 package com.bq.corbel.lib.ws.health;
 
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 
+import com.bq.corbel.lib.ws.auth.repository.CircuitBreaker;
 import com.codahale.metrics.health.HealthCheck;
 import com.google.gson.JsonObject;
 
@@ -11,18 +19,47 @@ import com.google.gson.JsonObject;
  */
 public class AuthorizationRedisHealthCheck extends HealthCheck {
 
-    private final RedisTemplate<String, JsonObject> redisTemplate;
+    private final List<RedisTemplate<String, JsonObject>> redisTemplates;
+    private final CircuitBreaker circuitBreaker;
 
     public AuthorizationRedisHealthCheck(RedisTemplate<String, JsonObject> redisTemplate) {
-        this.redisTemplate = redisTemplate;
+        this(redisTemplate, null);
+    }
+
+    /**
+     * @param circuitBreaker breaker of the authorization rules calls, whose state is reported before pinging Redis, or null
+     */
+    public AuthorizationRedisHealthCheck(RedisTemplate<String, JsonObject> redisTemplate, CircuitBreaker circuitBreaker) {
+        this(Collections.singletonList(redisTemplate), circuitBreaker);
+    }
+
+    /**
+     * @param redisTemplates templates of every Redis node where the authorization rules are read, all of them are pinged
+     */
+    public AuthorizationRedisHealthCheck(List<RedisTemplate<String, JsonObject>> redisTemplates, CircuitBreaker circuitBreaker) {
+        this.redisTemplates = redisTemplates;
+        this.circuitBreaker = circuitBreaker;
     }
 
     @Override
     protected Result check() throws Exception {
-        if (redisTemplate.getConnectionFactory().getConnection().ping().equals("PONG")
-                && redisTemplate.opsForSet().members("fake").size() == 0) {
-            return Result.healthy();
+        if (circuitBreaker != null && circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+            return Result.unhealthy("Redis circuit breaker is " + circuitBreaker.getState());
+        }
+        for (RedisTemplate<String, JsonObject> redisTemplate : redisTemplates) {
+            if (!"PONG".equals(redisTemplate.execute((RedisCallback<String>) RedisConnection::ping))
+                    || redisTemplate.opsForSet().members("fake").size() != 0) {
+                return Result.unhealthy("Redis" + describe(redisTemplate.getConnectionFactory()) + " is down");
+            }
+        }
+        return Result.healthy();
+    }
+
+    private static String describe(RedisConnectionFactory connectionFactory) {
+        if (connectionFactory instanceof JedisConnectionFactory) {
+            JedisConnectionFactory jedisConnectionFactory = (JedisConnectionFactory) connectionFactory;
+            return " " + jedisConnectionFactory.getHostName() + ":" + jedisConnectionFactory.getPort();
         }
-        return Result.unhealthy("Redis is down");
+        return "";
     }
 }
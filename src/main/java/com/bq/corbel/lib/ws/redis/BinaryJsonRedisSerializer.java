@@ -0,0 +1,259 @@
+package com.bq.corbel.lib.ws.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+
+/**
+ * Serializes JSON elements in a compact binary form: a magic byte, a version byte with flags and the tagged tree of the element, with
+ * strings encoded as UTF-8 and lengths as varints. Bodies bigger than the compression threshold are compressed with deflate. Values
+ * written by {@link GsonRedisSerializer} are still readable, so the format can be switched in a rolling upgrade once all the readers
+ * are updated. Notice that Redis compares set members byte by byte, so members written in one format are not removed by SREM in the
+ * other one; {@link com.bq.corbel.lib.ws.auth.repository.RedisAuthorizationRulesRepository} removes both forms of every rule while this
+ * serializer is active.
+ *
+ */
+public class BinaryJsonRedisSerializer<T extends JsonElement> implements RedisSerializer<T> {
+
+	// never the first byte of a JSON document in UTF-8
+	static final byte MAGIC = (byte) 0xB1;
+	static final int VERSION = 1;
+	private static final int COMPRESSED_FLAG = 0x80;
+	private static final int VERSION_MASK = 0x7F;
+
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte NUMBER = 3;
+	private static final byte STRING = 4;
+	private static final byte ARRAY = 5;
+	private static final byte OBJECT = 6;
+
+	private final int compressionThreshold;
+	private final JsonParser parser = new JsonParser();
+
+	public BinaryJsonRedisSerializer() {
+		this(0);
+	}
+
+	/**
+	 * @param compressionThreshold minimum size in bytes of the encoded element to compress it, 0 to never compress
+	 */
+	public BinaryJsonRedisSerializer(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	@Override
+	public byte[] serialize(T t) throws SerializationException {
+		if (t == null) {
+			return null;
+		}
+		Output body = new Output();
+		write(t, body);
+		boolean compress = compressionThreshold > 0 && body.size() >= compressionThreshold;
+		Output output = new Output();
+		output.write(MAGIC);
+		output.write(VERSION | (compress ? COMPRESSED_FLAG : 0));
+		if (compress) {
+			output.writeVarint(body.size());
+			deflate(body, output);
+		} else {
+			body.writeTo(output);
+		}
+		return output.toByteArray();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T deserialize(byte[] bytes) throws SerializationException {
+		if (bytes == null || bytes.length == 0) {
+			return null;
+		}
+		if (bytes[0] != MAGIC) {
+			return (T) parser.parse(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+		}
+		if (bytes.length < 2 || (bytes[1] & VERSION_MASK) != VERSION) {
+			throw new SerializationException("Unsupported binary JSON version");
+		}
+		try {
+			Input input = new Input(bytes, 2);
+			if ((bytes[1] & COMPRESSED_FLAG) != 0) {
+				input = new Input(inflate(bytes, input), 0);
+			}
+			return (T) read(input);
+		} catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException | DataFormatException e) {
+			throw new SerializationException("Malformed binary JSON", e);
+		}
+	}
+
+	private static void write(JsonElement element, Output output) {
+		if (element.isJsonNull()) {
+			output.write(NULL);
+		} else if (element.isJsonPrimitive()) {
+			JsonPrimitive primitive = element.getAsJsonPrimitive();
+			if (primitive.isBoolean()) {
+				output.write(primitive.getAsBoolean() ? TRUE : FALSE);
+			} else {
+				output.write(primitive.isNumber() ? NUMBER : STRING);
+				output.writeString(primitive.getAsString());
+			}
+		} else if (element.isJsonArray()) {
+			JsonArray array = element.getAsJsonArray();
+			output.write(ARRAY);
+			output.writeVarint(array.size());
+			for (JsonElement item : array) {
+				write(item, output);
+			}
+		} else {
+			JsonObject object = element.getAsJsonObject();
+			output.write(OBJECT);
+			output.writeVarint(object.entrySet().size());
+			for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+				output.writeString(entry.getKey());
+				write(entry.getValue(), output);
+			}
+		}
+	}
+
+	private static JsonElement read(Input input) {
+		byte tag = input.read();
+		switch (tag) {
+			case NULL:
+				return JsonNull.INSTANCE;
+			case TRUE:
+				return new JsonPrimitive(true);
+			case FALSE:
+				return new JsonPrimitive(false);
+			case NUMBER:
+				// same representation used by JsonParser, so deserialized elements are equal in both formats
+				return new JsonPrimitive(new LazilyParsedNumber(input.readString()));
+			case STRING:
+				return new JsonPrimitive(input.readString());
+			case ARRAY:
+				JsonArray array = new JsonArray();
+				for (int i = input.readVarint(); i > 0; i--) {
+					array.add(read(input));
+				}
+				return array;
+			case OBJECT:
+				JsonObject object = new JsonObject();
+				for (int i = input.readVarint(); i > 0; i--) {
+					String key = input.readString();
+					object.add(key, read(input));
+				}
+				return object;
+			default:
+				throw new SerializationException("Unknown binary JSON tag " + tag);
+		}
+	}
+
+	private static void deflate(Output body, Output output) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(body.buffer(), 0, body.size());
+			deflater.finish();
+			byte[] buffer = new byte[512];
+			while (!deflater.finished()) {
+				output.write(buffer, 0, deflater.deflate(buffer));
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] bytes, Input input) throws DataFormatException {
+		byte[] body = new byte[input.readVarint()];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes, input.position, bytes.length - input.position);
+			int length = 0;
+			while (length < body.length && !inflater.finished()) {
+				int inflated = inflater.inflate(body, length, body.length - length);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("Truncated compressed body");
+				}
+				length += inflated;
+			}
+			return body;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static class Output extends ByteArrayOutputStream {
+
+		private byte[] buffer() {
+			return buf;
+		}
+
+		private void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			write(value);
+		}
+
+		private void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+
+		private void writeTo(Output output) {
+			output.write(buf, 0, count);
+		}
+	}
+
+	private static class Input {
+		private final byte[] bytes;
+		private int position;
+
+		private Input(byte[] bytes, int position) {
+			this.bytes = bytes;
+			this.position = position;
+		}
+
+		private byte read() {
+			return bytes[position++];
+		}
+
+		private int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				byte b = read();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new SerializationException("Malformed varint");
+		}
+
+		private String readString() {
+			int length = readVarint();
+			if (length < 0 || length > bytes.length - position) {
+				throw new SerializationException("Malformed string length");
+			}
+			String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.bq.corbel.lib.ws.redis;
 
+import java.nio.charset.StandardCharsets;
+
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import org.springframework.data.redis.serializer.RedisSerializer;
@@ -15,12 +17,12 @@ public class GsonRedisSerializer<T extends JsonElement> implements RedisSerializ
 
 	@Override
 	public byte[] serialize(T t) throws SerializationException {
-		return t.toString().getBytes();
+		return t.toString().getBytes(StandardCharsets.UTF_8);
 	}
 
 	@Override
 	public T deserialize(byte[] bytes) throws SerializationException {
-		String jsonString = new String(bytes);
+		String jsonString = new String(bytes, StandardCharsets.UTF_8);
 		return (T) parser.parse(jsonString);
 	}
 
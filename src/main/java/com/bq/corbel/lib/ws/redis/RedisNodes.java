@@ -0,0 +1,109 @@
+package com.bq.corbel.lib.ws.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import com.google.common.net.HostAndPort;
+import com.google.gson.JsonObject;
+
+/**
+ * Redis nodes where the authorization rules are stored, and their replicas. Without nodes the rules are stored in the Redis of the
+ * given template. The connections to the other nodes copy the configuration of the given connection factory, and they are destroyed
+ * when closed, while the given template and connection factory are left to their owner.
+ *
+ */
+public class RedisNodes implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RedisNodes.class);
+
+	private final List<String> nodeNames;
+	private final List<RedisTemplate<String, JsonObject>> nodes = new ArrayList<>();
+	private final List<RedisTemplate<String, JsonObject>> replicas = new ArrayList<>();
+	private final List<JedisConnectionFactory> connectionFactories = new ArrayList<>();
+
+	/**
+	 * @param nodeNames host and port of every node, empty to store the rules in the Redis of the template
+	 * @param replicaNames host and port of every replica of the Redis of the template
+	 */
+	public RedisNodes(RedisTemplate<String, JsonObject> redisTemplate, JedisConnectionFactory connectionFactory, List<String> nodeNames,
+			List<String> replicaNames) {
+		this.nodeNames = Collections.unmodifiableList(new ArrayList<>(nodeNames));
+		if (nodeNames.isEmpty()) {
+			nodes.add(redisTemplate);
+		} else {
+			for (String node : nodeNames) {
+				nodes.add(createTemplate(redisTemplate, createConnectionFactory(connectionFactory, node)));
+			}
+		}
+		for (String replica : replicaNames) {
+			replicas.add(createTemplate(redisTemplate, createConnectionFactory(connectionFactory, replica)));
+		}
+	}
+
+	/**
+	 * @return the names of the nodes, empty if the rules are stored in the Redis of the template
+	 */
+	public List<String> getNodeNames() {
+		return nodeNames;
+	}
+
+	/**
+	 * @return the template of every node, in the same order as their names, or the given template alone if there are no nodes
+	 */
+	public List<RedisTemplate<String, JsonObject>> getNodes() {
+		return Collections.unmodifiableList(nodes);
+	}
+
+	public List<RedisTemplate<String, JsonObject>> getReplicas() {
+		return Collections.unmodifiableList(replicas);
+	}
+
+	/**
+	 * @return the templates of the nodes followed by those of the replicas
+	 */
+	public List<RedisTemplate<String, JsonObject>> getAll() {
+		List<RedisTemplate<String, JsonObject>> all = new ArrayList<>(nodes);
+		all.addAll(replicas);
+		return all;
+	}
+
+	@Override
+	public void close() {
+		for (JedisConnectionFactory connectionFactory : connectionFactories) {
+			try {
+				connectionFactory.destroy();
+			} catch (RuntimeException e) {
+				LOG.warn("Error closing connections to Redis {}:{}", connectionFactory.getHostName(), connectionFactory.getPort(), e);
+			}
+		}
+	}
+
+	private JedisConnectionFactory createConnectionFactory(JedisConnectionFactory template, String node) {
+		HostAndPort hostAndPort = HostAndPort.fromString(node).withDefaultPort(template.getPort());
+		JedisConnectionFactory connectionFactory = new JedisConnectionFactory(template.getPoolConfig());
+		connectionFactory.setHostName(hostAndPort.getHostText());
+		connectionFactory.setPort(hostAndPort.getPort());
+		connectionFactory.setPassword(template.getPassword());
+		connectionFactory.setDatabase(template.getDatabase());
+		connectionFactory.setTimeout(template.getTimeout());
+		connectionFactory.afterPropertiesSet();
+		connectionFactories.add(connectionFactory);
+		return connectionFactory;
+	}
+
+	private static RedisTemplate<String, JsonObject> createTemplate(RedisTemplate<String, JsonObject> redisTemplate,
+			JedisConnectionFactory connectionFactory) {
+		RedisTemplate<String, JsonObject> template = new RedisTemplate<>();
+		template.setConnectionFactory(connectionFactory);
+		template.setKeySerializer(redisTemplate.getKeySerializer());
+		template.setValueSerializer(redisTemplate.getValueSerializer());
+		template.afterPropertiesSet();
+		return template;
+	}
+}
@@ -0,0 +1,45 @@
+package com.bq.corbel.lib.ws.api.error;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+
+import com.bq.corbel.lib.ws.model.Error;
+
+public class PrebuiltErrorResponseTest {
+
+    private final PrebuiltErrorResponse errorResponse = new PrebuiltErrorResponse(new Error("invalid_token", "Invalid"),
+            Response.Status.UNAUTHORIZED);
+
+    @Test
+    public void testResponse() {
+        Response response = errorResponse.build();
+        assertThat(response.getStatus()).isEqualTo(401);
+        assertThat(response.getMetadata().getFirst("Content-Type").toString()).isEqualTo(MediaType.APPLICATION_JSON);
+        assertThat(new String((byte[]) response.getEntity(), StandardCharsets.UTF_8)).isEqualTo(
+                "{\"error\":\"invalid_token\",\"errorDescription\":\"Invalid\"}");
+    }
+
+    @Test
+    public void testResponsesShareOnlyTheBody() {
+        Response response = errorResponse.build();
+        response.getHeaders().add("X-Test", "test");
+        Response other = errorResponse.build();
+        assertThat(other).isNotSameAs(response);
+        assertThat(other.getHeaders().containsKey("X-Test")).isFalse();
+        assertThat(other.getEntity()).isSameAs(response.getEntity());
+    }
+
+    @Test
+    public void testExceptionWithoutStackTrace() {
+        WebApplicationException exception = PrebuiltErrorResponse.FORBIDDEN.exception();
+        assertThat(exception.getStackTrace()).isEmpty();
+        assertThat(exception.getResponse().getStatus()).isEqualTo(403);
+    }
+}
@@ -0,0 +1,158 @@
+package com.bq.corbel.lib.ws.auth;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class AuthorizationCacheSnapshotTest {
+
+    private static final String TOKEN = "secretAccessToken";
+    private static final String PUBLIC_KEY = "domain_public_scopes|audience";
+    private static final String DELETED_PUBLIC_KEY = "deleted_public_scopes|audience";
+    private static final Pattern KEPT_KEYS = Pattern.compile(".*_public_scopes\\|.*");
+
+    private Path directory;
+    private Path file;
+    private AuthorizationRulesRepository repository;
+    private AccessRuleCompiler accessRuleCompiler;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("authorization-snapshot");
+        file = directory.resolve("snapshot");
+        repository = mock(AuthorizationRulesRepository.class);
+        Map<String, Set<JsonObject>> cached = new HashMap<>();
+        cached.put(TOKEN + "|audience", Sets.newHashSet(rule("a")));
+        cached.put(PUBLIC_KEY, Sets.newHashSet(rule("b")));
+        cached.put(DELETED_PUBLIC_KEY, Sets.newHashSet(rule("c")));
+        when(repository.getCachedRules(anyInt())).thenReturn(cached);
+        when(repository.getTimeToExpireAll(anyCollectionOf(String.class))).then(invocation -> {
+            Map<String, Long> timesToExpire = new HashMap<>();
+            for (Object key : (Collection<?>) invocation.getArguments()[0]) {
+                timesToExpire.put((String) key, PUBLIC_KEY.equals(key) ? -1L : -2L);
+            }
+            return timesToExpire;
+        });
+        // the rules of the key changed since they were cached
+        when(repository.getAll(Collections.singletonList(PUBLIC_KEY))).thenReturn(Collections.singletonMap(PUBLIC_KEY,
+                Sets.newHashSet(rule("b"), rule("d"))));
+        accessRuleCompiler = mock(AccessRuleCompiler.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.delete(directory);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSnapshotIsRestored() {
+        snapshot(60000).write();
+        snapshot(60000).load();
+
+        ArgumentCaptor<Collection> read = ArgumentCaptor.forClass(Collection.class);
+        verify(repository).getTimeToExpireAll(read.capture());
+        assertThat(read.getValue()).containsOnly(PUBLIC_KEY, DELETED_PUBLIC_KEY);
+        // only the existing key is read, and the rules restored are the current ones
+        verify(repository).getAll(Collections.singletonList(PUBLIC_KEY));
+        verify(accessRuleCompiler).intern(Sets.newHashSet(rule("b"), rule("d")));
+    }
+
+    @Test
+    public void testSnapshotContainsNoTokens() throws IOException {
+        snapshot(60000).write();
+        String content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertThat(content).doesNotContain(TOKEN).contains(PUBLIC_KEY);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailingRepositoryAbandonsTheWarmStart() {
+        snapshot(60000).write();
+        when(repository.getTimeToExpireAll(anyCollectionOf(String.class))).thenThrow(new IllegalStateException("Redis is down"));
+        snapshot(60000).load();
+        verify(repository, never()).getAll(anyCollectionOf(String.class));
+        verify(accessRuleCompiler, never()).intern(any(Set.class));
+    }
+
+    @Test
+    public void testSnapshotIsOnlyReadableByItsOwner() throws IOException {
+        snapshot(60000).write();
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.count()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testOldSnapshotIsDiscarded() throws InterruptedException {
+        snapshot(60000).write();
+        Thread.sleep(10);
+        snapshot(1).load();
+        verify(accessRuleCompiler, never()).intern(any());
+    }
+
+    @Test
+    public void testCorruptedSnapshotIsDiscarded() throws IOException {
+        snapshot(60000).write();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes, StandardOpenOption.TRUNCATE_EXISTING);
+        snapshot(60000).load();
+        verify(accessRuleCompiler, never()).intern(any());
+    }
+
+    @Test
+    public void testMissingSnapshotIsIgnored() {
+        snapshot(60000).load();
+        verify(repository, never()).getTimeToExpireAll(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testCloseWritesSnapshot() {
+        snapshot(60000).close();
+        assertThat(Files.exists(file)).isTrue();
+    }
+
+    private AuthorizationCacheSnapshot snapshot(long maximumAgeMillis) {
+        return new AuthorizationCacheSnapshot(file, repository, accessRuleCompiler, KEPT_KEYS, 100, 500, maximumAgeMillis);
+    }
+
+    private static JsonObject rule(String name) {
+        JsonObject rule = new JsonObject();
+        rule.add("uri", new JsonPrimitive(name));
+        return rule;
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.bq.corbel.lib.ws.auth;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.token.TokenInfo;
+import com.bq.corbel.lib.token.reader.TokenReader;
+import com.codahale.metrics.MetricRegistry;
+
+public class AuthorizationDecisionCacheTest {
+
+    private static final String TEST_TOKEN = "test_token";
+    private static final String TEST_AUDIENCE = "audience";
+    private static final String TEST_PATH = "v1.0/resource/test:Test";
+    private static final List<MediaType> JSON = Arrays.asList(MediaType.APPLICATION_JSON_TYPE);
+
+    private MetricRegistry metricRegistry;
+    private AuthorizationDecisionCache cache;
+    private AuthorizationInfo info;
+    private TokenInfo tokenInfo;
+    private TokenReader tokenReader;
+
+    @Before
+    public void setup() {
+        metricRegistry = new MetricRegistry();
+        cache = new AuthorizationDecisionCache(TEST_AUDIENCE, 100, 60000, metricRegistry);
+        info = mock(AuthorizationInfo.class);
+        tokenReader = mock(TokenReader.class);
+        tokenInfo = mock(TokenInfo.class);
+        when(info.getToken()).thenReturn(TEST_TOKEN);
+        when(info.getTokenReader()).thenReturn(tokenReader);
+        when(tokenReader.getInfo()).thenReturn(tokenInfo);
+        when(tokenReader.getExpireTime()).thenReturn(System.currentTimeMillis() + 60000);
+        when(info.getRulesExpireAt()).thenReturn(System.currentTimeMillis() + 60000);
+    }
+
+    @Test
+    public void testCachedDecision() {
+        cache.put(info, HttpMethod.GET, TEST_PATH, JSON, true);
+        AuthorizationDecisionCache.Decision decision = cache.get(TEST_TOKEN, HttpMethod.GET, TEST_PATH, JSON);
+        assertThat(decision.isAllowed()).isTrue();
+        assertThat(decision.getAuthorizationInfo()).isSameAs(info);
+        assertThat(metricRegistry.meter(MetricRegistry.name(AuthorizationDecisionCache.class, "hits")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDeniedDecision() {
+        cache.put(info, HttpMethod.GET, TEST_PATH, JSON, false);
+        assertThat(cache.get(TEST_TOKEN, HttpMethod.GET, TEST_PATH, JSON).isAllowed()).isFalse();
+    }
+
+    @Test
+    public void testDecisionIsKeyedByRequest() {
+        cache.put(info, HttpMethod.GET, TEST_PATH, JSON, true);
+        assertThat(cache.get(TEST_TOKEN, HttpMethod.POST, TEST_PATH, JSON)).isNull();
+        assertThat(cache.get(TEST_TOKEN, HttpMethod.GET, TEST_PATH + "/id", JSON)).isNull();
+        assertThat(cache.get(TEST_TOKEN, HttpMethod.GET, TEST_PATH, Arrays.asList(MediaType.TEXT_HTML_TYPE))).isNull();
+        assertThat(cache.get("other_token", HttpMethod.GET, TEST_PATH, JSON)).isNull();
+        assertThat(cache.get(TEST_TOKEN, HttpMethod.GET, TEST_PATH, Arrays.asList(MediaType.valueOf("application/json;q=0.9"))))
+                .isNotNull();
+        assertThat(metricRegistry.meter(MetricRegistry.name(AuthorizationDecisionCache.class, "misses")).getCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void testExpiredRulesAreNotCached() {
+        when(info.getRulesExpireAt()).thenReturn(System.currentTimeMillis() - 1);
+        cache.put(info, HttpMethod.GET, TEST_PATH, JSON, true);
+        assertThat(cache.get(TEST_TOKEN, HttpMethod.GET, TEST_PATH, JSON)).isNull();
+    }
+
+    @Test
+    public void testDecisionExpiresWithToken() {
+        when(tokenReader.getExpireTime()).thenReturn(System.currentTimeMillis() - 1);
+        cache.put(info, HttpMethod.GET, TEST_PATH, JSON, true);
+        assertThat(cache.get(TEST_TOKEN, HttpMethod.GET, TEST_PATH, JSON)).isNull();
+    }
+
+    @Test
+    public void testOneUseTokenIsNotCached() {
+        when(tokenInfo.isOneUseToken()).thenReturn(true);
+        cache.put(info, HttpMethod.GET, TEST_PATH, JSON, true);
+        assertThat(cache.get(TEST_TOKEN, HttpMethod.GET, TEST_PATH, JSON)).isNull();
+    }
+}
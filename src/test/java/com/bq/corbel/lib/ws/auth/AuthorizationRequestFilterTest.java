@@ -6,11 +6,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.regex.Pattern;
 
-import javax.servlet.http.Cookie;
-import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.HttpMethod;
+import javax.ws.rs.InternalServerErrorException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.UriInfo;
@@ -24,6 +24,8 @@ import com.google.gson.JsonParser;
 
 import com.bq.corbel.lib.token.TokenInfo;
 import com.bq.corbel.lib.token.reader.TokenReader;
+import com.bq.corbel.lib.ws.auth.rules.AccessRuleCompiler;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.auth.AuthenticationException;
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.oauth.OAuthFactory;
@@ -51,7 +53,6 @@ public class AuthorizationRequestFilterTest {
     private Authenticator<String, AuthorizationInfo> authenticator;
     private PublicAccessService publicAccessService;
     private OAuthFactory<AuthorizationInfo> oAuthFactory;
-    private HttpServletRequest servletRequest;
 
     @SuppressWarnings("unchecked")
     @Before
@@ -59,10 +60,8 @@ public class AuthorizationRequestFilterTest {
         requestMock = mock(ContainerRequestContext.class);
         authorizationInfoMock = mock(AuthorizationInfo.class);
         authenticator = mock(Authenticator.class);
-        servletRequest = mock(HttpServletRequest.class);
         publicAccessService = mock(PublicAccessService.class);
         when(authorizationInfoMock.getDomainId()).thenReturn(TEST_DOMAIN);
-        when(servletRequest.getHeader(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + TEST_TOKEN);
         when(authenticator.authenticate(TEST_TOKEN)).thenReturn(com.google.common.base.Optional.of(authorizationInfoMock));
         oAuthFactory = new OAuthFactory<>(authenticator, "realm", AuthorizationInfo.class);
         cookieProvider = new CookieOAuthFactory<>(authenticator, "realm", AuthorizationInfo.class);
@@ -169,8 +168,7 @@ public class AuthorizationRequestFilterTest {
         stubRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
                 + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
 
-        when(servletRequest.getHeader(HttpHeaders.AUTHORIZATION)).thenReturn(null);
-        when(servletRequest.getCookies()).thenReturn(new Cookie[] {new Cookie("token", TEST_TOKEN)});
+        stubTokenCookie();
         filter.filter(requestMock);
     }
 
@@ -187,8 +185,7 @@ public class AuthorizationRequestFilterTest {
         stubRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
                 + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
 
-        when(servletRequest.getHeader(HttpHeaders.AUTHORIZATION)).thenReturn(null);
-        when(servletRequest.getCookies()).thenReturn(new Cookie[] {new Cookie("token", TEST_TOKEN)});
+        stubTokenCookie();
         filter.filter(requestMock);
     }
 
@@ -199,8 +196,7 @@ public class AuthorizationRequestFilterTest {
         AuthorizationRequestFilter filter = stubFilter("");
         stubRequest(TEST_PATH, HttpMethod.GET);
         when(requestMock.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.APPLICATION_JSON_TYPE));
-        when(servletRequest.getHeader(HttpHeaders.AUTHORIZATION)).thenReturn(null);
-        when(servletRequest.getCookies()).thenReturn(new Cookie[] {new Cookie("token", TEST_TOKEN)});
+        stubTokenCookie();
         filter.filter(requestMock);
     }
 
@@ -208,9 +204,8 @@ public class AuthorizationRequestFilterTest {
     public void publicAccessTest() {
         AuthorizationRequestFilter filter = stubFilter("");
         stubRequest(TEST_PATH_WITH_DOMAIN, HttpMethod.GET);
-        when(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).thenReturn(Sets
-                .newHashSet(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
-                        + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject()));
+        stubPublicRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
+                + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
         when(requestMock.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.APPLICATION_JSON_TYPE));
         stubRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
                 + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
@@ -221,28 +216,139 @@ public class AuthorizationRequestFilterTest {
     public void publicAccessNotPermittedTest() {
         AuthorizationRequestFilter filter = stubFilter("");
         stubRequest(TEST_PATH_WITH_DOMAIN, HttpMethod.GET);
-        when(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).thenReturn(Collections.emptySet());
+        stubPublicRules(); // no public rules
+        when(requestMock.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.APPLICATION_JSON_TYPE));
+        stubRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
+                + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
+        filter.filter(requestMock);
+    }
+
+    @Test
+    public void decisionCacheTest() throws AuthenticationException {
+        TokenReader tokenReader = mock(TokenReader.class);
+        TokenInfo tokenMock = mock(TokenInfo.class);
+        when(tokenReader.getInfo()).thenReturn(tokenMock);
+        when(tokenReader.getExpireTime()).thenReturn(System.currentTimeMillis() + 60000);
+        when(authorizationInfoMock.getTokenReader()).thenReturn(tokenReader);
+        when(authorizationInfoMock.getToken()).thenReturn(TEST_TOKEN);
+        when(authorizationInfoMock.getRulesExpireAt()).thenReturn(Long.MAX_VALUE);
+        AuthorizationRequestFilter filter = stubFilter("", new AuthorizationDecisionCache("audience", 100, 60000, new MetricRegistry()));
+        stubRequest(TEST_PATH, HttpMethod.GET);
         when(requestMock.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.APPLICATION_JSON_TYPE));
         stubRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
                 + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
+        stubTokenCookie();
+
+        filter.filter(requestMock);
+        filter.filter(requestMock);
+
+        verify(authenticator, times(1)).authenticate(TEST_TOKEN);
+        verify(requestMock, times(2)).setProperty(AuthorizationRequestFilter.AUTHORIZATION_INFO_PROPERTIES_KEY, authorizationInfoMock);
+    }
+
+    @Test
+    public void decisionCacheSkipsPublicRulesTest() throws AuthenticationException {
+        TokenReader tokenReader = mock(TokenReader.class);
+        TokenInfo tokenMock = mock(TokenInfo.class);
+        when(tokenReader.getInfo()).thenReturn(tokenMock);
+        when(tokenReader.getExpireTime()).thenReturn(System.currentTimeMillis() + 60000);
+        when(authorizationInfoMock.getTokenReader()).thenReturn(tokenReader);
+        when(authorizationInfoMock.getToken()).thenReturn(TEST_TOKEN);
+        when(authorizationInfoMock.getRulesExpireAt()).thenReturn(Long.MAX_VALUE);
+        AuthorizationRequestFilter filter = stubFilter("", new AuthorizationDecisionCache("audience", 100, 60000, new MetricRegistry()));
+        stubRequest(TEST_PATH, HttpMethod.GET);
+        when(requestMock.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.APPLICATION_JSON_TYPE));
+        stubRules();
+        stubPublicRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
+                + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
+        stubTokenCookie();
+
+        filter.filter(requestMock);
+        filter.filter(requestMock);
+
+        verify(authenticator, times(2)).authenticate(TEST_TOKEN);
+    }
+
+    @Test
+    public void verifiedTokenTest() throws AuthenticationException {
+        TokenReader tokenReader = mock(TokenReader.class);
+        TokenInfo tokenMock = mock(TokenInfo.class);
+        when(tokenReader.getInfo()).thenReturn(tokenMock);
+        when(tokenReader.getToken()).thenReturn(TEST_TOKEN);
+        when(authorizationInfoMock.getTokenReader()).thenReturn(tokenReader);
+        BearerTokenAuthenticator bearerTokenAuthenticator = mock(BearerTokenAuthenticator.class);
+        when(bearerTokenAuthenticator.authenticate(tokenReader)).thenReturn(com.google.common.base.Optional.of(authorizationInfoMock));
+        oAuthFactory = new OAuthFactory<>(bearerTokenAuthenticator, "realm", AuthorizationInfo.class);
+        AuthorizationRequestFilter filter = stubFilter("");
+        stubRequest(TEST_PATH, HttpMethod.GET);
+        when(requestMock.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + TEST_TOKEN);
+        when(requestMock.getProperty(AuthorizationRequestFilter.VERIFIED_TOKEN_PROPERTIES_KEY)).thenReturn(tokenReader);
+        when(requestMock.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.APPLICATION_JSON_TYPE));
+        stubRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
+                + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
+
+        filter.filter(requestMock);
+
+        verify(bearerTokenAuthenticator, never()).authenticate(TEST_TOKEN);
+        verify(requestMock).setProperty(AuthorizationRequestFilter.AUTHORIZATION_INFO_PROPERTIES_KEY, authorizationInfoMock);
+    }
+
+    @Test
+    public void bearerTokenTest() throws AuthenticationException {
+        TokenReader tokenReader = mock(TokenReader.class);
+        when(authorizationInfoMock.getTokenReader()).thenReturn(tokenReader);
+        AuthorizationRequestFilter filter = stubFilter("");
+        stubRequest(TEST_PATH, HttpMethod.GET);
+        when(requestMock.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("bearer " + TEST_TOKEN);
+        when(requestMock.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.APPLICATION_JSON_TYPE));
+        stubRules(jsonParser.parse("{\"type\":\"http_access\", \"mediaTypes\":[ \"application/json\"], \"methods\":[\"GET\"], "
+                + "\"uri\": \"" + TEST_PATH_WITHOUT_VERSION + "\"}").getAsJsonObject());
+
+        filter.filter(requestMock);
+
+        verify(authenticator).authenticate(TEST_TOKEN);
+        verify(requestMock, never()).getCookies();
+        verify(requestMock).setProperty(AuthorizationRequestFilter.AUTHORIZATION_INFO_PROPERTIES_KEY, authorizationInfoMock);
+    }
+
+    @Test(expected = InternalServerErrorException.class)
+    public void authenticatorErrorTest() throws AuthenticationException {
+        when(authenticator.authenticate(TEST_TOKEN)).thenThrow(new AuthenticationException("error"));
+        AuthorizationRequestFilter filter = stubFilter("");
+        stubRequest(TEST_PATH, HttpMethod.GET);
+        stubTokenCookie();
         filter.filter(requestMock);
     }
 
     private void stubRules(JsonObject... rules) {
         when(authorizationInfoMock.getAccessRules()).thenReturn(Sets.newHashSet(rules));
+        when(authorizationInfoMock.getCompiledAccessRules()).thenReturn(AccessRuleCompiler.getInstance().compile(Arrays.asList(rules)));
         when(authorizationInfoMock.getDomainId()).thenReturn(TEST_DOMAIN);
     }
 
+    private void stubPublicRules(JsonObject... rules) {
+        when(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).thenReturn(Sets.newHashSet(rules));
+        when(publicAccessService.getCompiledDomainPublicRules(TEST_DOMAIN)).thenReturn(
+                AccessRuleCompiler.getInstance().compile(Arrays.asList(rules)));
+    }
+
     private void stubRequest(String path, String method) {
         UriInfo uriInfo = mock(UriInfo.class);
         when(uriInfo.getPath()).thenReturn(path);
         when(requestMock.getUriInfo()).thenReturn(uriInfo);
         when(requestMock.getMethod()).thenReturn(method);
+        when(requestMock.getCookies()).thenReturn(Collections.emptyMap());
+    }
+
+    private void stubTokenCookie() {
+        when(requestMock.getCookies()).thenReturn(Collections.singletonMap("token", new Cookie("token", TEST_TOKEN)));
     }
 
     private AuthorizationRequestFilter stubFilter(String path) {
-        AuthorizationRequestFilter filter = spy(new AuthorizationRequestFilter(oAuthFactory, cookieProvider, publicAccessService, path, true, "resource"));
-        doReturn(servletRequest).when(filter).getRequest();
-        return filter;
+        return stubFilter(path, null);
+    }
+
+    private AuthorizationRequestFilter stubFilter(String path, AuthorizationDecisionCache decisionCache) {
+        return new AuthorizationRequestFilter(oAuthFactory, cookieProvider, publicAccessService, path, true, "resource", decisionCache);
     }
 }
@@ -2,6 +2,8 @@ package com.bq.corbel.lib.ws.auth;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Collections;
@@ -13,10 +15,12 @@ import com.bq.corbel.lib.token.exception.TokenVerificationException;
 import com.bq.corbel.lib.token.model.TokenType;
 import com.bq.corbel.lib.token.parser.TokenParser;
 import com.bq.corbel.lib.token.reader.TokenReader;
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Optional;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
@@ -68,12 +72,14 @@ public class BearerTokenAuthenticatorTest {
 		JsonObject rule = new JsonObject();
 		rule.add("a", new JsonPrimitive("1"));
 		set.add(rule);
-		when(authorizationRulesServiceMock.getAuthorizationRules(testToken, TEST_AUD)).thenReturn(set);
+		when(authorizationRulesServiceMock.getAuthorizationRulesWithTimeToExpire(testToken, TEST_AUD)).thenReturn(new ExpiringRules(set, 60L));
 		Optional<AuthorizationInfo> info = authenticator.authenticate(testToken);
 		assertThat(info.isPresent()).isTrue();
 		assertThat(info.get().getTokenReader().getInfo().getClientId()).isEqualTo(TEST_CLIENT);
 		assertThat(info.get().getTokenReader().getInfo().getUserId()).isEqualTo(TEST_USER);
 		assertThat(info.get().getAccessRules()).isEqualTo(set);
+		assertThat(info.get().getRulesExpireAt()).isGreaterThan(System.currentTimeMillis() + 50000).isLessThanOrEqualTo(
+				System.currentTimeMillis() + 60000);
 	}
 
 	@Test
@@ -84,23 +90,58 @@ public class BearerTokenAuthenticatorTest {
 
 	@Test
 	public void testTokenNotFound() throws AuthenticationException {
-		when(authorizationRulesServiceMock.getAuthorizationRules(testToken, TEST_AUD)).thenReturn(null);
+		when(authorizationRulesServiceMock.getAuthorizationRulesWithTimeToExpire(testToken, TEST_AUD)).thenReturn(new ExpiringRules(null, -2L));
 		Optional<AuthorizationInfo> info = authenticator.authenticate(testToken);
 		assertThat(info.isPresent()).isFalse();
 	}
 
 	@Test
 	public void testTokenNotFoundEmptyRules() throws AuthenticationException {
-		when(authorizationRulesServiceMock.getAuthorizationRules(testToken, TEST_AUD)).thenReturn(
-				Collections.<JsonObject> emptySet());
+		when(authorizationRulesServiceMock.getAuthorizationRulesWithTimeToExpire(testToken, TEST_AUD)).thenReturn(
+				new ExpiringRules(Collections.<JsonObject> emptySet(), -2L));
 		Optional<AuthorizationInfo> info = authenticator.authenticate(testToken);
 		assertThat(info.isPresent()).isFalse();
 	}
 
 	@Test(expected = AuthenticationException.class)
 	public void testAuthenticationException() throws AuthenticationException {
-		when(authorizationRulesServiceMock.getAuthorizationRules(testToken, TEST_AUD)).thenThrow(
+		when(authorizationRulesServiceMock.getAuthorizationRulesWithTimeToExpire(testToken, TEST_AUD)).thenThrow(
 				new RuntimeException("test exception"));
 		authenticator.authenticate(testToken);
 	}
+
+	@Test
+	public void testNegativeTokenCache() throws AuthenticationException, TokenVerificationException {
+		MetricRegistry metricRegistry = new MetricRegistry();
+		authenticator = new BearerTokenAuthenticator(TEST_AUD, authorizationRulesServiceMock, tokenParserMock, new NegativeTokenCache(100,
+				60000, metricRegistry));
+		assertThat(authenticator.authenticate(BAD_TOKEN).isPresent()).isFalse();
+		assertThat(authenticator.authenticate(BAD_TOKEN).isPresent()).isFalse();
+		verify(tokenParserMock, times(1)).parseAndVerify(BAD_TOKEN);
+		assertThat(metricRegistry.meter(MetricRegistry.name(NegativeTokenCache.class, "rejected")).getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testNegativeTokenCacheIgnoresTokensWithoutRulesYet() throws AuthenticationException {
+		MetricRegistry metricRegistry = new MetricRegistry();
+		authenticator = new BearerTokenAuthenticator(TEST_AUD, authorizationRulesServiceMock, tokenParserMock, new NegativeTokenCache(100,
+				60000, metricRegistry));
+		when(authorizationRulesServiceMock.getAuthorizationRulesWithTimeToExpire(testToken, TEST_AUD)).thenReturn(new ExpiringRules(null, -2L)).thenReturn(
+				new ExpiringRules(Collections.singleton(new JsonObject()), 60L));
+		assertThat(authenticator.authenticate(testToken).isPresent()).isFalse();
+		assertThat(authenticator.authenticate(testToken).isPresent()).isTrue();
+		assertThat(metricRegistry.meter(MetricRegistry.name(NegativeTokenCache.class, "rejected")).getCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testNegativeTokenCacheIgnoresErrors() throws AuthenticationException {
+		authenticator = new BearerTokenAuthenticator(TEST_AUD, authorizationRulesServiceMock, tokenParserMock, new NegativeTokenCache(100,
+				60000, new MetricRegistry()));
+		when(authorizationRulesServiceMock.getAuthorizationRulesWithTimeToExpire(testToken, TEST_AUD)).thenThrow(new RuntimeException("test exception"))
+				.thenReturn(new ExpiringRules(Collections.singleton(new JsonObject()), 60L));
+		try {
+			authenticator.authenticate(testToken);
+		} catch (AuthenticationException ignored) {}
+		assertThat(authenticator.authenticate(testToken).isPresent()).isTrue();
+	}
 }
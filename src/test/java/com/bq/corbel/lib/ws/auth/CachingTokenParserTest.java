@@ -0,0 +1,68 @@
+package com.bq.corbel.lib.ws.auth;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.token.TokenInfo;
+import com.bq.corbel.lib.token.exception.TokenVerificationException;
+import com.bq.corbel.lib.token.parser.TokenParser;
+import com.bq.corbel.lib.token.reader.TokenReader;
+
+public class CachingTokenParserTest {
+
+    private static final String TEST_TOKEN = "test_token";
+
+    private TokenParser delegate;
+    private TokenReader tokenReader;
+    private TokenInfo tokenInfo;
+    private CachingTokenParser parser;
+
+    @Before
+    public void setup() throws TokenVerificationException {
+        delegate = mock(TokenParser.class);
+        tokenReader = mock(TokenReader.class);
+        tokenInfo = mock(TokenInfo.class);
+        when(tokenReader.getInfo()).thenReturn(tokenInfo);
+        when(tokenReader.getExpireTime()).thenReturn(System.currentTimeMillis() + 60000);
+        when(delegate.parseAndVerify(TEST_TOKEN)).thenReturn(tokenReader);
+        parser = new CachingTokenParser(delegate, 100, 60000);
+    }
+
+    @Test
+    public void testTokenIsVerifiedOnce() throws TokenVerificationException {
+        assertThat(parser.parseAndVerify(TEST_TOKEN)).isSameAs(tokenReader);
+        assertThat(parser.parseAndVerify(TEST_TOKEN)).isSameAs(tokenReader);
+        verify(delegate, times(1)).parseAndVerify(TEST_TOKEN);
+    }
+
+    @Test
+    public void testExpiredTokenIsVerifiedAgain() throws TokenVerificationException {
+        parser.parseAndVerify(TEST_TOKEN);
+        when(tokenReader.getExpireTime()).thenReturn(System.currentTimeMillis() - 1);
+        when(delegate.parseAndVerify(TEST_TOKEN)).thenThrow(new TokenVerificationException.TokenExpired());
+        try {
+            parser.parseAndVerify(TEST_TOKEN);
+            fail("Expired token accepted");
+        } catch (TokenVerificationException e) {
+            verify(delegate, times(2)).parseAndVerify(TEST_TOKEN);
+        }
+    }
+
+    @Test
+    public void testOneUseTokenIsNotCached() throws TokenVerificationException {
+        when(tokenInfo.isOneUseToken()).thenReturn(true);
+        parser.parseAndVerify(TEST_TOKEN);
+        parser.parseAndVerify(TEST_TOKEN);
+        verify(delegate, times(2)).parseAndVerify(TEST_TOKEN);
+    }
+
+    @Test(expected = TokenVerificationException.class)
+    public void testInvalidTokenIsNotCached() throws TokenVerificationException {
+        when(delegate.parseAndVerify("bad_token")).thenThrow(new TokenVerificationException.InvalidSignature());
+        parser.parseAndVerify("bad_token");
+    }
+}
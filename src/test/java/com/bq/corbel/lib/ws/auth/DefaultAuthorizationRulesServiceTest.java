@@ -7,6 +7,7 @@ import org.junit.Test;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -38,4 +39,13 @@ public class DefaultAuthorizationRulesServiceTest {
 		when(authorizationRulesRepositoryMock.get(key)).thenReturn(set);
 		assertThat(service.getAuthorizationRules(TEST_TOKEN, TEST_AUD)).isSameAs(set);
 	}
+
+	@Test
+	public void testGetAuthenticationRulesAsync() throws Exception {
+		Set<JsonObject> set = new HashSet<>();
+		String key = "key";
+		when(authorizationRulesRepositoryMock.getKeyForAuthorizationRules(TEST_TOKEN, TEST_AUD)).thenReturn(key);
+		when(authorizationRulesRepositoryMock.getAsync(key)).thenReturn(CompletableFuture.completedFuture(set));
+		assertThat(service.getAuthorizationRulesAsync(TEST_TOKEN, TEST_AUD).get()).isSameAs(set);
+	}
 }
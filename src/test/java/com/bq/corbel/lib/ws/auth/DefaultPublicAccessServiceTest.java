@@ -1,20 +1,34 @@
 package com.bq.corbel.lib.ws.auth;
 
-import com.google.common.base.Optional;
+import com.bq.corbel.event.DomainPublicScopesNotPublishedEvent;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.bq.corbel.eventbus.service.EventBus;
 import com.bq.corbel.lib.token.exception.TokenVerificationException;
-import io.dropwizard.auth.AuthenticationException;
+import com.codahale.metrics.MetricRegistry;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -60,12 +74,145 @@ public class DefaultPublicAccessServiceTest {
 
     @Test
     public void testDomainWithPublicScopesNotPublished() {
-        when(authorizationRulesServiceMock.existsRulesForToken(TEST_DOMAIN +
-                DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE)).thenReturn(false);
         when(authorizationRulesServiceMock.getAuthorizationRules(TEST_DOMAIN +
                 DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE)).thenReturn(Collections.emptySet());
         Set<JsonObject> publicRules = publicAccessService.getDomainPublicRules(TEST_DOMAIN);
         assertThat(publicRules.size()).isEqualTo(0);
+        verify(eventBus).dispatch(any(DomainPublicScopesNotPublishedEvent.class));
+        verify(authorizationRulesServiceMock, atLeast(2)).getAuthorizationRules(TEST_DOMAIN +
+                DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE);
+    }
+
+    @Test
+    public void testConcurrentRequestsWaitForTheSamePublication() throws Exception {
+        publicAccessService = new DefaultPublicAccessService(authorizationRulesServiceMock, 10000, eventBus, TEST_AUDIENCE);
+        Set<JsonObject> set = publicRules();
+        Set<JsonObject> published = Collections.synchronizedSet(new HashSet<>());
+        when(authorizationRulesServiceMock.getAuthorizationRules(TEST_DOMAIN +
+                DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE)).thenAnswer(invocation -> new HashSet<>(published));
+        // the request that dispatches the event holds the publication until every other request waits for it
+        CountDownLatch dispatched = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            dispatched.await();
+            return null;
+        }).when(eventBus).dispatch(any(DomainPublicScopesNotPublishedEvent.class));
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8, runnable -> {
+            Thread thread = new Thread(runnable);
+            threads.add(thread);
+            return thread;
+        });
+        try {
+            List<Future<Set<JsonObject>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> publicAccessService.getDomainPublicRules(TEST_DOMAIN)));
+            }
+            while (threads.size() < 8 || !threads.stream().allMatch(thread -> thread.getState() == Thread.State.WAITING
+                    || thread.getState() == Thread.State.TIMED_WAITING)) {
+                Thread.yield();
+            }
+            published.addAll(set);
+            dispatched.countDown();
+            for (Future<Set<JsonObject>> result : results) {
+                assertThat(result.get()).isEqualTo(set);
+            }
+            verify(eventBus).dispatch(any(DomainPublicScopesNotPublishedEvent.class));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDomainWithPublicScopesSingleLookup() {
+        Set<JsonObject> set = publicRules();
+        when(authorizationRulesServiceMock.getAuthorizationRules(TEST_DOMAIN +
+                DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE)).thenReturn(set);
+        publicAccessService.getDomainPublicRules(TEST_DOMAIN);
+        verify(authorizationRulesServiceMock).getAuthorizationRules(TEST_DOMAIN + DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX,
+                TEST_AUDIENCE);
+        verify(authorizationRulesServiceMock, never()).existsRulesForToken(anyString(), anyString());
+        verify(eventBus, never()).dispatch(any(DomainPublicScopesNotPublishedEvent.class));
+    }
+
+    @Test
+    public void testCachedDomainPublicScopes() {
+        publicAccessService = new DefaultPublicAccessService(authorizationRulesServiceMock, WAIT_TIME_FOR_PUBLISH_PUBLIC_SCOPES,
+                eventBus, TEST_AUDIENCE, 60000, 60000);
+        Set<JsonObject> set = publicRules();
+        when(authorizationRulesServiceMock.getAuthorizationRules(TEST_DOMAIN +
+                DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE)).thenReturn(set);
+        assertThat(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).isEqualTo(set);
+        assertThat(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).isEqualTo(set);
+        assertThat(publicAccessService.getCompiledDomainPublicRules(TEST_DOMAIN)).isSameAs(
+                publicAccessService.getCompiledDomainPublicRules(TEST_DOMAIN));
+        verify(authorizationRulesServiceMock).getAuthorizationRules(TEST_DOMAIN + DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX,
+                TEST_AUDIENCE);
+    }
+
+    @Test
+    public void testEmptyDomainPublicScopesAreNotCached() {
+        publicAccessService = new DefaultPublicAccessService(authorizationRulesServiceMock, 20, eventBus, TEST_AUDIENCE, 60000, 60000);
+        Set<JsonObject> set = publicRules();
+        Set<JsonObject> published = Collections.synchronizedSet(new HashSet<>());
+        when(authorizationRulesServiceMock.getAuthorizationRules(TEST_DOMAIN +
+                DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE)).thenAnswer(invocation -> new HashSet<>(published));
+        assertThat(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).isEmpty();
+        published.addAll(set);
+        assertThat(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).isEqualTo(set);
+    }
+
+    @Test
+    public void testCachedDomainPublicScopesAreRefreshed() throws InterruptedException {
+        publicAccessService = new DefaultPublicAccessService(authorizationRulesServiceMock, WAIT_TIME_FOR_PUBLISH_PUBLIC_SCOPES,
+                eventBus, TEST_AUDIENCE, 50, 60000);
+        Set<JsonObject> oldRules = publicRules();
+        Set<JsonObject> newRules = publicRules();
+        newRules.add(new JsonObject());
+        when(authorizationRulesServiceMock.getAuthorizationRules(TEST_DOMAIN +
+                DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE)).thenReturn(oldRules, newRules);
+        assertThat(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).isEqualTo(oldRules);
+        Thread.sleep(100);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!publicAccessService.getDomainPublicRules(TEST_DOMAIN).equals(newRules) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).isEqualTo(newRules);
+    }
+
+    @Test
+    public void testDomainPublicScopesNotPublishedEventIsDebounced() {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        publicAccessService = new DefaultPublicAccessService(authorizationRulesServiceMock, 20, eventBus, TEST_AUDIENCE, 0, 0,
+                new DomainEventDebouncer(60000, 1000, metricRegistry));
+        when(authorizationRulesServiceMock.getAuthorizationRules(TEST_DOMAIN +
+                DefaultPublicAccessService.PUBLIC_SCOPES_SUFFIX, TEST_AUDIENCE)).thenReturn(Collections.emptySet());
+        for (int i = 0; i < 3; i++) {
+            assertThat(publicAccessService.getDomainPublicRules(TEST_DOMAIN)).isEmpty();
+        }
+        assertThat(publicAccessService.getDomainPublicRules("other-domain")).isEmpty();
+        verify(eventBus, times(2)).dispatch(any(DomainPublicScopesNotPublishedEvent.class));
+        assertThat(metricRegistry.meter(MetricRegistry.name(DomainEventDebouncer.class, "emitted")).getCount()).isEqualTo(2);
+        assertThat(metricRegistry.meter(MetricRegistry.name(DomainEventDebouncer.class, "suppressed")).getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testFailedDispatchIsNotDebounced() {
+        DomainEventDebouncer debouncer = new DomainEventDebouncer(60000, 1000, new MetricRegistry());
+        try {
+            debouncer.dispatch(TEST_DOMAIN, () -> {
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException expected) {}
+        assertThat(debouncer.dispatch(TEST_DOMAIN, () -> {})).isTrue();
+        assertThat(debouncer.dispatch(TEST_DOMAIN, () -> {})).isFalse();
+    }
+
+    private Set<JsonObject> publicRules() {
+        Set<JsonObject> set = new HashSet<>();
+        JsonObject rule = new JsonObject();
+        rule.add("a", new JsonPrimitive("1"));
+        set.add(rule);
+        return set;
     }
 
 }
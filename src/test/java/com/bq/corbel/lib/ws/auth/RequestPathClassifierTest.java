@@ -0,0 +1,74 @@
+package com.bq.corbel.lib.ws.auth;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.UriInfo;
+
+import org.junit.Test;
+import org.mockito.Matchers;
+
+public class RequestPathClassifierTest {
+
+    private final RequestPathClassifier classifier = new RequestPathClassifier("v1.0/not_auth.*", "resource,user");
+
+    @Test
+    public void testPathWithDomain() {
+        RequestPath requestPath = classifier.classify("v1.0/test:domain/resource/test:Collection/id");
+        assertThat(requestPath.isUnAuthenticated()).isFalse();
+        assertThat(requestPath.getVersion()).isEqualTo("v1.0");
+        assertThat(requestPath.getDomainId()).isEqualTo("test:domain");
+        assertThat(requestPath.getEndpoint()).isEqualTo("resource");
+        assertThat(requestPath.isWithoutDomain()).isFalse();
+        assertThat(requestPath.getScopeUrl("test:domain")).isEqualTo("resource/test:Collection/id");
+        assertThat(requestPath.getScopeUrl("other")).isEqualTo("test:domain/resource/test:Collection/id");
+        assertThat(requestPath.getScopeUrl(null)).isEqualTo("test:domain/resource/test:Collection/id");
+    }
+
+    @Test
+    public void testPathWithoutDomain() {
+        RequestPath requestPath = classifier.classify("v12.34/user/me");
+        assertThat(requestPath.getVersion()).isEqualTo("v12.34");
+        assertThat(requestPath.getDomainId()).isNull();
+        assertThat(requestPath.getEndpoint()).isEqualTo("user");
+        assertThat(requestPath.isWithoutDomain()).isTrue();
+        assertThat(requestPath.getScopeUrl("test")).isEqualTo("user/me");
+    }
+
+    @Test
+    public void testOtherPaths() {
+        assertThat(classifier.classify("v1.0/not_auth/x").isUnAuthenticated()).isTrue();
+        RequestPath requestPath = classifier.classify("v1.0/test/other");
+        assertThat(requestPath.getEndpoint()).isNull();
+        assertThat(requestPath.isWithoutDomain()).isFalse();
+        assertThat(requestPath.getScopeUrl("test")).isEqualTo("other");
+        assertThat(classifier.classify("status/vx.1/v2/x").getScopeUrl("x")).isEqualTo("status/vx.1/v2/x");
+        assertThat(classifier.classify("api/v2.0/test/a").getScopeUrl("test")).isEqualTo("api/a");
+        assertThat(new RequestPathClassifier(null, "").classify("v1.0/x").isUnAuthenticated()).isFalse();
+    }
+
+    @Test
+    public void testClassificationIsSharedByTheRequest() {
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        UriInfo uriInfo = mock(UriInfo.class);
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        when(uriInfo.getPath()).thenReturn("v1.0/test/resource");
+        RequestPath requestPath = classifier.classify("v1.0/test/resource");
+        when(request.getProperty(RequestPathClassifier.REQUEST_PATH_PROPERTIES_KEY)).thenReturn(requestPath);
+
+        assertThat(new RequestPathClassifier("v1.0/not_auth.*", "resource,user").classify(request)).isSameAs(requestPath);
+        verify(request, never()).setProperty(Matchers.anyString(), Matchers.any());
+
+        when(uriInfo.getPath()).thenReturn("v1.0/other/resource");
+        RequestPath rewritten = classifier.classify(request);
+        assertThat(rewritten.getDomainId()).isEqualTo("other");
+        verify(request).setProperty(RequestPathClassifier.REQUEST_PATH_PROPERTIES_KEY, rewritten);
+
+        when(uriInfo.getPath()).thenReturn("v1.0/test/resource");
+        assertThat(new RequestPathClassifier("v1.0/not_auth.*", "resource").classify(request)).isNotSameAs(requestPath);
+    }
+}
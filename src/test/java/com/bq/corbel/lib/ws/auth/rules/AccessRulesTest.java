@@ -0,0 +1,149 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class AccessRulesTest {
+
+    private static final String TEST_URI = "resource/test:Test(/.*)?";
+
+    private final JsonParser jsonParser = new JsonParser();
+    private AccessRuleCompiler compiler;
+
+    @Before
+    public void setup() {
+        compiler = new AccessRuleCompiler(100);
+    }
+
+    @Test
+    public void testMatches() {
+        AccessRules rules = compile("{\"type\":\"http_access\", \"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\",\"PUT\"], \"uri\":\""
+                + TEST_URI + "\"}");
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test", json(), false)).isTrue();
+        assertThat(rules.matches(HttpMethod.PUT, "resource/test:Test/id", json(), false)).isTrue();
+    }
+
+    @Test
+    public void testInternRuleSets() {
+        JsonObject rule1 = jsonParser.parse("{\"methods\":[\"GET\"], \"uri\":\"" + TEST_URI + "\"}").getAsJsonObject();
+        JsonObject rule2 = jsonParser.parse("{\"mediaTypes\":[\"application/json\"], \"methods\":[\"PUT\"], \"uri\":\"" + TEST_URI + "\"}").getAsJsonObject();
+        Set<JsonObject> rules = new HashSet<>(Arrays.asList(rule1, rule2));
+        RuleSet ruleSet = compiler.intern(rules);
+        assertThat(compiler.intern(new HashSet<>(Arrays.asList(jsonParser.parse(rule2.toString()).getAsJsonObject(), jsonParser.parse(rule1.toString())
+                .getAsJsonObject())))).isSameAs(ruleSet);
+        rules.clear();
+        assertThat(ruleSet.getRules()).containsOnly(rule1, rule2);
+        assertThat(ruleSet.getCompiledRules().matches(HttpMethod.PUT, "resource/test:Test", json(), false)).isTrue();
+        assertThat(compiler.intern(Collections.emptySet())).isSameAs(RuleSet.EMPTY);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testInternedRuleSetsAreImmutable() {
+        JsonObject rule = jsonParser.parse("{\"methods\":[\"GET\"], \"uri\":\"" + TEST_URI + "\"}").getAsJsonObject();
+        compiler.intern(new HashSet<>(Arrays.asList(rule))).getRules().add(new JsonObject());
+    }
+
+    @Test
+    public void testMethodNotAllowed() {
+        AccessRules rules = compile("{\"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\"], \"uri\":\"" + TEST_URI + "\"}");
+        assertThat(rules.matches(HttpMethod.POST, "resource/test:Test", json(), false)).isFalse();
+    }
+
+    @Test
+    public void testExtensionMethod() {
+        AccessRules rules = compile("{\"mediaTypes\":[\"application/json\"], \"methods\":[\"PROPFIND\"], \"uri\":\"" + TEST_URI + "\"}");
+        assertThat(rules.matches("PROPFIND", "resource/test:Test", json(), false)).isTrue();
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test", json(), false)).isFalse();
+    }
+
+    @Test
+    public void testUriNotMatches() {
+        AccessRules rules = compile("{\"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\"], \"uri\":\"" + TEST_URI + "\"}");
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Other", json(), false)).isFalse();
+    }
+
+    @Test
+    public void testGenericMediaType() {
+        AccessRules rules = compile("{\"mediaTypes\":[\"music/mp3\",\"application/*\"], \"methods\":[\"GET\"], \"uri\":\"" + TEST_URI
+                + "\"}");
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test", Arrays.asList(MediaType.TEXT_HTML_TYPE,
+                MediaType.APPLICATION_JSON_TYPE), false)).isTrue();
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test", Arrays.asList(MediaType.TEXT_HTML_TYPE), false)).isFalse();
+    }
+
+    @Test
+    public void testUserTokenType() {
+        AccessRules rules = compile("{\"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\"], \"uri\":\"" + TEST_URI
+                + "\", \"tokenType\":\"user\"}");
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test", json(), true)).isTrue();
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test", json(), false)).isFalse();
+    }
+
+    @Test
+    public void testUnknownTokenType() {
+        AccessRules rules = compile("{\"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\"], \"uri\":\"" + TEST_URI
+                + "\", \"tokenType\":\"client\"}");
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test", json(), true)).isFalse();
+    }
+
+    @Test
+    public void testMalformedRulesAreDiscarded() {
+        AccessRules rules = compile("{\"mediaTypes\":[\"application/json\"], \"uri\":\"" + TEST_URI + "\"}",
+                "{\"methods\":[\"GET\"], \"uri\":\"" + TEST_URI + "\"}", "{\"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\"]}",
+                "{\"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\"], \"uri\":\"resource/(\"}");
+        assertThat(rules.isEmpty()).isTrue();
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test", json(), false)).isFalse();
+    }
+
+    @Test
+    public void testCompiledRuleIsReused() {
+        JsonObject rule = jsonParser.parse("{\"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\"], \"uri\":\"" + TEST_URI + "\"}")
+                .getAsJsonObject();
+        JsonObject sameRule = jsonParser.parse(rule.toString()).getAsJsonObject();
+        assertThat(compiler.compile(rule).get()).isSameAs(compiler.compile(sameRule).get());
+    }
+
+    @Test
+    public void testCombinedUriMatcher() {
+        compiler = new AccessRuleCompiler(100, 2);
+        AccessRules rules = compile("{\"mediaTypes\":[\"application/json\"], \"methods\":[\"GET\"], \"uri\":\"" + TEST_URI + "\"}",
+                "{\"mediaTypes\":[\"application/json\"], \"methods\":[\"PUT\"], \"uri\":\"resource/(?i)other\"}",
+                "{\"mediaTypes\":[\"application/json\"], \"methods\":[\"POST\"], \"uri\":\"resource/.*\", \"tokenType\":\"user\"}");
+        assertThat(rules.matches(HttpMethod.GET, "resource/test:Test/id", json(), false)).isTrue();
+        assertThat(rules.matches(HttpMethod.PUT, "resource/OTHER", json(), false)).isTrue();
+        assertThat(rules.matches(HttpMethod.POST, "resource/test:Test", json(), true)).isTrue();
+        assertThat(rules.matches(HttpMethod.POST, "resource/test:Test", json(), false)).isFalse();
+        assertThat(rules.matches(HttpMethod.GET, "resource/other", json(), false)).isFalse();
+    }
+
+    @Test
+    public void testEmptyRules() {
+        assertThat(compiler.compile(Collections.<JsonObject>emptySet())).isSameAs(AccessRules.EMPTY);
+        assertThat(compiler.compile((Collection<JsonObject>) null)).isSameAs(AccessRules.EMPTY);
+    }
+
+    private AccessRules compile(String... rules) {
+        return compiler.compile(Arrays.stream(rules).map(rule -> jsonParser.parse(rule).getAsJsonObject())
+                .collect(Collectors.toList()));
+    }
+
+    private List<MediaType> json() {
+        return Arrays.asList(MediaType.APPLICATION_JSON_TYPE);
+    }
+}
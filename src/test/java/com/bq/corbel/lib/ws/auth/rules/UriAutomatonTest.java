@@ -0,0 +1,75 @@
+package com.bq.corbel.lib.ws.auth.rules;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class UriAutomatonTest {
+
+    private static final List<String> PATTERNS = Arrays.asList("resource/test:Test(/.*)?", "resource/[^/]+/[a-f0-9]{24}",
+            "^iam/user/me$", "(resource|assets)/\\w+:\\w+/?", "evci/.*/(a|b)+c?", "resource/test:Test", "oauth/(?:token|signout)",
+            "x{2,3}y{0,2}", "path/\\d+\\.json", "[a-c-]*", ".*/relation/.*");
+
+    private static final List<String> PATHS = Arrays.asList("", "resource/test:Test", "resource/test:Test/", "resource/test:Test/123",
+            "resource/test:Tests", "resource/test:Test/1/abcdef0123456789abcdef01", "resource/foo/abcdef0123456789abcdef01",
+            "resource/foo/abcdef0123456789abcdef0", "iam/user/me", "iam/user/me/", "assets/app:Music", "assets/app:Music/",
+            "evci/x/ababc", "evci//c", "oauth/token", "oauth/signout", "oauth/other", "xx", "xxxyy", "xxxxy", "xyy", "path/12.json",
+            "path/12xjson", "abc-", "abd", "resource/a:B/1/relation/c:D", "resource/a:B/1/relation/c:D\n", "r\u00e9source/test:Test");
+
+    @Test
+    public void testSameResultsAsPattern() {
+        UriAutomaton automaton = UriAutomaton.compile(PATTERNS);
+        for (String path : PATHS) {
+            assertThat(automaton.match(path)).as(path).isEqualTo(patternMatches(PATTERNS, path));
+        }
+    }
+
+    @Test
+    public void testUnsupportedPatterns() {
+        List<String> patterns = Arrays.asList("resource/(a)\\1", "resource/(?=a).*", "(?i)resource", "resource/a++", "resource/\\bx",
+                "resource/.*");
+        UriAutomaton automaton = UriAutomaton.compile(patterns);
+        assertThat(automaton.getUnsupportedPatterns()).isEqualTo(new int[] {0, 1, 2, 3, 4});
+        assertThat(automaton.match("resource/aa")).isEqualTo(new int[] {5});
+    }
+
+    @Test
+    public void testCatastrophicPattern() {
+        UriAutomaton automaton = UriAutomaton.compile(Arrays.asList("(a|aa)+b", "(a*)*c"));
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            path.append('a');
+        }
+        assertThat(automaton.match(path.toString())).isEmpty();
+    }
+
+    @Test
+    public void testBoundedDfaStates() {
+        UriAutomaton automaton = UriAutomaton.compile(PATTERNS, 4);
+        for (String path : PATHS) {
+            assertThat(automaton.match(path)).as(path).isEqualTo(patternMatches(PATTERNS, path));
+        }
+        assertThat(automaton.getDfaStatesCount()).isLessThanOrEqualTo(4);
+    }
+
+    @Test
+    public void testSurrogatesAreNotEvaluated() {
+        UriAutomaton automaton = UriAutomaton.compile(PATTERNS);
+        assertThat(automaton.match("resource/test:Test/\uD83D\uDE00")).isNull();
+    }
+
+    private int[] patternMatches(List<String> patterns, String path) {
+        List<Integer> matches = new ArrayList<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            if (Pattern.compile(patterns.get(i)).matcher(path).matches()) {
+                matches.add(i);
+            }
+        }
+        return matches.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -4,6 +4,7 @@ import com.bq.corbel.lib.token.TokenInfo;
 import com.bq.corbel.lib.token.exception.TokenVerificationException;
 import com.bq.corbel.lib.token.parser.TokenParser;
 import com.bq.corbel.lib.token.reader.TokenReader;
+import com.bq.corbel.lib.ws.auth.AuthorizationRequestFilter;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -57,6 +58,7 @@ public class AllowRequestWithoutDomainInUriFilterTest {
         verify(uriBuilder).replacePath(Mockito.anyString());
         verify(uriBuilder).build();
         verify(request).setRequestUri(Mockito.any());
+        verify(request).setProperty(AuthorizationRequestFilter.VERIFIED_TOKEN_PROPERTIES_KEY, tokenReader);
     }
 
     @Test
@@ -0,0 +1,46 @@
+package com.bq.corbel.lib.ws.health;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SetOperations;
+
+import com.codahale.metrics.health.HealthCheck.Result;
+import com.google.gson.JsonObject;
+
+public class AuthorizationRedisHealthCheckTest {
+
+    @Test
+    public void testEveryNodeIsPinged() {
+        RedisTemplate<String, JsonObject> node1 = node("redis1", "PONG");
+        RedisTemplate<String, JsonObject> node2 = node("redis2", "PONG");
+        assertThat(new AuthorizationRedisHealthCheck(Arrays.asList(node1, node2), null).execute().isHealthy()).isTrue();
+
+        RedisTemplate<String, JsonObject> node3 = node("redis3", null);
+        Result result = new AuthorizationRedisHealthCheck(Arrays.asList(node1, node3, node2), null).execute();
+        assertThat(result.isHealthy()).isFalse();
+        assertThat(result.getMessage()).isEqualTo("Redis redis3:6379 is down");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RedisTemplate<String, JsonObject> node(String host, String pong) {
+        RedisTemplate<String, JsonObject> redisTemplate = mock(RedisTemplate.class);
+        SetOperations<String, JsonObject> setOperations = mock(SetOperations.class);
+        JedisConnectionFactory connectionFactory = new JedisConnectionFactory();
+        connectionFactory.setHostName(host);
+        when(redisTemplate.execute(any(RedisCallback.class))).thenReturn(pong);
+        when(redisTemplate.opsForSet()).thenReturn(setOperations);
+        when(setOperations.members("fake")).thenReturn(Collections.emptySet());
+        when(redisTemplate.getConnectionFactory()).thenReturn(connectionFactory);
+        return redisTemplate;
+    }
+}
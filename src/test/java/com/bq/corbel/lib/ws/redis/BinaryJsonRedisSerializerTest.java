@@ -0,0 +1,64 @@
+package com.bq.corbel.lib.ws.redis;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class BinaryJsonRedisSerializerTest {
+
+	private static final String RULE = "{\"mediaTypes\":[\"application/json\"],\"methods\":[\"GET\",\"PUT\"],"
+			+ "\"type\":\"http_access\",\"uri\":\"resource/\u00f1\u20ac(/.*)?\",\"tokenType\":null,\"enabled\":true,"
+			+ "\"priority\":-1.5e3,\"big\":12345678901234567890}";
+
+	private final JsonObject rule = new JsonParser().parse(RULE).getAsJsonObject();
+	private final BinaryJsonRedisSerializer<JsonObject> serializer = new BinaryJsonRedisSerializer<>();
+
+	@Test
+	public void testRoundTrip() {
+		byte[] bytes = serializer.serialize(rule);
+		assertThat(bytes[0]).isEqualTo(BinaryJsonRedisSerializer.MAGIC);
+		assertThat(bytes.length).isLessThan(RULE.getBytes(StandardCharsets.UTF_8).length);
+		assertThat(serializer.deserialize(bytes)).isEqualTo(rule);
+	}
+
+	@Test
+	public void testCompressedRoundTrip() {
+		BinaryJsonRedisSerializer<JsonObject> compressingSerializer = new BinaryJsonRedisSerializer<>(16);
+		byte[] bytes = compressingSerializer.serialize(rule);
+		assertThat(bytes[1] & 0x80).isNotEqualTo(0);
+		assertThat(compressingSerializer.deserialize(bytes)).isEqualTo(rule);
+		assertThat(serializer.deserialize(bytes)).isEqualTo(rule);
+	}
+
+	@Test
+	public void testReadsLegacyJson() {
+		byte[] legacy = new GsonRedisSerializer<JsonElement>().serialize(rule);
+		assertThat(serializer.deserialize(legacy)).isEqualTo(rule);
+	}
+
+	@Test
+	public void testNull() {
+		assertThat(serializer.serialize(null)).isNull();
+		assertThat(serializer.deserialize(null)).isNull();
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testTruncated() {
+		byte[] bytes = serializer.serialize(rule);
+		byte[] truncated = new byte[bytes.length / 2];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		serializer.deserialize(truncated);
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testUnsupportedVersion() {
+		serializer.deserialize(new byte[] {BinaryJsonRedisSerializer.MAGIC, 2, 0});
+	}
+}
@@ -1,15 +1,35 @@
 package com.bq.corbel.lib.ws.repository;
 
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
 import com.bq.corbel.lib.ws.auth.repository.RedisAuthorizationRulesRepository;
 import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.redis.BinaryJsonRedisSerializer;
+import com.bq.corbel.lib.ws.redis.GsonRedisSerializer;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.SetOperations;
-
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -34,6 +54,8 @@ public class AuthorizationRulesRepositoryTest {
 		operations = Mockito.mock(SetOperations.class);
 		template = Mockito.mock(RedisTemplate.class);
 		when(template.opsForSet()).thenReturn(operations);
+		when(template.execute(Mockito.any(SessionCallback.class))).then(
+				invocation -> ((SessionCallback<?>) invocation.getArguments()[0]).execute(template));
 
 		repository = new RedisAuthorizationRulesRepository(template);
 
@@ -48,6 +70,80 @@ public class AuthorizationRulesRepositoryTest {
 		Mockito.verify(template).expire(TEST_KEY, TEST_TTL, TimeUnit.MILLISECONDS);
 	}
 
+	@Test
+	public void testSaveIsTransactional() {
+		repository.save(TEST_KEY, TEST_TTL, testRule);
+		InOrder inOrder = Mockito.inOrder(template, operations);
+		inOrder.verify(template).multi();
+		inOrder.verify(operations).add(TEST_KEY, testRule);
+		inOrder.verify(template).expire(TEST_KEY, TEST_TTL, TimeUnit.MILLISECONDS);
+		inOrder.verify(template).exec();
+	}
+
+	@Test
+	public void testSaveAll() {
+		Map<String, Set<JsonObject>> rulesByKey = new LinkedHashMap<>();
+		rulesByKey.put(TEST_KEY, Collections.singleton(testRule));
+		rulesByKey.put("otherKey", Collections.singleton(testRule));
+		repository.saveAll(rulesByKey, TEST_TTL);
+		Mockito.verify(template).multi();
+		Mockito.verify(operations).add(TEST_KEY, testRule);
+		Mockito.verify(operations).add("otherKey", testRule);
+		Mockito.verify(template).expire(TEST_KEY, TEST_TTL, TimeUnit.MILLISECONDS);
+		Mockito.verify(template).expire("otherKey", TEST_TTL, TimeUnit.MILLISECONDS);
+		Mockito.verify(template).exec();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testGetAll() {
+		RedisConnection connection = Mockito.mock(RedisConnection.class);
+		when((RedisSerializer<String>) template.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(template.executePipelined(Mockito.any(RedisCallback.class))).then(invocation -> {
+			((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection);
+			return Arrays.asList(Collections.singleton(testRule), Collections.emptySet());
+		});
+		Map<String, Set<JsonObject>> rules = repository.getAll(Arrays.asList(TEST_KEY, "otherKey", TEST_KEY));
+		assertThat(rules).hasSize(2);
+		assertThat(rules.get(TEST_KEY)).containsOnly(testRule);
+		assertThat(rules.get("otherKey")).isEmpty();
+		Mockito.verify(connection).sMembers(TEST_KEY.getBytes());
+		Mockito.verify(connection).sMembers("otherKey".getBytes());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testGetWithTimeToExpire() {
+		RedisConnection connection = Mockito.mock(RedisConnection.class);
+		when((RedisSerializer<String>) template.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(template.executePipelined(Mockito.any(RedisCallback.class))).then(invocation -> {
+			((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection);
+			return Arrays.asList(Collections.singleton(testRule), 10L);
+		});
+		ExpiringRules rules = repository.getWithTimeToExpire(TEST_KEY);
+		assertThat(rules.getRules()).containsOnly(testRule);
+		assertThat(rules.getTimeToExpire()).isEqualTo(10L);
+		Mockito.verify(connection).sMembers(TEST_KEY.getBytes());
+		Mockito.verify(connection).ttl(TEST_KEY.getBytes());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testGetTimeToExpireAll() {
+		RedisConnection connection = Mockito.mock(RedisConnection.class);
+		when((RedisSerializer<String>) template.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when(template.executePipelined(Mockito.any(RedisCallback.class))).then(invocation -> {
+			((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection);
+			return Arrays.asList(10L, -2L);
+		});
+		Map<String, Long> timesToExpire = repository.getTimeToExpireAll(Arrays.asList(TEST_KEY, "otherKey", TEST_KEY));
+		assertThat(timesToExpire).hasSize(2);
+		assertThat(timesToExpire.get(TEST_KEY)).isEqualTo(10L);
+		assertThat(timesToExpire.get("otherKey")).isEqualTo(-2L);
+		Mockito.verify(connection).ttl(TEST_KEY.getBytes());
+		Mockito.verify(connection).ttl("otherKey".getBytes());
+	}
+
 	@Test
 	public void testDelete() {
 		repository.delete(TEST_KEY);
@@ -78,8 +174,66 @@ public class AuthorizationRulesRepositoryTest {
 		Mockito.verify(operations).remove(TEST_KEY, testRule);
 	}
 
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRemoveRulesWrittenAsJsonWithTheBinarySerializer() {
+		Set<ByteBuffer> members = new HashSet<>();
+		JsonObject otherRule = new JsonObject();
+		otherRule.add("_id", new JsonPrimitive("otherId"));
+		members.add(ByteBuffer.wrap(new GsonRedisSerializer<JsonObject>().serialize(testRule)));
+		members.add(ByteBuffer.wrap(new GsonRedisSerializer<JsonObject>().serialize(otherRule)));
+		RedisConnection connection = Mockito.mock(RedisConnection.class);
+		when(connection.sRem(Mockito.eq(TEST_KEY.getBytes(StandardCharsets.UTF_8)), Mockito.<byte[]> anyVararg())).then(invocation -> {
+			long removed = 0;
+			for (int i = 1; i < invocation.getArguments().length; i++) {
+				removed += members.remove(ByteBuffer.wrap((byte[]) invocation.getArguments()[i])) ? 1 : 0;
+			}
+			return removed;
+		});
+		when((RedisSerializer<String>) template.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when((RedisSerializer<JsonObject>) template.getValueSerializer()).thenReturn(new BinaryJsonRedisSerializer<JsonObject>());
+		when(template.execute(Mockito.any(RedisCallback.class))).then(
+				invocation -> ((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection));
+
+		repository.removeRules(TEST_KEY, testRule);
+
+		assertThat(members).containsOnly(ByteBuffer.wrap(new GsonRedisSerializer<JsonObject>().serialize(otherRule)));
+		Mockito.verify(connection).sRem(TEST_KEY.getBytes(StandardCharsets.UTF_8), new BinaryJsonRedisSerializer<JsonObject>().serialize(
+				testRule), new GsonRedisSerializer<JsonObject>().serialize(testRule));
+	}
+
 	@Test
 	public void testGetKey() {
 		assertThat(repository.getKeyForAuthorizationRules("token", "aud")).isEqualTo("token|aud");
 	}
+
+	@Test
+	public void testExistsRules() {
+		when(template.hasKey(TEST_KEY)).thenReturn(true);
+		assertThat(repository.existsRules(TEST_KEY)).isTrue();
+		Mockito.verify(template, Mockito.never()).keys(Mockito.anyString());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testDeleteByToken() {
+		repository = new RedisAuthorizationRulesRepository(template, 2);
+		RedisConnection connection = Mockito.mock(RedisConnection.class);
+		Cursor<byte[]> cursor = Mockito.mock(Cursor.class);
+		when(cursor.hasNext()).thenReturn(true, true, true, false);
+		when(cursor.next()).thenReturn("token|a".getBytes(), "token|b".getBytes(), "token|c".getBytes());
+		when(connection.scan(Mockito.any(ScanOptions.class))).thenReturn(cursor);
+		when(template.execute(Mockito.any(RedisCallback.class))).then(
+				invocation -> ((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection));
+
+		repository.deleteByToken("token");
+
+		ArgumentCaptor<ScanOptions> options = ArgumentCaptor.forClass(ScanOptions.class);
+		Mockito.verify(connection).scan(options.capture());
+		assertThat(options.getValue().getPattern()).isEqualTo("token|*");
+		assertThat(options.getValue().getCount()).isEqualTo(2);
+		Mockito.verify(connection).del("token|a".getBytes(), "token|b".getBytes());
+		Mockito.verify(connection).del(new byte[][] {"token|c".getBytes()});
+		Mockito.verify(template, Mockito.never()).keys(Mockito.anyString());
+	}
 }
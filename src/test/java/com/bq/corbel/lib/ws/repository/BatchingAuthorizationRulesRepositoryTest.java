@@ -0,0 +1,128 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.BatchingAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class BatchingAuthorizationRulesRepositoryTest {
+
+	private AuthorizationRulesRepository delegate;
+	private final List<Collection<String>> batches = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		delegate = mock(AuthorizationRulesRepository.class);
+		when(delegate.getAll(anyCollectionOf(String.class))).then(invocation -> {
+			@SuppressWarnings("unchecked")
+			Collection<String> keys = new ArrayList<>((Collection<String>) invocation.getArguments()[0]);
+			synchronized (batches) {
+				batches.add(keys);
+			}
+			Map<String, Set<JsonObject>> rules = new HashMap<>();
+			for (String key : keys) {
+				rules.put(key, Sets.newHashSet(rule(key)));
+			}
+			return rules;
+		});
+	}
+
+	@Test
+	public void testSingleGet() {
+		BatchingAuthorizationRulesRepository repository = new BatchingAuthorizationRulesRepository(delegate, 100, 10);
+		assertThat(repository.get("a")).containsOnly(rule("a"));
+		assertThat(batches).hasSize(1);
+	}
+
+	@Test
+	public void testGetWithTimeToExpireKeepsTheTimeToExpire() {
+		when(delegate.getWithTimeToExpire("a")).thenReturn(new ExpiringRules(Sets.newHashSet(rule("a")), 10L));
+		BatchingAuthorizationRulesRepository repository = new BatchingAuthorizationRulesRepository(delegate, 100, 10);
+		ExpiringRules rules = repository.getWithTimeToExpire("a");
+		assertThat(rules.getRules()).containsOnly(rule("a"));
+		assertThat(rules.getTimeToExpire()).isEqualTo(10L);
+		assertThat(batches).isEmpty();
+	}
+
+	@Test
+	public void testConcurrentGetsAreBatchedAndDeduplicated() throws Exception {
+		BatchingAuthorizationRulesRepository repository = new BatchingAuthorizationRulesRepository(delegate, 500000, 1000);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Set<JsonObject>>> results = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				String key = "key" + (i % 4);
+				results.add(executor.submit(() -> {
+					start.await();
+					return repository.get(key);
+				}));
+			}
+			start.countDown();
+			for (int i = 0; i < 16; i++) {
+				assertThat(results.get(i).get()).containsOnly(rule("key" + (i % 4)));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		int keys = 0;
+		for (Collection<String> batch : batches) {
+			keys += batch.size();
+		}
+		assertThat(batches.size()).isLessThan(16);
+		assertThat(keys).isLessThan(16);
+	}
+
+	@Test
+	public void testFullBatchIsReadWithoutWaitingForTheWindow() throws Exception {
+		BatchingAuthorizationRulesRepository repository = new BatchingAuthorizationRulesRepository(delegate, 60000000, 2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			long start = System.currentTimeMillis();
+			Future<Set<JsonObject>> a = executor.submit(() -> repository.get("a"));
+			Thread.sleep(50);
+			Future<Set<JsonObject>> b = executor.submit(() -> repository.get("b"));
+			assertThat(a.get()).containsOnly(rule("a"));
+			assertThat(b.get()).containsOnly(rule("b"));
+			assertThat(System.currentTimeMillis() - start).isLessThan(30000);
+		} finally {
+			executor.shutdownNow();
+		}
+		verify(delegate, atMost(1)).getAll(anyCollectionOf(String.class));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testErrorsArePropagated() {
+		when(delegate.getAll(anyCollectionOf(String.class))).thenThrow(new IllegalStateException("redis down"));
+		new BatchingAuthorizationRulesRepository(delegate, 100, 10).get("a");
+	}
+
+	private static JsonObject rule(String key) {
+		JsonObject rule = new JsonObject();
+		rule.add("key", new JsonPrimitive(key));
+		return rule;
+	}
+}
@@ -0,0 +1,269 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.CircuitBreaker;
+import com.bq.corbel.lib.ws.auth.repository.CircuitBreakerAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.CircuitBreakerOpenException;
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class CircuitBreakerAuthorizationRulesRepositoryTest {
+
+	private static final String KEY = "token|audience";
+	private static final String UNKNOWN_KEY = "unknown|audience";
+
+	private AuthorizationRulesRepository delegate;
+	private CircuitBreaker circuitBreaker;
+	private MetricRegistry metricRegistry;
+	private CircuitBreakerAuthorizationRulesRepository repository;
+
+	@Before
+	public void setUp() {
+		delegate = mock(AuthorizationRulesRepository.class);
+		when(delegate.getKeyForAuthorizationRules(anyString(), anyString())).then(
+				invocation -> invocation.getArguments()[0] + "|" + invocation.getArguments()[1]);
+		circuitBreaker = new CircuitBreaker(4, 2, 50, 60000);
+		metricRegistry = new MetricRegistry();
+		repository = new CircuitBreakerAuthorizationRulesRepository(delegate, circuitBreaker, 50, 100, 60000, metricRegistry);
+	}
+
+	@After
+	public void tearDown() {
+		repository.close();
+	}
+
+	@Test
+	public void testReadsWhileClosed() {
+		when(delegate.getWithTimeToExpire(KEY)).thenReturn(new ExpiringRules(Sets.newHashSet(rule()), 60L));
+		assertThat(repository.get(KEY)).containsOnly(rule());
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+	}
+
+	@Test
+	public void testOpensOnFailureRate() {
+		failReads();
+		for (int i = 0; i < 2; i++) {
+			try {
+				repository.get(UNKNOWN_KEY);
+			} catch (IllegalStateException expected) {}
+		}
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+		assertThat(((Gauge<?>) metricRegistry.getGauges().values().iterator().next()).getValue()).isEqualTo(
+				CircuitBreaker.State.OPEN.ordinal());
+	}
+
+	@Test(expected = CircuitBreakerOpenException.class)
+	public void testFailsFastForUnknownKeysWhileOpen() {
+		openBreaker();
+		repository.get(UNKNOWN_KEY);
+	}
+
+	@Test
+	public void testServesStaleRulesWhileOpen() {
+		when(delegate.getWithTimeToExpire(KEY)).thenReturn(new ExpiringRules(Sets.newHashSet(rule()), 60L));
+		repository.get(KEY);
+		openBreaker();
+		assertThat(repository.get(KEY)).containsOnly(rule());
+		assertThat(repository.existsRules(KEY)).isTrue();
+		verify(delegate, times(1)).getWithTimeToExpire(KEY);
+		verify(delegate, never()).existsRules(anyString());
+	}
+
+	@Test
+	public void testStaleRulesExpireWithTheirKey() throws InterruptedException {
+		when(delegate.getWithTimeToExpire(KEY)).thenReturn(new ExpiringRules(Sets.newHashSet(rule()), 1L));
+		repository.get(KEY);
+		openBreaker();
+		assertThat(repository.get(KEY)).containsOnly(rule());
+		Thread.sleep(1100);
+		try {
+			repository.get(KEY);
+		} catch (CircuitBreakerOpenException expected) {
+			return;
+		}
+		throw new AssertionError("Stale rules served after their key expired");
+	}
+
+	@Test
+	public void testStaleRulesAreInvalidatedByWrites() {
+		when(delegate.getWithTimeToExpire(KEY)).thenReturn(new ExpiringRules(Sets.newHashSet(rule()), 60L));
+		repository.get(KEY);
+		repository.deleteByToken("token");
+		openBreaker();
+		try {
+			repository.get(KEY);
+		} catch (CircuitBreakerOpenException expected) {
+			return;
+		}
+		throw new AssertionError("Stale rules served after being deleted");
+	}
+
+	@Test(expected = CircuitBreakerOpenException.class)
+	public void testWritesFailFastWhileOpen() {
+		openBreaker();
+		repository.save(KEY, 1000, rule());
+	}
+
+	@Test
+	public void testTimeoutIsAFailure() {
+		when(delegate.getAsync(anyString())).thenReturn(new CompletableFuture<>());
+		for (int i = 0; i < 2; i++) {
+			try {
+				repository.getAsync(UNKNOWN_KEY).join();
+				throw new AssertionError("Read not timed out");
+			} catch (RuntimeException e) {
+				assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+			}
+		}
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+	}
+
+	@Test
+	public void testSlowCallIsAFailure() {
+		when(delegate.getWithTimeToExpire(KEY)).then(invocation -> {
+			Thread.sleep(60);
+			return new ExpiringRules(Sets.newHashSet(rule()), 60L);
+		});
+		for (int i = 0; i < 2; i++) {
+			assertThat(repository.get(KEY)).containsOnly(rule());
+		}
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+		verify(delegate, never()).getAsync(anyString());
+	}
+
+	@Test
+	public void testSlowWritesAndBatchReadsAreFailures() {
+		doAnswer(invocation -> {
+			Thread.sleep(60);
+			return null;
+		}).when(delegate).save(KEY, 1000, rule());
+		when(delegate.getAll(Collections.singleton(KEY))).then(invocation -> {
+			Thread.sleep(60);
+			return Collections.emptyMap();
+		});
+		repository.save(KEY, 1000, rule());
+		repository.getAll(Collections.singleton(KEY));
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+	}
+
+	@Test
+	public void testRejectedCallIsNotAFailure() {
+		CompletableFuture<Set<JsonObject>> rejected = new CompletableFuture<>();
+		rejected.completeExceptionally(new RejectedExecutionException("full"));
+		when(delegate.getAsync(anyString())).thenReturn(rejected);
+		for (int i = 0; i < 4; i++) {
+			try {
+				repository.getAsync(UNKNOWN_KEY).join();
+				throw new AssertionError("Rejected read succeeded");
+			} catch (CompletionException e) {
+				assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+			}
+		}
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+	}
+
+	@Test
+	public void testTrialCallClosesTheBreaker() throws InterruptedException {
+		circuitBreaker = new CircuitBreaker(4, 2, 50, 10);
+		repository = new CircuitBreakerAuthorizationRulesRepository(delegate, circuitBreaker, 50, 100, 60000, new MetricRegistry());
+		openBreaker();
+		Thread.sleep(20);
+		when(delegate.getWithTimeToExpire(KEY)).thenReturn(new ExpiringRules(Sets.newHashSet(rule()), 60L));
+		assertThat(repository.get(KEY)).containsOnly(rule());
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+	}
+
+	@Test
+	public void testFailedTrialCallOpensTheBreaker() throws InterruptedException {
+		circuitBreaker = new CircuitBreaker(4, 2, 50, 10);
+		failCall();
+		failCall();
+		Thread.sleep(20);
+		long trial = circuitBreaker.acquire();
+		assertThat(trial).isNotEqualTo(CircuitBreaker.NOT_PERMITTED);
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+		assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.NOT_PERMITTED);
+		circuitBreaker.onFailure(trial);
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+	}
+
+	@Test
+	public void testCallsStartedBeforeOpeningAreIgnored() throws InterruptedException {
+		circuitBreaker = new CircuitBreaker(4, 2, 50, 10);
+		long before = circuitBreaker.acquire();
+		failCall();
+		failCall();
+		Thread.sleep(20);
+		long trial = circuitBreaker.acquire();
+		assertThat(trial).isNotEqualTo(before);
+		circuitBreaker.onSuccess(before);
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+		circuitBreaker.onSuccess(trial);
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+		circuitBreaker.onFailure(before);
+		circuitBreaker.onFailure(trial);
+		circuitBreaker.onFailure(trial);
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+	}
+
+	@Test
+	public void testFailureRateIsComputedOverTheWindow() {
+		failCall();
+		succeedCall();
+		succeedCall();
+		succeedCall();
+		// the first failure leaves the window, one failure of four calls
+		failCall();
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+		failCall();
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+	}
+
+	private void openBreaker() {
+		failCall();
+		failCall();
+		assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+	}
+
+	private void failCall() {
+		circuitBreaker.onFailure(circuitBreaker.acquire());
+	}
+
+	private void succeedCall() {
+		circuitBreaker.onSuccess(circuitBreaker.acquire());
+	}
+
+	private void failReads() {
+		when(delegate.getWithTimeToExpire(anyString())).thenThrow(new IllegalStateException("Redis is down"));
+	}
+
+	private static JsonObject rule() {
+		JsonObject rule = new JsonObject();
+		rule.add("uri", new JsonPrimitive("test"));
+		return rule;
+	}
+}
@@ -0,0 +1,198 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import com.bq.corbel.lib.ws.auth.repository.ContentAddressedAuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.redis.GsonRedisSerializer;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class ContentAddressedAuthorizationRulesRepositoryTest {
+
+	private static final String TEST_KEY = "token|audience";
+	private static final String OTHER_KEY = "otherToken|audience";
+	private static final long TEST_TTL = 1000;
+
+	private RedisTemplate<String, JsonObject> template;
+	private RedisConnection connection;
+	private ContentAddressedAuthorizationRulesRepository repository;
+	private JsonObject rule1;
+	private JsonObject rule2;
+	private final List<byte[]> evalKeysAndArgs = new ArrayList<>();
+	private final List<Object> evalResults = new ArrayList<>();
+	private Long evalResult = 1L;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		template = mock(RedisTemplate.class);
+		connection = mock(RedisConnection.class);
+		when((RedisSerializer<String>) template.getKeySerializer()).thenReturn(new StringRedisSerializer());
+		when((RedisSerializer<JsonObject>) template.getValueSerializer()).thenReturn(new GsonRedisSerializer<JsonObject>());
+		when(template.execute(any(RedisCallback.class))).then(
+				invocation -> ((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection));
+		when(template.executePipelined(any(RedisCallback.class))).then(invocation -> {
+			evalResults.clear();
+			((RedisCallback<?>) invocation.getArguments()[0]).doInRedis(connection);
+			return new ArrayList<>(evalResults);
+		});
+		when(connection.eval(any(byte[].class), any(ReturnType.class), anyInt(), Matchers.<byte[]> anyVararg())).then(invocation -> {
+			Object[] arguments = invocation.getArguments();
+			for (int i = 3; i < arguments.length; i++) {
+				evalKeysAndArgs.add((byte[]) arguments[i]);
+			}
+			Long result = evalResult;
+			evalResult = 1L;
+			evalResults.add(result);
+			return result;
+		});
+		repository = new ContentAddressedAuthorizationRulesRepository(template, 100);
+		rule1 = new JsonObject();
+		rule1.add("_id", new JsonPrimitive("rule1"));
+		rule2 = new JsonObject();
+		rule2.add("_id", new JsonPrimitive("rule2"));
+	}
+
+	@Test
+	public void testSameRulesShareTheRuleSet() {
+		repository.save(TEST_KEY, TEST_TTL, rule1, rule2);
+		repository.save(OTHER_KEY, TEST_TTL, rule2, rule1);
+		List<byte[]> values = evalKeysAndArgs;
+		assertThat(values).hasSize(24);
+		assertThat(values.get(0)).isEqualTo(values.get(12));
+		assertThat(string(values.get(0))).startsWith("rules:");
+		assertThat(string(values.get(1))).isEqualTo(TEST_KEY);
+		assertThat(string(values.get(13))).isEqualTo(OTHER_KEY);
+		assertThat(string(values.get(2))).isEqualTo(string(values.get(0)) + ":refs");
+		assertThat(string(values.get(3))).isEqualTo(string(values.get(0)) + ":ttl");
+		assertThat(string(values.get(7))).isEqualTo(String.valueOf(TEST_TTL));
+		assertThat("rules:" + string(values.get(8))).isEqualTo(string(values.get(0)));
+		assertThat(string(values.get(9))).isEmpty();
+	}
+
+	@Test
+	public void testHashDoesNotDependOnFieldOrder() {
+		JsonObject rule = new JsonObject();
+		rule.add("a", new JsonPrimitive("1"));
+		rule.add("b", new JsonPrimitive("2"));
+		JsonObject reordered = new JsonObject();
+		reordered.add("b", new JsonPrimitive("2"));
+		reordered.add("a", new JsonPrimitive("1"));
+		repository.save(TEST_KEY, TEST_TTL, rule);
+		repository.save(OTHER_KEY, TEST_TTL, reordered);
+		assertThat(evalKeysAndArgs.get(0)).isEqualTo(evalKeysAndArgs.get(11));
+	}
+
+	@Test
+	public void testSaveMergesWithTheCurrentRules() {
+		when(connection.mGet(bytes(TEST_KEY))).thenReturn(Collections.singletonList(bytes("hash")));
+		when(connection.sMembers(bytes("rules:hash"))).thenReturn(Sets.newHashSet(bytes(rule1.toString())));
+		repository.save(TEST_KEY, TEST_TTL, rule2);
+		List<byte[]> values = evalKeysAndArgs;
+		assertThat(values).hasSize(12);
+		assertThat(string(values.get(9))).isEqualTo("hash");
+		assertThat(Sets.newHashSet(string(values.get(10)), string(values.get(11)))).containsOnly(rule1.toString(), rule2.toString());
+	}
+
+	@Test
+	public void testConcurrentSaveIsRetried() {
+		evalResult = 0L;
+		repository.save(TEST_KEY, TEST_TTL, rule1);
+		assertThat(evalKeysAndArgs).hasSize(22);
+		assertThat(evalKeysAndArgs.get(0)).isEqualTo(evalKeysAndArgs.get(11));
+	}
+
+	@Test
+	public void testGetResolvesAndCachesTheRuleSet() {
+		when(connection.get(bytes(TEST_KEY))).thenReturn(bytes("hash"));
+		when(connection.get(bytes(OTHER_KEY))).thenReturn(bytes("hash"));
+		when(connection.sMembers(bytes("rules:hash"))).thenReturn(Sets.newHashSet(bytes(rule1.toString()), bytes(rule2.toString())));
+		assertThat(repository.get(TEST_KEY)).containsOnly(rule1, rule2);
+		assertThat(repository.get(OTHER_KEY)).containsOnly(rule1, rule2);
+		verify(connection).sMembers(bytes("rules:hash"));
+	}
+
+	@Test
+	public void testGetMissingKey() {
+		assertThat(repository.get(TEST_KEY)).isEmpty();
+	}
+
+	@Test
+	public void testRemoveRulesSavesANewRuleSet() {
+		when(connection.mGet(bytes(TEST_KEY))).thenReturn(Collections.singletonList(bytes("hash")));
+		when(connection.sMembers(bytes("rules:hash"))).thenReturn(Sets.newHashSet(bytes(rule1.toString()), bytes(rule2.toString())));
+		when(template.getExpire(TEST_KEY)).thenReturn(10L);
+		repository.removeRules(TEST_KEY, rule2);
+		List<byte[]> values = evalKeysAndArgs;
+		assertThat(string(values.get(1))).isEqualTo(TEST_KEY);
+		assertThat(string(values.get(7))).isEqualTo("10000");
+		assertThat(string(values.get(9))).isEqualTo("hash");
+		assertThat(string(values.get(10))).isEqualTo(rule1.toString());
+		assertThat(values).hasSize(11);
+	}
+
+	@Test
+	public void testChangedPersistentKeyReleasesTheOldRuleSet() {
+		when(connection.mGet(bytes(TEST_KEY))).thenReturn(Collections.singletonList(bytes("hash")));
+		when(connection.sMembers(bytes("rules:hash"))).thenReturn(Sets.newHashSet(bytes(rule1.toString()), bytes(rule2.toString())));
+		when(template.getExpire(TEST_KEY)).thenReturn(-1L);
+		repository.removeRules(TEST_KEY, rule2);
+		List<byte[]> values = evalKeysAndArgs;
+		assertThat(string(values.get(0))).isNotEqualTo("rules:hash");
+		// the script releases the reference of the key to the old rule set, deleting it with the last one
+		assertThat(string(values.get(4))).isEqualTo("rules:hash");
+		assertThat(string(values.get(5))).isEqualTo("rules:hash:refs");
+		assertThat(string(values.get(6))).isEqualTo("rules:hash:ttl");
+		assertThat(string(values.get(7))).isEqualTo("-1");
+	}
+
+	@Test
+	public void testDeleteReleasesTheRuleSet() {
+		when(connection.mGet(bytes(TEST_KEY))).thenReturn(Collections.singletonList(bytes("hash")));
+		repository.delete(TEST_KEY);
+		assertThat(evalKeysAndArgs).hasSize(5);
+		assertThat(string(evalKeysAndArgs.get(0))).isEqualTo(TEST_KEY);
+		assertThat(string(evalKeysAndArgs.get(1))).isEqualTo("rules:hash");
+		assertThat(string(evalKeysAndArgs.get(2))).isEqualTo("rules:hash:refs");
+		assertThat(string(evalKeysAndArgs.get(4))).isEqualTo("hash");
+		verify(connection, never()).del(Matchers.<byte[]> anyVararg());
+	}
+
+	@Test
+	public void testSaveWithoutTimeToLiveDeletes() {
+		when(connection.mGet(bytes(TEST_KEY))).thenReturn(Collections.singletonList(bytes("hash")));
+		repository.save(TEST_KEY, 0, rule1);
+		assertThat(evalKeysAndArgs).hasSize(5);
+		assertThat(string(evalKeysAndArgs.get(0))).isEqualTo(TEST_KEY);
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(byte[] value) {
+		return new String(value, StandardCharsets.UTF_8);
+	}
+}
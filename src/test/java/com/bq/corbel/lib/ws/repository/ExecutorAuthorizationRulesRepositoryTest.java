@@ -0,0 +1,91 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ExecutorAuthorizationRulesRepository;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+
+public class ExecutorAuthorizationRulesRepositoryTest {
+
+	private static final String TEST_KEY = "token|audience";
+
+	private AuthorizationRulesRepository delegate;
+	private ExecutorAuthorizationRulesRepository repository;
+
+	@Before
+	public void setUp() {
+		delegate = mock(AuthorizationRulesRepository.class);
+		repository = new ExecutorAuthorizationRulesRepository(delegate, 1, 1);
+	}
+
+	@After
+	public void tearDown() {
+		repository.close();
+	}
+
+	@Test
+	public void testGetAsyncRunsInThePool() throws Exception {
+		Set<JsonObject> rules = Sets.newHashSet(new JsonObject());
+		AtomicReference<Thread> thread = new AtomicReference<>();
+		when(delegate.get(TEST_KEY)).then(invocation -> {
+			thread.set(Thread.currentThread());
+			return rules;
+		});
+		assertThat(repository.getAsync(TEST_KEY).get()).isSameAs(rules);
+		assertThat(thread.get()).isNotSameAs(Thread.currentThread());
+	}
+
+	@Test
+	public void testSynchronousMethodsAreDelegated() {
+		repository.save(TEST_KEY, 1000);
+		repository.deleteByToken("token");
+		verify(delegate).save(TEST_KEY, 1000);
+		verify(delegate).deleteByToken("token");
+	}
+
+	@Test
+	public void testCloseClosesTheDelegate() {
+		repository.close();
+		verify(delegate).close();
+	}
+
+	@Test
+	public void testRejectedWhenSaturated() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		when(delegate.get(TEST_KEY)).then(invocation -> {
+			started.countDown();
+			release.await();
+			return null;
+		});
+		CompletableFuture<Set<JsonObject>> running = repository.getAsync(TEST_KEY);
+		started.await();
+		CompletableFuture<Set<JsonObject>> queued = repository.getAsync(TEST_KEY);
+		CompletableFuture<Set<JsonObject>> rejected = repository.getAsync(TEST_KEY);
+		try {
+			rejected.get();
+		} catch (ExecutionException e) {
+			assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+		}
+		assertThat(rejected.isCompletedExceptionally()).isTrue();
+		release.countDown();
+		running.get();
+		queued.get();
+	}
+}
@@ -0,0 +1,107 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.ws.auth.repository.InMemoryAuthorizationRulesRepository;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class InMemoryAuthorizationRulesRepositoryTest {
+
+	private static final String KEY = "token|audience";
+
+	private InMemoryAuthorizationRulesRepository repository;
+
+	@Before
+	public void setUp() {
+		repository = new InMemoryAuthorizationRulesRepository(10, 8);
+	}
+
+	@After
+	public void tearDown() {
+		repository.close();
+	}
+
+	@Test
+	public void testSaveAndGet() {
+		repository.save(KEY, 60000, rule("a"), rule("b"));
+		repository.save(KEY, 60000, rule("c"));
+		assertThat(repository.get(KEY)).containsOnly(rule("a"), rule("b"), rule("c"));
+		assertThat(repository.existsRules(KEY)).isTrue();
+		assertThat(repository.getTimeToExpire(KEY)).isGreaterThanOrEqualTo(59L).isLessThanOrEqualTo(60L);
+	}
+
+	@Test
+	public void testMissingKey() {
+		assertThat(repository.get(KEY)).isEmpty();
+		assertThat(repository.existsRules(KEY)).isFalse();
+		assertThat(repository.getTimeToExpire(KEY)).isEqualTo(-2L);
+	}
+
+	@Test
+	public void testAddRulesWithoutExpiration() {
+		repository.addRules(KEY, rule("a"));
+		assertThat(repository.get(KEY)).containsOnly(rule("a"));
+		assertThat(repository.getTimeToExpire(KEY)).isEqualTo(-1L);
+	}
+
+	@Test
+	public void testRemoveRules() {
+		repository.save(KEY, 60000, rule("a"), rule("b"));
+		repository.removeRules(KEY, rule("a"));
+		assertThat(repository.get(KEY)).containsOnly(rule("b"));
+		repository.removeRules(KEY, rule("b"));
+		assertThat(repository.existsRules(KEY)).isFalse();
+		assertThat(repository.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testDeleteByToken() {
+		repository.save(repository.getKeyForAuthorizationRules("token", "audience1"), 60000, rule("a"));
+		repository.save(repository.getKeyForAuthorizationRules("token", "audience2"), 60000, rule("a"));
+		repository.save(repository.getKeyForAuthorizationRules("token2", "audience1"), 60000, rule("a"));
+		repository.deleteByToken("token");
+		assertThat(repository.existsRules("token|audience1")).isFalse();
+		assertThat(repository.existsRules("token|audience2")).isFalse();
+		assertThat(repository.existsRules("token2|audience1")).isTrue();
+	}
+
+	@Test
+	public void testExpiredKeysAreNotReturnedAndAreRemoved() throws InterruptedException {
+		repository.save(KEY, 30, rule("a"));
+		repository.save("other|audience", 60000, rule("a"));
+		Thread.sleep(40);
+		assertThat(repository.existsRules(KEY)).isFalse();
+		assertThat(repository.get(KEY)).isEmpty();
+		Thread.sleep(100);
+		assertThat(repository.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void testKeysExpiringAfterALapAreKept() throws InterruptedException {
+		// 8 buckets of 10 ms make a lap of 80 ms
+		repository.save(KEY, 200, rule("a"));
+		Thread.sleep(120);
+		assertThat(repository.size()).isEqualTo(1);
+		Thread.sleep(200);
+		assertThat(repository.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testSaveAgainExtendsExpiration() throws InterruptedException {
+		repository.save(KEY, 30, rule("a"));
+		repository.save(KEY, 60000, rule("b"));
+		Thread.sleep(100);
+		assertThat(repository.get(KEY)).containsOnly(rule("a"), rule("b"));
+	}
+
+	private static JsonObject rule(String name) {
+		JsonObject rule = new JsonObject();
+		rule.add("uri", new JsonPrimitive(name));
+		return rule;
+	}
+}
@@ -0,0 +1,141 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
+import com.bq.corbel.lib.ws.auth.repository.NearCacheAuthorizationRulesRepository;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class NearCacheAuthorizationRulesRepositoryTest {
+
+	private static final String TEST_KEY = "token|audience";
+
+	private AuthorizationRulesRepository delegate;
+	private RedisMessageListenerContainer listenerContainer;
+	private NearCacheAuthorizationRulesRepository repository;
+	private JsonObject testRule;
+
+	@Before
+	public void setUp() {
+		delegate = mock(AuthorizationRulesRepository.class);
+		listenerContainer = mock(RedisMessageListenerContainer.class);
+		testRule = new JsonObject();
+		testRule.add("_id", new JsonPrimitive("testId"));
+		when(delegate.get(TEST_KEY)).thenReturn(Sets.newHashSet(testRule));
+		when(delegate.getKeyForAuthorizationRules("token", "")).thenReturn("token|");
+		repository = new NearCacheAuthorizationRulesRepository(delegate, listenerContainer, 0, 100, 1024 * 1024, 60000);
+	}
+
+	@Test
+	public void testSubscribesToKeyspaceNotifications() {
+		verify(listenerContainer).addMessageListener(repository, new PatternTopic("__keyspace@0__:*|*"));
+	}
+
+	@Test
+	public void testGetIsCached() {
+		assertThat(repository.get(TEST_KEY)).containsOnly(testRule);
+		assertThat(repository.get(TEST_KEY)).containsOnly(testRule);
+		verify(delegate, times(1)).get(TEST_KEY);
+	}
+
+	@Test
+	public void testGetWithTimeToExpireIsCached() {
+		when(delegate.getWithTimeToExpire(TEST_KEY)).thenReturn(new ExpiringRules(Sets.newHashSet(testRule), 10L));
+		assertThat(repository.getWithTimeToExpire(TEST_KEY).getTimeToExpire()).isEqualTo(10L);
+		ExpiringRules cached = repository.getWithTimeToExpire(TEST_KEY);
+		assertThat(cached.getRules()).containsOnly(testRule);
+		assertThat(cached.getTimeToExpire()).isNull();
+		verify(delegate, times(1)).getWithTimeToExpire(TEST_KEY);
+	}
+
+	@Test
+	public void testGetAsyncIsCached() throws Exception {
+		when(delegate.getAsync(TEST_KEY)).thenReturn(CompletableFuture.completedFuture(Sets.newHashSet(testRule)));
+		assertThat(repository.getAsync(TEST_KEY).get()).containsOnly(testRule);
+		assertThat(repository.getAsync(TEST_KEY).get()).containsOnly(testRule);
+		assertThat(repository.get(TEST_KEY)).containsOnly(testRule);
+		verify(delegate).getAsync(TEST_KEY);
+		verify(delegate, never()).get(TEST_KEY);
+	}
+
+	@Test
+	public void testEmptyRulesAreNotCached() {
+		when(delegate.get(TEST_KEY)).thenReturn(Collections.emptySet());
+		repository.get(TEST_KEY);
+		repository.get(TEST_KEY);
+		verify(delegate, times(2)).get(TEST_KEY);
+	}
+
+	@Test
+	public void testCachedRules() {
+		repository.get(TEST_KEY);
+		assertThat(repository.getCachedRules(10)).containsKey(TEST_KEY);
+		assertThat(repository.getCachedRules(0)).isEmpty();
+	}
+
+	@Test
+	public void testKeyspaceNotificationInvalidates() {
+		repository.get(TEST_KEY);
+		notifyKeyspaceEvent("srem");
+		repository.get(TEST_KEY);
+		verify(delegate, times(2)).get(TEST_KEY);
+		verify(delegate).keyChanged(TEST_KEY);
+	}
+
+	@Test
+	public void testExpiredAndEvictedKeysAreInvalidated() {
+		repository.get(TEST_KEY);
+		notifyKeyspaceEvent("expired");
+		repository.get(TEST_KEY);
+		notifyKeyspaceEvent("evicted");
+		repository.get(TEST_KEY);
+		verify(delegate, times(3)).get(TEST_KEY);
+		verify(delegate, times(2)).keyChanged(TEST_KEY);
+	}
+
+	@Test
+	public void testWritesInvalidate() {
+		repository.get(TEST_KEY);
+		repository.addRules(TEST_KEY, testRule);
+		repository.get(TEST_KEY);
+		repository.deleteByToken("token");
+		repository.get(TEST_KEY);
+		repository.saveAll(Collections.singletonMap(TEST_KEY, Collections.singleton(testRule)), 1000);
+		repository.get(TEST_KEY);
+		verify(delegate, times(4)).get(TEST_KEY);
+		verify(delegate).addRules(TEST_KEY, testRule);
+		verify(delegate).deleteByToken("token");
+		verify(delegate).saveAll(Collections.singletonMap(TEST_KEY, Collections.singleton(testRule)), 1000);
+	}
+
+	@Test
+	public void testBoundedByEntries() {
+		repository = new NearCacheAuthorizationRulesRepository(delegate, listenerContainer, 0, 1, 1024 * 1024, 60000);
+		when(delegate.get(any(String.class))).thenReturn(Sets.newHashSet(testRule));
+		repository.get("a|b");
+		repository.get("c|d");
+		repository.get("a|b");
+		verify(delegate, times(2)).get("a|b");
+	}
+
+	private void notifyKeyspaceEvent(String event) {
+		repository.onMessage(new DefaultMessage(("__keyspace@0__:" + TEST_KEY).getBytes(StandardCharsets.UTF_8), event
+				.getBytes(StandardCharsets.UTF_8)), null);
+	}
+
+}
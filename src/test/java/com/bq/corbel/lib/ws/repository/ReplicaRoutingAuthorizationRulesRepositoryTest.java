@@ -0,0 +1,138 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ReplicaRoutingAuthorizationRulesRepository;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class ReplicaRoutingAuthorizationRulesRepositoryTest {
+
+	private static final String KEY = "token|audience";
+
+	private AuthorizationRulesRepository primary;
+	private AuthorizationRulesRepository replica1;
+	private AuthorizationRulesRepository replica2;
+	private ReplicaRoutingAuthorizationRulesRepository repository;
+
+	@Before
+	public void setUp() {
+		primary = repository("primary");
+		replica1 = repository("replica1");
+		replica2 = repository("replica2");
+		repository = new ReplicaRoutingAuthorizationRulesRepository(primary, Arrays.asList(replica1, replica2), 60000, 100);
+	}
+
+	@Test
+	public void testReadsGoToReplicas() {
+		for (int i = 0; i < 20; i++) {
+			assertThat(repository.get(KEY)).isNotEqualTo(Sets.newHashSet(rule("primary")));
+			assertThat(repository.existsRules(KEY)).isTrue();
+		}
+		verify(primary, never()).get(anyString());
+		verify(primary, never()).existsRules(anyString());
+	}
+
+	@Test
+	public void testWritesGoToPrimary() {
+		JsonObject rule = rule("new");
+		repository.save(KEY, 1000, rule);
+		repository.delete(KEY);
+		repository.deleteByToken("token");
+		verify(primary).save(KEY, 1000, rule);
+		verify(primary).delete(KEY);
+		verify(primary).deleteByToken("token");
+		verifyZeroInteractions(replica1, replica2);
+	}
+
+	@Test
+	public void testReadYourWrites() {
+		repository.save(KEY, 1000, rule("new"));
+		assertThat(repository.get(KEY)).isEqualTo(Sets.newHashSet(rule("primary")));
+		assertThat(repository.getAll(Collections.singleton(KEY))).isEmpty();
+		verify(primary).getAll(Collections.singleton(KEY));
+		assertThat(repository.get("other|audience")).isNotEqualTo(Sets.newHashSet(rule("primary")));
+	}
+
+	@Test
+	public void testReadYourWritesAfterDeleteByToken() {
+		repository.deleteByToken("token");
+		assertThat(repository.get("token|otherAudience")).isEqualTo(Sets.newHashSet(rule("primary")));
+	}
+
+	@Test
+	public void testChangedKeyIsReadFromPrimary() {
+		repository.keyChanged(KEY);
+		assertThat(repository.get(KEY)).isEqualTo(Sets.newHashSet(rule("primary")));
+		assertThat(repository.get("other|audience")).isNotEqualTo(Sets.newHashSet(rule("primary")));
+	}
+
+	@Test
+	public void testReadYourWritesDisabled() {
+		repository = new ReplicaRoutingAuthorizationRulesRepository(primary, Arrays.asList(replica1, replica2), 0, 100);
+		repository.save(KEY, 1000, rule("new"));
+		assertThat(repository.get(KEY)).isNotEqualTo(Sets.newHashSet(rule("primary")));
+	}
+
+	@Test
+	public void testFailedReplicaReadsFromPrimary() {
+		when(replica1.get(anyString())).thenThrow(new IllegalStateException("down"));
+		when(replica2.get(anyString())).thenThrow(new IllegalStateException("down"));
+		assertThat(repository.get(KEY)).isEqualTo(Sets.newHashSet(rule("primary")));
+	}
+
+	@Test
+	public void testFailedReplicaIsAvoided() {
+		when(replica1.get(anyString())).thenThrow(new IllegalStateException("down"));
+		for (int i = 0; i < 50; i++) {
+			repository.get(KEY);
+		}
+		// the penalty of the failed replica makes every following read pick the other one
+		verify(replica1).get(KEY);
+	}
+
+	@Test
+	public void testFailedAsyncReplicaReadsFromPrimary() {
+		CompletableFuture<Set<JsonObject>> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new IllegalStateException("down"));
+		when(replica1.getAsync(anyString())).thenReturn(failed);
+		when(replica2.getAsync(anyString())).thenReturn(failed);
+		when(primary.getAsync(KEY)).thenReturn(CompletableFuture.completedFuture(Sets.newHashSet(rule("primary"))));
+		assertThat(repository.getAsync(KEY).join()).isEqualTo(Sets.newHashSet(rule("primary")));
+	}
+
+	@Test
+	public void testWithoutReplicasReadsFromPrimary() {
+		repository = new ReplicaRoutingAuthorizationRulesRepository(primary, Collections.emptyList(), 60000, 100);
+		assertThat(repository.get(KEY)).isEqualTo(Sets.newHashSet(rule("primary")));
+	}
+
+	private static AuthorizationRulesRepository repository(String name) {
+		AuthorizationRulesRepository repository = mock(AuthorizationRulesRepository.class);
+		when(repository.get(anyString())).thenReturn(Sets.newHashSet(rule(name)));
+		when(repository.existsRules(anyString())).thenReturn(true);
+		return repository;
+	}
+
+	private static JsonObject rule(String name) {
+		JsonObject rule = new JsonObject();
+		rule.add("node", new JsonPrimitive(name));
+		return rule;
+	}
+}
@@ -0,0 +1,133 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ShardedAuthorizationRulesRepository;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class ShardedAuthorizationRulesRepositoryTest {
+
+	private static final List<String> NODES = Arrays.asList("redis1:6379", "redis2:6379", "redis3:6379");
+
+	private List<AuthorizationRulesRepository> shards;
+	private ShardedAuthorizationRulesRepository repository;
+
+	@Before
+	public void setUp() {
+		shards = new ArrayList<>();
+		for (String node : NODES) {
+			AuthorizationRulesRepository shard = mock(AuthorizationRulesRepository.class);
+			when(shard.get(anyString())).then(invocation -> Sets.newHashSet(rule(node)));
+			when(shard.getAll(anyCollectionOf(String.class))).then(invocation -> {
+				Map<String, Set<JsonObject>> rules = new HashMap<>();
+				for (Object key : (Collection<?>) invocation.getArguments()[0]) {
+					rules.put((String) key, Sets.newHashSet(rule(node)));
+				}
+				return rules;
+			});
+			shards.add(shard);
+		}
+		repository = new ShardedAuthorizationRulesRepository(shards, NODES);
+	}
+
+	@Test
+	public void testKeysOfATokenAreInTheSameShard() {
+		for (int i = 0; i < 100; i++) {
+			assertThat(repository.get("token" + i + "|audience1")).isEqualTo(repository.get("token" + i + "|audience2"));
+		}
+	}
+
+	@Test
+	public void testHashTags() {
+		assertThat(repository.get("{tag}first")).isEqualTo(repository.get("second{tag}|audience"));
+	}
+
+	@Test
+	public void testKeysAreSpreadAcrossShards() {
+		Map<Set<JsonObject>, Integer> keysByShard = new HashMap<>();
+		for (int i = 0; i < 3000; i++) {
+			keysByShard.merge(repository.get("token" + i + "|audience"), 1, Integer::sum);
+		}
+		assertThat(keysByShard).hasSize(3);
+		for (int keys : keysByShard.values()) {
+			assertThat(keys).isGreaterThan(600);
+		}
+	}
+
+	@Test
+	public void testAddingANodeMovesFewKeys() {
+		List<AuthorizationRulesRepository> moreShards = new ArrayList<>(shards);
+		AuthorizationRulesRepository newShard = mock(AuthorizationRulesRepository.class);
+		when(newShard.get(anyString())).thenReturn(Sets.newHashSet(rule("redis4:6379")));
+		moreShards.add(newShard);
+		List<String> moreNodes = new ArrayList<>(NODES);
+		moreNodes.add("redis4:6379");
+		// the order of the nodes does not matter
+		Collections.reverse(moreShards);
+		Collections.reverse(moreNodes);
+		ShardedAuthorizationRulesRepository resharded = new ShardedAuthorizationRulesRepository(moreShards, moreNodes);
+		int moved = 0;
+		for (int i = 0; i < 3000; i++) {
+			Set<JsonObject> after = resharded.get("token" + i + "|audience");
+			if (!after.equals(repository.get("token" + i + "|audience"))) {
+				assertThat(after).containsOnly(rule("redis4:6379"));
+				moved++;
+			}
+		}
+		assertThat(moved).isGreaterThan(300).isLessThan(1200);
+	}
+
+	@Test
+	public void testGetAllMergesShards() {
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 30; i++) {
+			keys.add("token" + i + "|audience");
+		}
+		Map<String, Set<JsonObject>> rules = repository.getAll(keys);
+		assertThat(rules).hasSize(30);
+		for (String key : keys) {
+			assertThat(rules.get(key)).isEqualTo(repository.get(key));
+		}
+	}
+
+	@Test
+	public void testDeleteByTokenOnlyInTheShardOfTheToken() {
+		Set<JsonObject> rules = repository.get("token|audience");
+		repository.deleteByToken("token");
+		for (int i = 0; i < shards.size(); i++) {
+			verify(shards.get(i), times(rules.contains(rule(NODES.get(i))) ? 1 : 0)).deleteByToken("token");
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNameRequiredForEveryShard() {
+		new ShardedAuthorizationRulesRepository(shards, NODES.subList(0, 2));
+	}
+
+	private static JsonObject rule(String node) {
+		JsonObject rule = new JsonObject();
+		rule.add("node", new JsonPrimitive(node));
+		return rule;
+	}
+}
@@ -0,0 +1,194 @@
+package com.bq.corbel.lib.ws.repository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bq.corbel.lib.ws.auth.repository.AuthorizationRulesRepository;
+import com.bq.corbel.lib.ws.auth.repository.ExpiringRules;
+import com.bq.corbel.lib.ws.auth.repository.SharedMemoryAuthorizationRulesRepository;
+import com.google.common.base.Strings;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class SharedMemoryAuthorizationRulesRepositoryTest {
+
+	private static final String KEY = "token|audience";
+
+	private Path file;
+	private AuthorizationRulesRepository delegate;
+	private SharedMemoryAuthorizationRulesRepository repository;
+
+	@Before
+	public void setUp() throws IOException {
+		file = Files.createTempDirectory("shared-rules").resolve("rules");
+		delegate = mock(AuthorizationRulesRepository.class);
+		when(delegate.get(KEY)).thenReturn(Sets.newHashSet(rule("a"), rule("b")));
+		when(delegate.getKeyForAuthorizationRules(anyString(), anyString())).then(
+				invocation -> invocation.getArguments()[0] + "|" + invocation.getArguments()[1]);
+		repository = new SharedMemoryAuthorizationRulesRepository(delegate, file, 64, 512, 60000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		repository.close();
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(file.getParent());
+	}
+
+	@Test
+	public void testRulesAreReadOnce() {
+		assertThat(repository.get(KEY)).containsOnly(rule("a"), rule("b"));
+		assertThat(repository.get(KEY)).containsOnly(rule("a"), rule("b"));
+		assertThat(repository.existsRules(KEY)).isTrue();
+		verify(delegate, times(1)).get(KEY);
+	}
+
+	@Test
+	public void testRulesAreSharedBetweenInstances() throws IOException {
+		repository.get(KEY);
+		AuthorizationRulesRepository otherDelegate = mock(AuthorizationRulesRepository.class);
+		try (SharedMemoryAuthorizationRulesRepository other = new SharedMemoryAuthorizationRulesRepository(otherDelegate, file, 64, 512,
+				60000)) {
+			assertThat(other.get(KEY)).containsOnly(rule("a"), rule("b"));
+			verify(otherDelegate, times(0)).get(anyString());
+		}
+	}
+
+	@Test
+	public void testFileIsOnlyReadableByItsOwner() throws IOException {
+		assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+	}
+
+	@Test
+	public void testFileReadableByOthersIsRejected() throws IOException {
+		Path other = file.resolveSibling("other");
+		Files.createFile(other, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));
+		Files.setPosixFilePermissions(other, PosixFilePermissions.fromString("rw-r--r--"));
+		try {
+			new SharedMemoryAuthorizationRulesRepository(delegate, other, 64, 512, 60000).close();
+			throw new AssertionError("File readable by others accepted");
+		} catch (IllegalArgumentException expected) {} finally {
+			Files.delete(other);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testSymbolicLinkIsRejected() throws IOException {
+		Path link = Files.createSymbolicLink(file.resolveSibling("link"), file);
+		try {
+			new SharedMemoryAuthorizationRulesRepository(delegate, link, 64, 512, 60000).close();
+		} finally {
+			Files.delete(link);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFileWithOtherFormatIsRejected() throws IOException {
+		new SharedMemoryAuthorizationRulesRepository(delegate, file, 128, 512, 60000);
+	}
+
+	@Test
+	public void testWritesInvalidate() {
+		repository.get(KEY);
+		repository.addRules(KEY, rule("c"));
+		when(delegate.get(KEY)).thenReturn(Sets.newHashSet(rule("a"), rule("b"), rule("c")));
+		assertThat(repository.get(KEY)).containsOnly(rule("a"), rule("b"), rule("c"));
+		verify(delegate, times(2)).get(KEY);
+	}
+
+	@Test
+	public void testChangedKeyIsInvalidated() {
+		repository.get(KEY);
+		repository.keyChanged(KEY);
+		repository.get(KEY);
+		verify(delegate).keyChanged(KEY);
+		verify(delegate, times(2)).get(KEY);
+	}
+
+	@Test
+	public void testRulesLoadedBeforeAnInvalidationAreNotShared() {
+		when(delegate.get(KEY)).then(invocation -> {
+			// changed while the old rules were being read
+			repository.keyChanged(KEY);
+			return Sets.newHashSet(rule("a"), rule("b"));
+		});
+		repository.get(KEY);
+		doReturn(Sets.newHashSet(rule("a"))).when(delegate).get(KEY);
+		assertThat(repository.get(KEY)).containsOnly(rule("a"));
+		verify(delegate, times(2)).get(KEY);
+	}
+
+	@Test
+	public void testRulesAreNotSharedLongerThanTheirKey() {
+		when(delegate.getWithTimeToExpire(KEY)).thenReturn(new ExpiringRules(Sets.newHashSet(rule("a")), 0L));
+		assertThat(repository.getWithTimeToExpire(KEY).getTimeToExpire()).isEqualTo(0L);
+		repository.getWithTimeToExpire(KEY);
+		verify(delegate, times(2)).getWithTimeToExpire(KEY);
+
+		when(delegate.getWithTimeToExpire(KEY)).thenReturn(new ExpiringRules(Sets.newHashSet(rule("a")), 3600L));
+		repository.getWithTimeToExpire(KEY);
+		assertThat(repository.getWithTimeToExpire(KEY).getRules()).containsOnly(rule("a"));
+		verify(delegate, times(3)).getWithTimeToExpire(KEY);
+	}
+
+	@Test
+	public void testDeleteByTokenInvalidates() {
+		repository.get(KEY);
+		repository.deleteByToken("token");
+		repository.get(KEY);
+		verify(delegate).deleteByToken("token");
+		verify(delegate, times(2)).get(KEY);
+	}
+
+	@Test
+	public void testExpiredRulesAreReadAgain() throws IOException, InterruptedException {
+		repository.close();
+		Files.delete(file);
+		repository = new SharedMemoryAuthorizationRulesRepository(delegate, file, 64, 512, 10);
+		repository.get(KEY);
+		Thread.sleep(20);
+		repository.get(KEY);
+		verify(delegate, times(2)).get(KEY);
+	}
+
+	@Test
+	public void testLargeRulesAreNotShared() {
+		when(delegate.get(KEY)).thenReturn(Sets.newHashSet(rule(Strings.repeat("x", 1000))));
+		repository.get(KEY);
+		repository.get(KEY);
+		verify(delegate, times(2)).get(KEY);
+	}
+
+	@Test
+	public void testCollidingKeysAreKept() {
+		for (int i = 0; i < 64; i++) {
+			when(delegate.get("token" + i + "|audience")).thenReturn(Sets.newHashSet(rule(Integer.toString(i))));
+			repository.get("token" + i + "|audience");
+		}
+		for (int i = 0; i < 64; i++) {
+			// every key is either shared or read again, but never mixed up with another one
+			assertThat(repository.get("token" + i + "|audience")).containsOnly(rule(Integer.toString(i)));
+		}
+	}
+
+	private static JsonObject rule(String name) {
+		JsonObject rule = new JsonObject();
+		rule.add("uri", new JsonPrimitive(name));
+		return rule;
+	}
+}